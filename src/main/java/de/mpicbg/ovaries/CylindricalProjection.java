@@ -28,47 +28,19 @@
  */
 package de.mpicbg.ovaries;
 
-import bdv.viewer.Interpolation;
+import java.util.Collections;
+import java.util.List;
+
 import bdv.viewer.Source;
 import de.mpicbg.ovaries.ellipsoid.Ellipsoid;
-import ij.IJ;
-import ij.ImagePlus;
 
-import net.imglib2.RandomAccess;
-import net.imglib2.RandomAccessible;
-import net.imglib2.RealRandomAccess;
-import net.imglib2.exception.ImgLibException;
-import net.imglib2.img.imageplus.FloatImagePlus;
-import net.imglib2.img.imageplus.ImagePlusImgs;
-import net.imglib2.realtransform.AffineTransform3D;
-import net.imglib2.realtransform.RealViews;
 import net.imglib2.type.numeric.integer.UnsignedShortType;
-import net.imglib2.type.numeric.real.FloatType;
-import net.imglib2.util.LinAlgHelpers;
-import net.imglib2.view.IntervalView;
-import net.imglib2.view.Views;
 
-public class CylindricalProjection
+public class CylindricalProjection extends EllipsoidProjection
 {
-	private final Ellipsoid ellipsoid;
-
-	private final int width;
-
-	private final int height;
-
-	private final Source< UnsignedShortType > source;
-
-	private final double[][] cylAxes;
+	private static final double r = 1.0;
 
-	private final double minProjectDistance;
-
-	private final double maxProjectDistance;
-
-	private final double sliceDistance;
-
-	private final int minTimepoint;
-
-	private final int maxTimepoint;
+	private final double ly;
 
 	public CylindricalProjection(
 			final Ellipsoid ellipsoid,
@@ -83,103 +55,60 @@ public class CylindricalProjection
 			final boolean alignY,
 			final Source< UnsignedShortType > source )
 	{
-		this.ellipsoid = ellipsoid;
-		this.width = width;
-		this.height = height;
-		this.minProjectDistance = minProjectDistance;
-		this.maxProjectDistance = maxProjectDistance;
-		this.sliceDistance = sliceDistance;
-		this.minTimepoint = minTimepoint;
-		this.maxTimepoint = maxTimepoint;
-		this.source = source;
-		this.cylAxes = SphericalProjection.getCylinderAxes( ellipsoid, flipZ, alignY );
+		this( ellipsoid, width, height, minProjectDistance, maxProjectDistance, sliceDistance,
+				minTimepoint, maxTimepoint, flipZ, alignY, source, ProjectionOptions.options() );
 	}
 
-	public ImagePlus project()
+	public CylindricalProjection(
+			final Ellipsoid ellipsoid,
+			final int width,
+			final int height,
+			final double minProjectDistance,
+			final double maxProjectDistance,
+			final double sliceDistance,
+			final int minTimepoint,
+			final int maxTimepoint,
+			final boolean flipZ,
+			final boolean alignY,
+			final Source< UnsignedShortType > source,
+			final ProjectionOptions options )
 	{
-		final StringBuilder sb = new StringBuilder("\n\nCylindricalProjection\n");
-		sb.append( "Ellipsoid = " + ellipsoid + "\n");
-		sb.append( "cylAxes = " + LinAlgHelpers.toString( cylAxes ) + "\n");
-		sb.append( "width = " + width + "\n");
-		sb.append( "height = " + height + "\n");
-		sb.append( "minProjectDistance = " + minProjectDistance + "\n");
-		sb.append( "maxProjectDistance = " + maxProjectDistance + "\n");
-		sb.append( "sliceDistance = " + sliceDistance + "\n");
-		sb.append( "minTimepoint = " + minTimepoint + "\n");
-		sb.append( "maxTimepoint = " + maxTimepoint + "\n\n\n");
-		IJ.log( sb.toString() );
-		ImagePlus imp = null;
-		try
-		{
-			final int depth = ( int ) Math.ceil( ( maxProjectDistance - minProjectDistance ) / sliceDistance ) + 1;
-			final int numTimepoints = maxTimepoint - minTimepoint + 1;
-			final FloatImagePlus< FloatType > floats = ImagePlusImgs.floats( width, height, depth, numTimepoints );
-			imp = floats.getImagePlus();
-			imp.setDimensions( 1, depth, numTimepoints );
-			imp.show();
-
-			for ( int t = 0; t < numTimepoints; ++t )
-			{
-				for ( int z = 0; z < depth; ++z )
-				{
-					final double distance = minProjectDistance + z * sliceDistance;
-					final IntervalView< FloatType > slice = Views.hyperSlice( Views.hyperSlice( floats, 3, t ), 2, z );
-					projectPlane( distance, t + minTimepoint, slice );
-				}
-			}
-		}
-		catch ( final ImgLibException e )
-		{}
-		return imp;
+		this( ellipsoid, width, height, minProjectDistance, maxProjectDistance, sliceDistance,
+				minTimepoint, maxTimepoint, flipZ, alignY, Collections.singletonList( source ), options );
 	}
 
-	public void projectPlane( final double distance, final int t, final RandomAccessible< FloatType > plane )
+	public CylindricalProjection(
+			final Ellipsoid ellipsoid,
+			final int width,
+			final int height,
+			final double minProjectDistance,
+			final double maxProjectDistance,
+			final double sliceDistance,
+			final int minTimepoint,
+			final int maxTimepoint,
+			final boolean flipZ,
+			final boolean alignY,
+			final List< Source< UnsignedShortType > > sources,
+			final ProjectionOptions options )
 	{
-		final RandomAccess< FloatType > out = plane.randomAccess();
-		final AffineTransform3D transform = new AffineTransform3D();
-		source.getSourceTransform( t, 0, transform );
-		final RealRandomAccess< UnsignedShortType > in = RealViews.affineReal( source.getInterpolatedSource( t, 0, Interpolation.NLINEAR ), transform ).realRandomAccess();
-
-		final double[] cylindrical = new double[ 3 ];
-		final double[] unit = new double[ 3 ];
-		final double[] cartesian = new double[ 3 ];
-		// point on ellipsoid
-		final double[] pe = new double[ 3 ];
-		// unit normal at pe
-		final double[] ne = new double[ 3 ];
+		super( ellipsoid, width, height, minProjectDistance, maxProjectDistance, sliceDistance,
+				minTimepoint, maxTimepoint, flipZ, alignY, sources, options );
+		ly = Math.atan2( 2 * Math.PI, width ) * r;
+	}
 
-		final double r = 1.0;
-		final double ly = Math.atan2( 2 * Math.PI, width ) * r;
+	@Override
+	protected String getName()
+	{
+		return "CylindricalProjection";
+	}
 
-		final long t0 = System.currentTimeMillis();
+	@Override
+	protected void getDirection( final int xpi, final int ypi, final double[] cylindrical, final double[] direction )
+	{
 		cylindrical[ 0 ] = r; // radial distance
-		for ( int ypi = 0; ypi < height; ++ypi )
-		{
-			out.setPosition( ypi, 1 );
-			cylindrical[ 2 ] = ly * ( height / 2 - ypi ); // height (z)
-			for ( int xpi = 0; xpi < width; ++xpi )
-			{
-				out.setPosition( xpi, 0 );
-				cylindrical[ 1 ] = xpi * 2 * Math.PI / width; // azimuth
-				cylindricalToCartesian( cylindrical, cartesian );
-				LinAlgHelpers.multT( cylAxes, cartesian, unit );
-				LinAlgHelpers.normalize( unit );
-
-				LinAlgHelpers.mult( ellipsoid.getPrecision(), unit, ne );
-				LinAlgHelpers.scale( unit, Math.sqrt( 1.0 / LinAlgHelpers.dot( unit, ne ) ), pe );
-				LinAlgHelpers.mult( ellipsoid.getPrecision(), pe, ne );
-				LinAlgHelpers.normalize( ne );
-				LinAlgHelpers.add( pe, ellipsoid.getCenter(), pe );
-
-				LinAlgHelpers.scale( ne, distance, ne );
-				LinAlgHelpers.add( pe, ne, pe );
-				in.setPosition( pe );
-				final double v = in.get().getRealDouble();
-				out.get().setReal( v );
-			}
-		}
-		final long t1 = System.currentTimeMillis();
-		System.out.println( (t1 - t0) + " ms" );
+		cylindrical[ 1 ] = xpi * 2 * Math.PI / width; // azimuth
+		cylindrical[ 2 ] = ly * ( height / 2 - ypi ); // height (z)
+		cylindricalToCartesian( cylindrical, direction );
 	}
 
 	private static void cylindricalToCartesian( final double[] cylindrical, final double[] cartesian )
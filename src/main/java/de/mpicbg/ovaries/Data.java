@@ -33,6 +33,7 @@ import gnu.trove.list.array.TIntArrayList;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
 
 import net.imglib2.FinalInterval;
 import net.imglib2.Interval;
@@ -56,7 +57,9 @@ import bdv.viewer.Source;
 import bdv.viewer.ViewerPanel;
 import bdv.viewer.state.SourceState;
 import de.mpicbg.ovaries.ellipsoid.Ellipsoid;
+import de.mpicbg.ovaries.ellipsoid.InlierCache;
 import de.mpicbg.ovaries.ellipsoid.SampleEllipsoids;
+import de.mpicbg.ovaries.ellipsoid.SamplingOptions;
 
 public class Data
 {
@@ -64,7 +67,7 @@ public class Data
 
 	private final ArrayList< Integer > projectionSourceIndices;
 
-	private final ViewerPanel viewer;
+	private final List< ? extends Source< ? > > sources;
 
 	private FinalInterval bbInterval;
 
@@ -72,18 +75,37 @@ public class Data
 
 	private ArrayList< RealPoint > detections;
 
+	// DoG response magnitude of each detection
+	private TDoubleArrayList detectionResponses;
+
+	// distances of detections to the last RANSAC hypothesis
+	private InlierCache inlierCache;
+
 	private Ellipsoid ellipsoid;
 
+	private final ProjectionPlanCache planCache;
+
+	private ExecutorService executorService;
+
 	public Data( final ViewerPanel viewer )
 	{
-		this.viewer = viewer;
+		this( getSpimSources( viewer ) );
+	}
+
+	/**
+	 * Create {@link Data} for the given sources, e.g., for headless
+	 * processing. All {@link UnsignedShortType} sources are projected.
+	 */
+	public Data( final List< ? extends Source< ? > > sources )
+	{
+		this.sources = sources;
 		bbTransform = new AffineTransform3D();
+		planCache = new ProjectionPlanCache();
 
 		projectionSourceIndices = new ArrayList< Integer >();
-		final List< SourceState< ? > > sources = viewer.getState().getSources();
 		for ( int i = 0; i < sources.size(); ++i )
 		{
-			final Source< ? > s = sources.get( i ).getSpimSource();
+			final Source< ? > s = sources.get( i );
 			if ( UnsignedShortType.class.isInstance( s.getType() ) )
 				projectionSourceIndices.add( i );
 		}
@@ -91,11 +113,28 @@ public class Data
 		dataSourceIndex =  projectionSourceIndices.get( 0 );
 	}
 
+	private static List< Source< ? > > getSpimSources( final ViewerPanel viewer )
+	{
+		final ArrayList< Source< ? > > sources = new ArrayList< Source< ? > >();
+		for ( final SourceState< ? > state : viewer.getState().getSources() )
+			sources.add( state.getSpimSource() );
+		return sources;
+	}
+
 	public void setImageDataSourceIndex( final int index )
 	{
 		dataSourceIndex = index;
 	}
 
+	/**
+	 * Set the {@link ExecutorService} used for blob detection. If
+	 * {@code null} (the default), each detection creates its own threads.
+	 */
+	public void setExecutorService( final ExecutorService executorService )
+	{
+		this.executorService = executorService;
+	}
+
 	public void setBoundingBox(
 			final Interval interval,
 			final AffineTransform3D transform )
@@ -119,6 +158,8 @@ public class Data
 		System.out.println( "Data.computeDetections" );
 
 		detections = new ArrayList< RealPoint >();
+		detectionResponses = new TDoubleArrayList();
+		inlierCache = null;
 		for ( int ti = 0; ti < timepoints.size(); ++ti )
 		{
 			final int timepoint = timepoints.get( ti );
@@ -144,15 +185,29 @@ public class Data
 		return detections;
 	}
 
+	/**
+	 * Get the DoG response magnitude of each detection, in the order of
+	 * {@link #getDetections()}. Larger values are stronger peaks.
+	 */
+	public TDoubleArrayList getDetectionResponses()
+	{
+		return detectionResponses;
+	}
+
 	public Ellipsoid getEllipsoid()
 	{
 		return ellipsoid;
 	}
 
+	public ProjectionPlanCache getPlanCache()
+	{
+		return planCache;
+	}
+
 	@SuppressWarnings( "unchecked" )
 	private Source< UnsignedShortType > getDoGSource( final int sourceIndex )
 	{
-		final Source< ? > s = viewer.getState().getSources().get( sourceIndex ).getSpimSource();
+		final Source< ? > s = sources.get( sourceIndex );
 		if ( UnsignedShortType.class.isInstance( s.getType() ) )
 			return ( Source< UnsignedShortType > ) s;
 		else
@@ -207,6 +262,8 @@ public class Data
 				ExtremaType.MINIMA,
 				minPeakValue,
 				true );
+		if ( executorService != null )
+			DOG.setExecutorService( executorService );
 		final ArrayList< RefinedPeak< Point > > refinedPeaksSource = DOG.getSubpixelPeaks();
 		System.out.println( "found " + refinedPeaksSource.size() + " peaks" );
 
@@ -215,15 +272,62 @@ public class Data
 			final RealPoint sp = new RealPoint( 3 );
 			sourceToGlobal.apply( p, sp );
 			detections.add( sp );
+			detectionResponses.add( Math.abs( p.getValue() ) );
 		}
 	}
 
 	public void fitEllipsoid( final int numRandomSamples, final double outsideCutoffDistance, final double insideCutoffDistance )
 	{
-		ellipsoid = SampleEllipsoids.sample( detections, numRandomSamples, outsideCutoffDistance, insideCutoffDistance );
+		fitEllipsoid( numRandomSamples, outsideCutoffDistance, insideCutoffDistance, SamplingOptions.options() );
 	}
 
-	public void project(
+	/**
+	 * Fit an ellipsoid to the detections. If no ellipsoid can be fitted (for
+	 * example, because there are too few detections, or too few inliers of
+	 * the best hypothesis), an error is printed and {@link #getEllipsoid()}
+	 * is {@code null} afterwards.
+	 */
+	public void fitEllipsoid( final int numRandomSamples, final double outsideCutoffDistance, final double insideCutoffDistance, final SamplingOptions options )
+	{
+		ellipsoid = null;
+		inlierCache = null;
+		try
+		{
+			final Ellipsoid hypothesis = SampleEllipsoids.sampleHypothesis( detections, detectionResponses.toArray(), numRandomSamples, outsideCutoffDistance, insideCutoffDistance, options );
+			if ( hypothesis == null )
+				return;
+			final InlierCache cache = new InlierCache( hypothesis, detections );
+			ellipsoid = SampleEllipsoids.refit( cache, outsideCutoffDistance, insideCutoffDistance, options );
+			inlierCache = cache;
+		}
+		catch ( final IllegalArgumentException | ArithmeticException e )
+		{
+			System.err.println( "Error: no ellipsoid could be fitted: " + e.getMessage() );
+		}
+	}
+
+	/**
+	 * Whether {@link #refitEllipsoid(double, double, SamplingOptions)} is
+	 * possible, that is, whether an ellipsoid has been fitted to the current
+	 * detections.
+	 */
+	public boolean canRefitEllipsoid()
+	{
+		return inlierCache != null;
+	}
+
+	/**
+	 * Refit the ellipsoid to the inliers of the last RANSAC hypothesis for
+	 * different cutoff distances, without sampling again. Distances of the
+	 * detections to the hypothesis are cached, so this is fast enough to
+	 * follow interactive changes.
+	 */
+	public void refitEllipsoid( final double outsideCutoffDistance, final double insideCutoffDistance, final SamplingOptions options )
+	{
+		ellipsoid = SampleEllipsoids.refit( inlierCache, outsideCutoffDistance, insideCutoffDistance, options );
+	}
+
+	public EllipsoidProjection createProjection(
 			final int width,
 			final int height,
 			final double minProjectDistance,
@@ -233,29 +337,44 @@ public class Data
 			final int maxTimepoint,
 			final boolean flipZ,
 			final boolean alignY,
-			final boolean isMethodCylindrical )
+			final boolean isMethodCylindrical,
+			final ProjectionOptions options )
 	{
+		final ArrayList< Source< UnsignedShortType > > sources = new ArrayList< Source< UnsignedShortType > >();
+		for ( final int i : projectionSourceIndices )
+			sources.add( getDoGSource( i ) );
+
 		if ( isMethodCylindrical )
-		{
-			for ( final int i : projectionSourceIndices )
-			{
-				final CylindricalProjection proj = new CylindricalProjection(
-						ellipsoid, width, height, minProjectDistance, maxProjectDistance,
-						sliceDistance, minTimepoint, maxTimepoint, flipZ, alignY,
-						getDoGSource( i ) );
-				proj.project();
-			}
-		}
+			return new CylindricalProjection(
+					ellipsoid, width, height, minProjectDistance, maxProjectDistance,
+					sliceDistance, minTimepoint, maxTimepoint, flipZ, alignY,
+					sources, options );
 		else
-		{
-			for ( final int i : projectionSourceIndices )
-			{
-				final SphericalProjection proj = new SphericalProjection(
-						ellipsoid, width, height, minProjectDistance, maxProjectDistance,
-						sliceDistance, minTimepoint, maxTimepoint, flipZ, alignY,
-						getDoGSource( i ) );
-				proj.project();
-			}
-		}
+			return new SphericalProjection(
+					ellipsoid, width, height, minProjectDistance, maxProjectDistance,
+					sliceDistance, minTimepoint, maxTimepoint, flipZ, alignY,
+					sources, options );
+	}
+
+	public void project(
+			final int width,
+			final int height,
+			final double minProjectDistance,
+			final double maxProjectDistance,
+			final double sliceDistance,
+			final int minTimepoint,
+			final int maxTimepoint,
+			final boolean flipZ,
+			final boolean alignY,
+			final boolean isMethodCylindrical,
+			final ProjectionOptions options )
+	{
+		createProjection( width, height, minProjectDistance, maxProjectDistance, sliceDistance,
+				minTimepoint, maxTimepoint, flipZ, alignY, isMethodCylindrical, options ).project();
+	}
+
+	public int numProjectionSources()
+	{
+		return projectionSourceIndices.size();
 	}
 }
@@ -36,9 +36,8 @@ import net.imglib2.RealRandomAccessible;
 import net.imglib2.realtransform.AffineTransform3D;
 import net.imglib2.type.numeric.integer.UnsignedShortType;
 import bdv.util.RealRandomAccessibleSource;
-import de.mpicbg.ovaries.ellipsoid.DistPointHyperEllipsoid;
+import de.mpicbg.ovaries.ellipsoid.DistPointEllipsoid;
 import de.mpicbg.ovaries.ellipsoid.Ellipsoid;
-import de.mpicbg.ovaries.ellipsoid.DistPointHyperEllipsoid.Result;
 
 public class EllipsoidDistanceSource extends RealRandomAccessibleSource< UnsignedShortType >
 {
@@ -119,10 +118,13 @@ public class EllipsoidDistanceSource extends RealRandomAccessibleSource< Unsigne
 
 			private final Ellipsoid ellipsoid;
 
+			private final DistPointEllipsoid distance;
+
 			public Access( final Ellipsoid ellipsoid )
 			{
 				super( EllipsoidDistanceRealRandomAccessible.this.n );
 				this.ellipsoid = ellipsoid;
+				distance = ellipsoid == null ? null : new DistPointEllipsoid( ellipsoid );
 				type = new UnsignedShortType();
 				type.setZero();
 			}
@@ -133,6 +135,7 @@ public class EllipsoidDistanceSource extends RealRandomAccessibleSource< Unsigne
 				type = new UnsignedShortType();
 				type.setZero();
 				ellipsoid = a.ellipsoid;
+				distance = a.distance;
 			}
 
 			@Override
@@ -140,8 +143,7 @@ public class EllipsoidDistanceSource extends RealRandomAccessibleSource< Unsigne
 			{
 				if ( ellipsoid != null )
 				{
-					final Result result = DistPointHyperEllipsoid.distPointHyperEllipsoid( this, ellipsoid );
-					final double dist = ellipsoid.contains( this ) ? -result.distance : result.distance;
+					final double dist = distance.signedDistance( position[ 0 ], position[ 1 ], position[ 2 ] );
 					if ( dist >= minProjectionDistance && dist <= maxProjectionDistance )
 						type.set( 1000 );
 					else
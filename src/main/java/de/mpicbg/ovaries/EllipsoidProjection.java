@@ -0,0 +1,955 @@
+/*-
+ * #%L
+ * Ellipsoid Surface Projection
+ * %%
+ * Copyright (C) 2016 - 2018 Tobias Pietzsch
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.mpicbg.ovaries;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import bdv.util.Affine3DHelpers;
+import bdv.viewer.Interpolation;
+import bdv.viewer.Source;
+import de.mpicbg.ovaries.ellipsoid.Ellipsoid;
+import ij.IJ;
+import ij.ImagePlus;
+
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessible;
+import net.imglib2.RealRandomAccess;
+import net.imglib2.RealRandomAccessible;
+import net.imglib2.exception.ImgLibException;
+import net.imglib2.img.imageplus.FloatImagePlus;
+import net.imglib2.img.imageplus.ImagePlusImgs;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.realtransform.RealViews;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.LinAlgHelpers;
+import net.imglib2.view.Views;
+
+/**
+ * Projection of the neighbourhood of an {@link Ellipsoid} surface onto a 2D
+ * map. Subclasses define the map, i.e., the direction from the ellipsoid
+ * center that corresponds to each output pixel.
+ *
+ * <p>
+ * All sources (channels) are projected in the same traversal, so the surface
+ * geometry is computed only once per output sample. The result is a
+ * multi-channel hyperstack.
+ *
+ * <p>
+ * Each plane is split into tiles of rows which are computed in parallel, each
+ * worker using its own {@link RealRandomAccess} into the source.
+ */
+public abstract class EllipsoidProjection
+{
+	protected final Ellipsoid ellipsoid;
+
+	protected final int width;
+
+	protected final int height;
+
+	protected final List< Source< UnsignedShortType > > sources;
+
+	protected final double[][] cylAxes;
+
+	protected final double minProjectDistance;
+
+	protected final double maxProjectDistance;
+
+	protected final double sliceDistance;
+
+	protected final int minTimepoint;
+
+	protected final int maxTimepoint;
+
+	protected final ProjectionOptions options;
+
+	private double outputPixelSpacing = Double.NaN;
+
+	protected EllipsoidProjection(
+			final Ellipsoid ellipsoid,
+			final int width,
+			final int height,
+			final double minProjectDistance,
+			final double maxProjectDistance,
+			final double sliceDistance,
+			final int minTimepoint,
+			final int maxTimepoint,
+			final boolean flipZ,
+			final boolean alignY,
+			final List< Source< UnsignedShortType > > sources,
+			final ProjectionOptions options )
+	{
+		this.ellipsoid = ellipsoid;
+		this.width = width;
+		this.height = height;
+		this.minProjectDistance = minProjectDistance;
+		this.maxProjectDistance = maxProjectDistance;
+		this.sliceDistance = sliceDistance;
+		this.minTimepoint = minTimepoint;
+		this.maxTimepoint = maxTimepoint;
+		this.sources = sources;
+		this.options = options;
+		this.cylAxes = SphericalProjection.getCylinderAxes( ellipsoid, flipZ, alignY );
+	}
+
+	/**
+	 * Get the direction (in the coordinate frame given by {@code cylAxes})
+	 * from the ellipsoid center that is projected to output pixel
+	 * {@code (xpi, ypi)}. The direction need not be normalized.
+	 *
+	 * @param tmp
+	 *            scratch array of length 3, owned by the calling worker.
+	 */
+	protected abstract void getDirection( final int xpi, final int ypi, final double[] tmp, final double[] direction );
+
+	protected abstract String getName();
+
+	public int numChannels()
+	{
+		return sources.size();
+	}
+
+	public int getDepth()
+	{
+		return ( int ) Math.ceil( ( maxProjectDistance - minProjectDistance ) / sliceDistance ) + 1;
+	}
+
+	/**
+	 * Get the number of output planes. This is {@link #getDepth()}, or 1 if a
+	 * {@link ProjectionOptions#reduction(ProjectionReduction) reduction} is
+	 * set.
+	 */
+	public int getOutputDepth()
+	{
+		return options.getReduction() == null ? getDepth() : 1;
+	}
+
+	/**
+	 * Project all sources and timepoints. If a
+	 * {@link ProjectionOptions#writer(ProjectionWriter) writer} is set, each
+	 * timepoint is handed to the writer as soon as it is finished and then
+	 * released. Otherwise, the result is shown as one hyperstack.
+	 *
+	 * @return the projected hyperstack, or {@code null} if the result was
+	 *         streamed to a writer.
+	 */
+	public ImagePlus project()
+	{
+		final StringBuilder sb = new StringBuilder( "\n\n" + getName() + "\n" );
+		for ( final Source< UnsignedShortType > source : sources )
+			sb.append( "source = " + source.getName() + "\n");
+		sb.append( "Ellipsoid = " + ellipsoid + "\n");
+		sb.append( "cylAxes = " + LinAlgHelpers.toString( cylAxes ) + "\n");
+		sb.append( "width = " + width + "\n");
+		sb.append( "height = " + height + "\n");
+		sb.append( "minProjectDistance = " + minProjectDistance + "\n");
+		sb.append( "maxProjectDistance = " + maxProjectDistance + "\n");
+		sb.append( "sliceDistance = " + sliceDistance + "\n");
+		sb.append( "minTimepoint = " + minTimepoint + "\n");
+		sb.append( "maxTimepoint = " + maxTimepoint + "\n");
+		sb.append( "numThreads = " + options.getNumThreads() + "\n");
+		sb.append( "pixelMajor = " + options.isPixelMajor() + "\n");
+		sb.append( "mipmapLevel = " + ( options.getMipmapLevel() < 0 ? "auto" : options.getMipmapLevel() ) + "\n");
+		sb.append( "planCache = " + options.getPlanCache() + "\n");
+		sb.append( "writer = " + options.getWriter() + "\n");
+		sb.append( "reduction = " + options.getReduction() + "\n\n\n");
+		IJ.log( sb.toString() );
+		ImagePlus imp = null;
+		try
+		{
+			final int numChannels = numChannels();
+			final int depth = getOutputDepth();
+			final int numTimepoints = maxTimepoint - minTimepoint + 1;
+			final ProjectionWriter writer = options.getWriter();
+			if ( writer != null )
+			{
+				for ( int t = 0; t < numTimepoints; ++t )
+				{
+					final FloatImagePlus< FloatType > floats = ImagePlusImgs.floats( width, height, numChannels, depth );
+					projectTimepoint( t + minTimepoint, floats );
+					final ImagePlus timepointImp = floats.getImagePlus();
+					timepointImp.setDimensions( numChannels, depth, 1 );
+					timepointImp.setTitle( String.format( "%s-t%05d", getName(), t + minTimepoint ) );
+					writer.write( t + minTimepoint, timepointImp );
+				}
+			}
+			else
+			{
+				final FloatImagePlus< FloatType > floats = ImagePlusImgs.floats( width, height, numChannels, depth, numTimepoints );
+				imp = floats.getImagePlus();
+				imp.setDimensions( numChannels, depth, numTimepoints );
+				imp.setOpenAsHyperStack( true );
+				imp.show();
+
+				for ( int t = 0; t < numTimepoints; ++t )
+					projectTimepoint( t + minTimepoint, Views.hyperSlice( floats, 4, t ) );
+			}
+		}
+		catch ( final ImgLibException e )
+		{}
+		catch ( final IOException e )
+		{
+			throw new RuntimeException( e );
+		}
+		return imp;
+	}
+
+	/**
+	 * Project all sources and planes of timepoint {@code t}.
+	 *
+	 * @param hyperstack
+	 *            output, indexed by {@code (x, y, c, z)}. If a
+	 *            {@link ProjectionOptions#reduction(ProjectionReduction)
+	 *            reduction} is set, only plane {@code z = 0} is written.
+	 */
+	public void projectTimepoint( final int t, final RandomAccessible< FloatType > hyperstack )
+	{
+		final int numChannels = numChannels();
+		final int depth = getDepth();
+
+		// (x, y, z) stack for each channel
+		final ArrayList< RandomAccessible< FloatType > > stacks = new ArrayList< RandomAccessible< FloatType > >();
+		for ( int c = 0; c < numChannels; ++c )
+			stacks.add( Views.hyperSlice( hyperstack, 2, c ) );
+
+		if ( options.getPlanCache() != null )
+		{
+			final List< ProjectionPlan > plans = getPlans( t );
+			if ( plans != null )
+			{
+				projectTimepoint( plans, t, stacks );
+				return;
+			}
+		}
+		if ( options.isPixelMajor() || options.getReduction() != null )
+		{
+			projectTimepoint( t, depth, stacks );
+			return;
+		}
+		for ( int z = 0; z < depth; ++z )
+		{
+			final double distance = minProjectDistance + z * sliceDistance;
+			final ArrayList< RandomAccessible< FloatType > > planes = new ArrayList< RandomAccessible< FloatType > >();
+			for ( final RandomAccessible< FloatType > stack : stacks )
+				planes.add( Views.hyperSlice( stack, 2, z ) );
+			projectPlane( distance, t, planes );
+		}
+	}
+
+	public void projectPlane( final double distance, final int t, final RandomAccessible< FloatType > plane )
+	{
+		projectPlane( distance, t, Collections.singletonList( plane ) );
+	}
+
+	/**
+	 * Project the plane at the given distance from the ellipsoid surface for
+	 * all sources.
+	 *
+	 * @param planes
+	 *            output, one {@code (x, y)} plane for each source.
+	 */
+	public void projectPlane( final double distance, final int t, final List< ? extends RandomAccessible< FloatType > > planes )
+	{
+		final int numChannels = checkNumChannels( planes );
+		final ArrayList< RealRandomAccessible< UnsignedShortType > > ins = new ArrayList< RealRandomAccessible< UnsignedShortType > >();
+		for ( int c = 0; c < numChannels; ++c )
+		{
+			final Source< UnsignedShortType > source = sources.get( c );
+			final int level = getMipmapLevel( t, c );
+			final AffineTransform3D transform = new AffineTransform3D();
+			source.getSourceTransform( t, level, transform );
+			ins.add( RealViews.affineReal( source.getInterpolatedSource( t, level, Interpolation.NLINEAR ), transform ) );
+		}
+
+		final long t0 = System.currentTimeMillis();
+		runRowTiles( new RowTileTask()
+		{
+			@Override
+			public void run( final int minY, final int maxY )
+			{
+				final ArrayList< RealRandomAccess< UnsignedShortType > > in = new ArrayList< RealRandomAccess< UnsignedShortType > >();
+				final ArrayList< RandomAccess< FloatType > > out = new ArrayList< RandomAccess< FloatType > >();
+				for ( int c = 0; c < numChannels; ++c )
+				{
+					in.add( ins.get( c ).realRandomAccess() );
+					out.add( planes.get( c ).randomAccess() );
+				}
+				projectRows( distance, in, out, minY, maxY );
+			}
+		} );
+		final long t1 = System.currentTimeMillis();
+		System.out.println( (t1 - t0) + " ms" );
+	}
+
+	/**
+	 * Project all {@code depth} planes of timepoint {@code t}, traversing the
+	 * output pixel-major. For each output pixel, the surface point and normal
+	 * are computed once. Then the depth samples are taken by stepping along the
+	 * normal in source voxel coordinates.
+	 *
+	 * @param stacks
+	 *            output, one {@code (x, y, z)} stack for each source.
+	 */
+	public void projectTimepoint( final int t, final int depth, final List< ? extends RandomAccessible< FloatType > > stacks )
+	{
+		final int numChannels = checkNumChannels( stacks );
+		final int[] levels = new int[ numChannels ];
+		final ArrayList< AffineTransform3D > globalToSource = new ArrayList< AffineTransform3D >();
+		for ( int c = 0; c < numChannels; ++c )
+		{
+			levels[ c ] = getMipmapLevel( t, c );
+			globalToSource.add( getGlobalToSource( t, c, levels[ c ] ) );
+		}
+
+		final long t0 = System.currentTimeMillis();
+		runRowTiles( new RowTileTask()
+		{
+			@Override
+			public void run( final int minY, final int maxY )
+			{
+				final ArrayList< VoxelSampler > in = new ArrayList< VoxelSampler >();
+				final ArrayList< RandomAccess< FloatType > > out = new ArrayList< RandomAccess< FloatType > >();
+				for ( int c = 0; c < numChannels; ++c )
+				{
+					in.add( createSampler( t, c, levels[ c ] ) );
+					out.add( stacks.get( c ).randomAccess() );
+				}
+				projectRowsPixelMajor( globalToSource, depth, in, out, minY, maxY );
+			}
+		} );
+		final long t1 = System.currentTimeMillis();
+		System.out.println( (t1 - t0) + " ms" );
+	}
+
+	/**
+	 * Project all planes of timepoint {@code t} by gathering the samples
+	 * listed in compiled {@link ProjectionPlan}s.
+	 *
+	 * @param plans
+	 *            one plan for each source. (Sources with the same transform
+	 *            share the same plan.)
+	 * @param stacks
+	 *            output, one {@code (x, y, z)} stack for each source.
+	 */
+	public void projectTimepoint( final List< ProjectionPlan > plans, final int t, final List< ? extends RandomAccessible< FloatType > > stacks )
+	{
+		final int numChannels = checkNumChannels( stacks );
+		final int[] levels = new int[ numChannels ];
+		for ( int c = 0; c < numChannels; ++c )
+			levels[ c ] = getMipmapLevel( t, c );
+
+		final long t0 = System.currentTimeMillis();
+		runRowTiles( new RowTileTask()
+		{
+			@Override
+			public void run( final int minY, final int maxY )
+			{
+				for ( int c = 0; c < numChannels; ++c )
+				{
+					final ProjectionPlan plan = plans.get( c );
+					final TrilinearSampler in = new TrilinearSampler( sources.get( c ).getSource( t, levels[ c ] ) );
+					final RandomAccess< FloatType > out = stacks.get( c ).randomAccess();
+					final int depth = plan.getDepth();
+					final float[] values = new float[ depth ];
+					for ( int ypi = minY; ypi < maxY; ++ypi )
+					{
+						out.setPosition( ypi, 1 );
+						for ( int xpi = 0; xpi < width; ++xpi )
+						{
+							out.setPosition( xpi, 0 );
+							final int i = plan.index( xpi, ypi, 0 );
+							for ( int z = 0; z < depth; ++z )
+								values[ z ] = ( float ) plan.sample( i + z, in );
+							writeRay( values, depth, out );
+						}
+					}
+				}
+			}
+		} );
+		final long t1 = System.currentTimeMillis();
+		System.out.println( (t1 - t0) + " ms" );
+	}
+
+	/**
+	 * Project a block of the output of source {@code c} at timepoint
+	 * {@code t}, on the calling thread. This is used for lazy evaluation by
+	 * {@link ProjectionSource}. The full depth stack is computed, i.e.,
+	 * {@link ProjectionOptions#reduction(ProjectionReduction) reductions} are
+	 * not applied.
+	 *
+	 * @param min
+	 *            minimum {@code (x, y, z)} of the block.
+	 * @param size
+	 *            size of the block.
+	 * @param data
+	 *            output, indexed by {@code x + size[0] * (y + size[1] * z)}.
+	 */
+	public void projectBlock( final int t, final int c, final long[] min, final int[] size, final float[] data )
+	{
+		final int level = getMipmapLevel( t, c );
+		final AffineTransform3D globalToSource = getGlobalToSource( t, c, level );
+		final VoxelSampler in = createSampler( t, c, level );
+		final Ray ray = new Ray();
+		for ( int y = 0; y < size[ 1 ]; ++y )
+		{
+			for ( int x = 0; x < size[ 0 ]; ++x )
+			{
+				ray.setPixel( ( int ) min[ 0 ] + x, ( int ) min[ 1 ] + y );
+				ray.toSource( globalToSource );
+				for ( int z = 0; z < size[ 2 ]; ++z )
+				{
+					data[ x + size[ 0 ] * ( y + size[ 1 ] * z ) ] = ( float ) in.sample( ray.getPosition( ( int ) min[ 2 ] + z ) );
+				}
+			}
+		}
+	}
+
+	/**
+	 * Create a {@link VoxelSampler} for source {@code c} at timepoint
+	 * {@code t} and resolution level {@code level}, taking samples in source voxel coordinates. Depending on
+	 * {@link ProjectionOptions#isDirectSampling()}, this reads voxels directly
+	 * from the source image storage or goes through the interpolated source.
+	 * Samplers are not thread-safe, so each worker must create its own.
+	 */
+	protected VoxelSampler createSampler( final int t, final int c, final int level )
+	{
+		final Source< UnsignedShortType > source = sources.get( c );
+		if ( options.isDirectSampling() )
+			return new TrilinearSampler( source.getSource( t, level ) );
+		else
+			return new VoxelSampler.Interpolated( source.getInterpolatedSource( t, level, Interpolation.NLINEAR ).realRandomAccess() );
+	}
+
+	/**
+	 * Get the resolution level of source {@code c} to read at timepoint
+	 * {@code t}. This is the {@link ProjectionOptions#mipmapLevel(int)
+	 * override} if set. Otherwise, it is the coarsest level whose voxels are
+	 * not larger than the sample spacing of the projection, i.e., the smaller
+	 * of {@link #getOutputPixelSpacing()} and the slice distance.
+	 */
+	public int getMipmapLevel( final int t, final int c )
+	{
+		final Source< UnsignedShortType > source = sources.get( c );
+		final int numLevels = source.getNumMipmapLevels();
+		if ( options.getMipmapLevel() >= 0 )
+			return Math.min( options.getMipmapLevel(), numLevels - 1 );
+
+		final double spacing = Math.min( getOutputPixelSpacing(), sliceDistance );
+		final AffineTransform3D sourceToGlobal = new AffineTransform3D();
+		int level = 0;
+		for ( int l = 1; l < numLevels; ++l )
+		{
+			source.getSourceTransform( t, l, sourceToGlobal );
+			double voxelSize = 0;
+			for ( int d = 0; d < 3; ++d )
+				voxelSize = Math.max( voxelSize, Affine3DHelpers.extractScale( sourceToGlobal, d ) );
+			if ( voxelSize > spacing )
+				break;
+			level = l;
+		}
+		return level;
+	}
+
+	/**
+	 * Get the typical (median) distance between the samples of neighbouring
+	 * output pixels, at the minimum projection distance from the ellipsoid
+	 * surface. This is estimated from a coarse grid of output pixels and
+	 * computed only once.
+	 */
+	public synchronized double getOutputPixelSpacing()
+	{
+		if ( Double.isNaN( outputPixelSpacing ) )
+		{
+			final int n = 16;
+			final double[] spacings = new double[ 2 * n * n ];
+			int numSpacings = 0;
+			final double[] tmp = new double[ 3 ];
+			final double[] direction = new double[ 3 ];
+			final double[] pe = new double[ 3 ];
+			final double[] ne = new double[ 3 ];
+			final double[] p = new double[ 3 ];
+			final double[] q = new double[ 3 ];
+			for ( int yi = 0; yi < n; ++yi )
+			{
+				final int ypi = yi * ( height - 1 ) / n;
+				for ( int xi = 0; xi < n; ++xi )
+				{
+					final int xpi = xi * ( width - 1 ) / n;
+					getSurfacePointAndNormal( xpi, ypi, tmp, direction, pe, ne );
+					LinAlgHelpers.scale( ne, minProjectDistance, p );
+					LinAlgHelpers.add( pe, p, p );
+					if ( xpi + 1 < width )
+					{
+						getSurfacePointAndNormal( xpi + 1, ypi, tmp, direction, pe, ne );
+						LinAlgHelpers.scale( ne, minProjectDistance, q );
+						LinAlgHelpers.add( pe, q, q );
+						spacings[ numSpacings++ ] = LinAlgHelpers.distance( p, q );
+					}
+					if ( ypi + 1 < height )
+					{
+						getSurfacePointAndNormal( xpi, ypi + 1, tmp, direction, pe, ne );
+						LinAlgHelpers.scale( ne, minProjectDistance, q );
+						LinAlgHelpers.add( pe, q, q );
+						spacings[ numSpacings++ ] = LinAlgHelpers.distance( p, q );
+					}
+				}
+			}
+			if ( numSpacings == 0 )
+				outputPixelSpacing = sliceDistance;
+			else
+			{
+				Arrays.sort( spacings, 0, numSpacings );
+				outputPixelSpacing = spacings[ numSpacings / 2 ];
+			}
+		}
+		return outputPixelSpacing;
+	}
+
+	/**
+	 * Get the {@link ProjectionPlan}s for all sources at timepoint {@code t}.
+	 *
+	 * @return the plans, or {@code null} if a plan would not fit into the
+	 *         cache or has too many samples to be compiled.
+	 */
+	public List< ProjectionPlan > getPlans( final int t )
+	{
+		final ArrayList< ProjectionPlan > plans = new ArrayList< ProjectionPlan >();
+		for ( int c = 0; c < numChannels(); ++c )
+		{
+			final ProjectionPlan plan = getPlan( t, c );
+			if ( plan == null )
+				return null;
+			plans.add( plan );
+		}
+		return plans;
+	}
+
+	/**
+	 * Get the {@link ProjectionPlan} for source {@code c} at timepoint
+	 * {@code t} from the {@link ProjectionOptions#getPlanCache() plan cache},
+	 * compiling it if necessary.
+	 *
+	 * @return the plan, or {@code null} if the plan would not fit into the
+	 *         cache or has too many samples to be compiled.
+	 */
+	public ProjectionPlan getPlan( final int t, final int c )
+	{
+		final ProjectionPlanCache cache = options.getPlanCache();
+		final int depth = getDepth();
+		if ( !ProjectionPlan.canCompile( width, height, depth ) || !cache.fits( ProjectionPlan.sizeInBytes( width, height, depth ) ) )
+			return null;
+
+		final AffineTransform3D globalToSource = getGlobalToSource( t, c, getMipmapLevel( t, c ) );
+		final ProjectionPlanCache.Key key = new ProjectionPlanCache.Key( getName(), getPlanParameters( globalToSource, depth ) );
+		ProjectionPlan plan = cache.get( key );
+		if ( plan == null )
+		{
+			plan = compilePlan( globalToSource, depth );
+			cache.put( key, plan );
+		}
+		return plan;
+	}
+
+	/**
+	 * Compile the {@link ProjectionPlan} for the given source transform, i.e.,
+	 * compute voxel positions of all samples along the surface normals.
+	 */
+	public ProjectionPlan compilePlan( final AffineTransform3D globalToSource, final int depth )
+	{
+		final ProjectionPlan plan = new ProjectionPlan( width, height, depth );
+		runRowTiles( new RowTileTask()
+		{
+			@Override
+			public void run( final int minY, final int maxY )
+			{
+				final Ray ray = new Ray();
+				for ( int ypi = minY; ypi < maxY; ++ypi )
+				{
+					for ( int xpi = 0; xpi < width; ++xpi )
+					{
+						ray.setPixel( xpi, ypi );
+						ray.toSource( globalToSource );
+						final int i = plan.index( xpi, ypi, 0 );
+						for ( int z = 0; z < depth; ++z )
+							plan.set( i + z, ray.getPosition( z ) );
+					}
+				}
+			}
+		} );
+		return plan;
+	}
+
+	/**
+	 * Everything that determines the sample positions of a
+	 * {@link ProjectionPlan}.
+	 */
+	private double[] getPlanParameters( final AffineTransform3D globalToSource, final int depth )
+	{
+		final double[] parameters = new double[ 5 + 3 + 9 + 9 + 12 ];
+		int i = 0;
+		parameters[ i++ ] = width;
+		parameters[ i++ ] = height;
+		parameters[ i++ ] = depth;
+		parameters[ i++ ] = minProjectDistance;
+		parameters[ i++ ] = sliceDistance;
+		for ( final double c : ellipsoid.getCenter() )
+			parameters[ i++ ] = c;
+		for ( final double[] row : ellipsoid.getPrecision() )
+			for ( final double v : row )
+				parameters[ i++ ] = v;
+		for ( final double[] row : cylAxes )
+			for ( final double v : row )
+				parameters[ i++ ] = v;
+		for ( final double v : globalToSource.getRowPackedCopy() )
+			parameters[ i++ ] = v;
+		return parameters;
+	}
+
+	protected AffineTransform3D getGlobalToSource( final int t, final int c, final int level )
+	{
+		final AffineTransform3D sourceToGlobal = new AffineTransform3D();
+		sources.get( c ).getSourceTransform( t, level, sourceToGlobal );
+		return sourceToGlobal.inverse();
+	}
+
+	private int checkNumChannels( final List< ? > outputs )
+	{
+		if ( outputs.size() != sources.size() )
+			throw new IllegalArgumentException( "Expected one output for each of the " + sources.size() + " sources, got " + outputs.size() );
+		return outputs.size();
+	}
+
+	/**
+	 * Compute the point {@code pe} on the ellipsoid surface that is projected
+	 * to output pixel {@code (xpi, ypi)}, and the unit surface normal
+	 * {@code ne} at that point.
+	 */
+	protected void getSurfacePointAndNormal(
+			final int xpi,
+			final int ypi,
+			final double[] tmp,
+			final double[] direction,
+			final double[] pe,
+			final double[] ne )
+	{
+		getDirection( xpi, ypi, tmp, direction );
+		LinAlgHelpers.multT( cylAxes, direction, tmp );
+		LinAlgHelpers.normalize( tmp );
+
+		LinAlgHelpers.mult( ellipsoid.getPrecision(), tmp, ne );
+		LinAlgHelpers.scale( tmp, Math.sqrt( 1.0 / LinAlgHelpers.dot( tmp, ne ) ), pe );
+		LinAlgHelpers.mult( ellipsoid.getPrecision(), pe, ne );
+		LinAlgHelpers.normalize( ne );
+		LinAlgHelpers.add( pe, ellipsoid.getCenter(), pe );
+	}
+
+	/**
+	 * The samples along the surface normal of one output pixel. Holds the
+	 * scratch arrays of one worker.
+	 */
+	protected class Ray
+	{
+		private final double[] tmp = new double[ 3 ];
+
+		private final double[] direction = new double[ 3 ];
+
+		// point on ellipsoid
+		private final double[] pe = new double[ 3 ];
+
+		// unit normal at pe
+		private final double[] ne = new double[ 3 ];
+
+		// first sample along the normal, in source voxel coordinates
+		private final double[] p0 = new double[ 3 ];
+
+		// step between samples along the normal, in source voxel coordinates
+		private final double[] step = new double[ 3 ];
+
+		private final double[] p = new double[ 3 ];
+
+		/**
+		 * Compute surface point and normal for output pixel {@code (xpi, ypi)}.
+		 */
+		public void setPixel( final int xpi, final int ypi )
+		{
+			getSurfacePointAndNormal( xpi, ypi, tmp, direction, pe, ne );
+		}
+
+		/**
+		 * Compute first sample and step in the voxel coordinates of a source.
+		 */
+		public void toSource( final AffineTransform3D globalToSource )
+		{
+			for ( int d = 0; d < 3; ++d )
+				p[ d ] = pe[ d ] + minProjectDistance * ne[ d ];
+			globalToSource.apply( p, p0 );
+			for ( int r = 0; r < 3; ++r )
+				step[ r ] = sliceDistance * (
+						globalToSource.get( r, 0 ) * ne[ 0 ] +
+						globalToSource.get( r, 1 ) * ne[ 1 ] +
+						globalToSource.get( r, 2 ) * ne[ 2 ] );
+		}
+
+		/**
+		 * Get the position of sample {@code z} in source voxel coordinates.
+		 * The returned array is reused by subsequent calls.
+		 */
+		public double[] getPosition( final int z )
+		{
+			for ( int d = 0; d < 3; ++d )
+				p[ d ] = p0[ d ] + z * step[ d ];
+			return p;
+		}
+	}
+
+	private void projectRowsPixelMajor(
+			final List< AffineTransform3D > globalToSource,
+			final int depth,
+			final List< VoxelSampler > ins,
+			final List< RandomAccess< FloatType > > outs,
+			final int minY,
+			final int maxY )
+	{
+		final int numChannels = ins.size();
+		final Ray ray = new Ray();
+		final float[] values = new float[ depth ];
+		for ( int ypi = minY; ypi < maxY; ++ypi )
+		{
+			for ( int xpi = 0; xpi < width; ++xpi )
+			{
+				ray.setPixel( xpi, ypi );
+				for ( int c = 0; c < numChannels; ++c )
+				{
+					final VoxelSampler in = ins.get( c );
+					final RandomAccess< FloatType > out = outs.get( c );
+					out.setPosition( xpi, 0 );
+					out.setPosition( ypi, 1 );
+					ray.toSource( globalToSource.get( c ) );
+					for ( int z = 0; z < depth; ++z )
+						values[ z ] = ( float ) in.sample( ray.getPosition( z ) );
+					writeRay( values, depth, out );
+				}
+			}
+		}
+	}
+
+	/**
+	 * Write the samples along the normal of one output pixel. If a
+	 * {@link ProjectionOptions#reduction(ProjectionReduction) reduction} is
+	 * set, the reduced value is written to plane 0. Otherwise,
+	 * {@code values[z]} is written to plane {@code z}.
+	 *
+	 * @param out
+	 *            output access, positioned at the output pixel.
+	 */
+	private void writeRay( final float[] values, final int depth, final RandomAccess< FloatType > out )
+	{
+		final ProjectionReduction reduction = options.getReduction();
+		if ( reduction != null )
+		{
+			out.setPosition( 0, 2 );
+			out.get().set( reduction.reduce( values, depth, minProjectDistance, sliceDistance ) );
+		}
+		else
+		{
+			for ( int z = 0; z < depth; ++z )
+			{
+				out.setPosition( z, 2 );
+				out.get().set( values[ z ] );
+			}
+		}
+	}
+
+	/**
+	 * Project rows {@code minY} (inclusive) to {@code maxY} (exclusive) of a
+	 * plane at the given distance from the ellipsoid surface.
+	 */
+	private void projectRows(
+			final double distance,
+			final List< RealRandomAccess< UnsignedShortType > > ins,
+			final List< RandomAccess< FloatType > > outs,
+			final int minY,
+			final int maxY )
+	{
+		final int numChannels = ins.size();
+		final double[] tmp = new double[ 3 ];
+		final double[] direction = new double[ 3 ];
+		// point on ellipsoid
+		final double[] pe = new double[ 3 ];
+		// unit normal at pe
+		final double[] ne = new double[ 3 ];
+
+		for ( int ypi = minY; ypi < maxY; ++ypi )
+		{
+			for ( int xpi = 0; xpi < width; ++xpi )
+			{
+				getSurfacePointAndNormal( xpi, ypi, tmp, direction, pe, ne );
+
+				LinAlgHelpers.scale( ne, distance, ne );
+				LinAlgHelpers.add( pe, ne, pe );
+				for ( int c = 0; c < numChannels; ++c )
+				{
+					final RealRandomAccess< UnsignedShortType > in = ins.get( c );
+					final RandomAccess< FloatType > out = outs.get( c );
+					in.setPosition( pe );
+					final double v = in.get().getRealDouble();
+					out.setPosition( xpi, 0 );
+					out.setPosition( ypi, 1 );
+					out.get().setReal( v );
+				}
+			}
+		}
+	}
+
+	/**
+	 * Work on the output rows {@code minY} (inclusive) to {@code maxY}
+	 * (exclusive).
+	 */
+	protected interface RowTileTask
+	{
+		void run( final int minY, final int maxY );
+	}
+
+	/**
+	 * Split the output rows into tiles and run {@code task} on the tiles with
+	 * {@link ProjectionOptions#getNumThreads()} workers. Blocks until all
+	 * tiles are finished.
+	 */
+	protected void runRowTiles( final RowTileTask task )
+	{
+		final int numTiles = Math.min( height, 4 * options.getNumThreads() );
+		final int numWorkers = Math.max( 1, Math.min( options.getNumThreads(), numTiles ) );
+		final AtomicInteger nextTile = new AtomicInteger();
+		final ArrayList< Callable< Void > > tasks = new ArrayList< Callable< Void > >();
+		for ( int w = 0; w < numWorkers; ++w )
+		{
+			tasks.add( new Callable< Void >()
+			{
+				@Override
+				public Void call() throws Exception
+				{
+					for ( int i = nextTile.getAndIncrement(); i < numTiles; i = nextTile.getAndIncrement() )
+					{
+						final int minY = ( int ) ( ( long ) height * i / numTiles );
+						final int maxY = ( int ) ( ( long ) height * ( i + 1 ) / numTiles );
+						task.run( minY, maxY );
+					}
+					return null;
+				}
+			} );
+		}
+		runTasks( tasks );
+	}
+
+	/**
+	 * Run tasks on the {@link ProjectionOptions#getExecutorService() executor}
+	 * of the options, or on a shared pool if none is set. A single task runs
+	 * on the calling thread. Blocks until all tasks are finished.
+	 *
+	 * <p>
+	 * The executor is resolved for each call, so one projection may be used
+	 * concurrently from several threads (e.g., preview rendering and a full
+	 * {@link #project()} run).
+	 */
+	protected void runTasks( final List< ? extends Callable< Void > > tasks )
+	{
+		if ( tasks.size() == 1 )
+		{
+			try
+			{
+				tasks.get( 0 ).call();
+			}
+			catch ( final RuntimeException e )
+			{
+				throw e;
+			}
+			catch ( final Exception e )
+			{
+				throw new RuntimeException( e );
+			}
+			return;
+		}
+
+		final ExecutorService es = options.getExecutorService() != null
+				? options.getExecutorService()
+				: getSharedExecutorService();
+		try
+		{
+			for ( final Future< Void > future : es.invokeAll( tasks ) )
+				future.get();
+		}
+		catch ( final InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+			throw new RuntimeException( e );
+		}
+		catch ( final ExecutionException e )
+		{
+			throw new RuntimeException( e.getCause() );
+		}
+	}
+
+	private static ExecutorService sharedExecutorService;
+
+	/**
+	 * Get the pool that runs tasks if no executor is set in the options. The
+	 * number of concurrent tasks is limited by the number of workers that
+	 * {@link #runRowTiles(RowTileTask)} creates, not by the pool. Its threads
+	 * are daemon threads that end when idle, so it is never shut down.
+	 */
+	private static synchronized ExecutorService getSharedExecutorService()
+	{
+		if ( sharedExecutorService == null )
+		{
+			final AtomicInteger threadCount = new AtomicInteger();
+			sharedExecutorService = Executors.newCachedThreadPool( new ThreadFactory()
+			{
+				@Override
+				public Thread newThread( final Runnable r )
+				{
+					final Thread thread = new Thread( r, "ellipsoid-projection-" + threadCount.incrementAndGet() );
+					thread.setDaemon( true );
+					return thread;
+				}
+			} );
+		}
+		return sharedExecutorService;
+	}
+}
@@ -31,10 +31,15 @@ package de.mpicbg.ovaries;
 import java.awt.BorderLayout;
 import java.awt.Color;
 import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.awt.event.ItemEvent;
+import java.awt.event.ItemListener;
 
 import javax.swing.AbstractAction;
 import javax.swing.BoxLayout;
 import javax.swing.JButton;
+import javax.swing.JCheckBox;
+import javax.swing.JComboBox;
 import javax.swing.JLabel;
 import javax.swing.JPanel;
 import javax.swing.JSpinner;
@@ -52,12 +57,15 @@ import bdv.util.RealRandomAccessibleSource;
 import bdv.viewer.Source;
 import bdv.viewer.SourceAndConverter;
 import bdv.viewer.ViewerPanel;
+import de.mpicbg.ovaries.ellipsoid.EllipsoidModel;
+import de.mpicbg.ovaries.ellipsoid.SamplingOptions;
 
 public class FitEllipsoidTab extends JPanel
 {
 	private final ViewerPanel viewer;
 	private final SetupAssignments setupAssignments;
 	private final OvariesProjectionDialog dialog;
+	private final Data data;
 	private final EllipsoidOverlay ellipsoidOverlay;
 	private int ellipsoidSourceIndex;
 	private final RealARGBColorConverterSetup ellipsoidConverterSetup;
@@ -66,6 +74,14 @@ public class FitEllipsoidTab extends JPanel
 	private int numRandomSamples;
 	private double outsideCutoffDistance;
 	private double insideCutoffDistance;
+	private int numThreads;
+	private long seed;
+	private boolean adaptive;
+	private EllipsoidModel model;
+	private boolean unconstrainedRefit;
+	private boolean localOptimization;
+	private boolean geometricRefinement;
+	private boolean guidedSampling;
 
 	public FitEllipsoidTab(
 			final ViewerPanel viewer,
@@ -79,6 +95,7 @@ public class FitEllipsoidTab extends JPanel
 		this.viewer = viewer;
 		this.setupAssignments = setupAssignments;
 		this.dialog = ovariesProjectionDialog;
+		this.data = data;
 
 		final JPanel panel = new JPanel();
 		panel.setLayout( new BoxLayout( panel, BoxLayout.PAGE_AXIS ) );
@@ -107,6 +124,7 @@ public class FitEllipsoidTab extends JPanel
 			public void stateChanged( final ChangeEvent e )
 			{
 				outsideCutoffDistance = ( ( Double ) ousideCutoffSpinner.getValue() ).doubleValue();
+				refitEllipsoid();
 			}
 		} );
 		final JPanel ousideCutoffSpinnerPanel = new JPanel();
@@ -123,6 +141,7 @@ public class FitEllipsoidTab extends JPanel
 			public void stateChanged( final ChangeEvent e )
 			{
 				insideCutoffDistance = ( ( Double ) insideCutoffSpinner.getValue() ).doubleValue();
+				refitEllipsoid();
 			}
 		} );
 		final JPanel insideCutoffSpinnerPanel = new JPanel();
@@ -131,13 +150,128 @@ public class FitEllipsoidTab extends JPanel
 		insideCutoffSpinnerPanel.add( insideCutoffSpinner, BorderLayout.CENTER );
 		panel.add( insideCutoffSpinnerPanel );
 
+		numThreads = Runtime.getRuntime().availableProcessors();
+		final JSpinner numThreadsSpinner = new JSpinner( new SpinnerNumberModel( numThreads, 1, 256, 1 ) );
+		numThreadsSpinner.addChangeListener( new ChangeListener()
+		{
+			@Override
+			public void stateChanged( final ChangeEvent e )
+			{
+				numThreads = ( ( Integer ) numThreadsSpinner.getValue() ).intValue();
+			}
+		} );
+		final JPanel numThreadsSpinnerPanel = new JPanel();
+		numThreadsSpinnerPanel.setLayout( new BorderLayout( 10, 10 ) );
+		numThreadsSpinnerPanel.add( new JLabel( "threads" ), BorderLayout.LINE_START );
+		numThreadsSpinnerPanel.add( numThreadsSpinner, BorderLayout.CENTER );
+		panel.add( numThreadsSpinnerPanel );
+
+		seed = 0;
+		final JSpinner seedSpinner = new JSpinner( new SpinnerNumberModel( Long.valueOf( seed ), null, null, Long.valueOf( 1 ) ) );
+		seedSpinner.addChangeListener( new ChangeListener()
+		{
+			@Override
+			public void stateChanged( final ChangeEvent e )
+			{
+				seed = ( ( Number ) seedSpinner.getValue() ).longValue();
+			}
+		} );
+		final JPanel seedSpinnerPanel = new JPanel();
+		seedSpinnerPanel.setLayout( new BorderLayout( 10, 10 ) );
+		seedSpinnerPanel.add( new JLabel( "random seed (0 = time)" ), BorderLayout.LINE_START );
+		seedSpinnerPanel.add( seedSpinner, BorderLayout.CENTER );
+		panel.add( seedSpinnerPanel );
+
+		adaptive = false;
+		final JCheckBox adaptiveCheckBox = new JCheckBox( "stop early when confident (99%)" );
+		adaptiveCheckBox.setSelected( adaptive );
+		adaptiveCheckBox.addActionListener( new ActionListener()
+		{
+			@Override
+			public void actionPerformed( final ActionEvent e )
+			{
+				adaptive = adaptiveCheckBox.isSelected();
+			}
+		} );
+		panel.add( adaptiveCheckBox );
+
+		model = EllipsoidModel.GENERAL;
+		final JComboBox modelComboBox = new JComboBox( EllipsoidModel.values() );
+		modelComboBox.setSelectedItem( model );
+		modelComboBox.addItemListener( new ItemListener()
+		{
+			@Override
+			public void itemStateChanged( final ItemEvent ie )
+			{
+				if ( ie.getStateChange() == ItemEvent.SELECTED )
+					model = ( EllipsoidModel ) ie.getItem();
+			}
+		} );
+		final JPanel modelPanel = new JPanel();
+		modelPanel.setLayout( new BorderLayout( 10, 10 ) );
+		modelPanel.add( new JLabel( "model" ), BorderLayout.LINE_START );
+		modelPanel.add( modelComboBox, BorderLayout.CENTER );
+		panel.add( modelPanel );
+
+		unconstrainedRefit = true;
+		final JCheckBox unconstrainedRefitCheckBox = new JCheckBox( "refit general ellipsoid to inliers" );
+		unconstrainedRefitCheckBox.setSelected( unconstrainedRefit );
+		unconstrainedRefitCheckBox.addActionListener( new ActionListener()
+		{
+			@Override
+			public void actionPerformed( final ActionEvent e )
+			{
+				unconstrainedRefit = unconstrainedRefitCheckBox.isSelected();
+			}
+		} );
+		panel.add( unconstrainedRefitCheckBox );
+
+		localOptimization = false;
+		final JCheckBox localOptimizationCheckBox = new JCheckBox( "refine each new best fit (LO-RANSAC)" );
+		localOptimizationCheckBox.setSelected( localOptimization );
+		localOptimizationCheckBox.addActionListener( new ActionListener()
+		{
+			@Override
+			public void actionPerformed( final ActionEvent e )
+			{
+				localOptimization = localOptimizationCheckBox.isSelected();
+			}
+		} );
+		panel.add( localOptimizationCheckBox );
+
+		geometricRefinement = false;
+		final JCheckBox geometricRefinementCheckBox = new JCheckBox( "refine final fit by point distances" );
+		geometricRefinementCheckBox.setSelected( geometricRefinement );
+		geometricRefinementCheckBox.addActionListener( new ActionListener()
+		{
+			@Override
+			public void actionPerformed( final ActionEvent e )
+			{
+				geometricRefinement = geometricRefinementCheckBox.isSelected();
+			}
+		} );
+		panel.add( geometricRefinementCheckBox );
+
+		guidedSampling = false;
+		final JCheckBox guidedSamplingCheckBox = new JCheckBox( "sample strongest detections first (PROSAC)" );
+		guidedSamplingCheckBox.setSelected( guidedSampling );
+		guidedSamplingCheckBox.addActionListener( new ActionListener()
+		{
+			@Override
+			public void actionPerformed( final ActionEvent e )
+			{
+				guidedSampling = guidedSamplingCheckBox.isSelected();
+			}
+		} );
+		panel.add( guidedSamplingCheckBox );
+
 		final JButton bcomputeButton = new JButton( "compute" );
 		bcomputeButton.addActionListener( new AbstractAction()
 		{
 			@Override
 			public void actionPerformed( final ActionEvent e )
 			{
-				data.fitEllipsoid( numRandomSamples, outsideCutoffDistance, insideCutoffDistance );
+				data.fitEllipsoid( numRandomSamples, outsideCutoffDistance, insideCutoffDistance, samplingOptions() );
 				ellipsoidOverlay.setEllipsoid( data.getEllipsoid() );
 				dialog.fitEllipsoidDone();
 			}
@@ -171,6 +305,45 @@ public class FitEllipsoidTab extends JPanel
 		ellipsoidOverlay = new EllipsoidOverlay( viewer, ellipsoidConverterSetup );
 	}
 
+	private SamplingOptions samplingOptions()
+	{
+		final SamplingOptions options = SamplingOptions.options()
+				.numThreads( numThreads )
+				.adaptive( adaptive )
+				.model( model )
+				.unconstrainedRefit( unconstrainedRefit )
+				.localOptimization( localOptimization )
+				.geometricRefinement( geometricRefinement )
+				.guidedSampling( guidedSampling );
+		if ( seed != 0 )
+			options.seed( seed );
+		return options;
+	}
+
+	/**
+	 * Refit the ellipsoid for changed cutoff distances to the inliers of the
+	 * last computed RANSAC hypothesis, without sampling again. This runs on
+	 * the event dispatch thread for every spinner change, so geometric
+	 * refinement is skipped. It is only applied by the compute button.
+	 */
+	private void refitEllipsoid()
+	{
+		if ( !data.canRefitEllipsoid() )
+			return;
+		try
+		{
+			data.refitEllipsoid( outsideCutoffDistance, insideCutoffDistance, samplingOptions().geometricRefinement( false ) );
+		}
+		catch ( final RuntimeException e )
+		{
+			System.err.println( "Error: " + e.getMessage() );
+			return;
+		}
+		ellipsoidOverlay.setEllipsoid( data.getEllipsoid() );
+		viewer.requestRepaint();
+		dialog.ellipsoidRefitted();
+	}
+
 	void addOverlays()
 	{
 		viewer.addSource( ellipsoidSourceAndConverter );
@@ -0,0 +1,361 @@
+/*-
+ * #%L
+ * Ellipsoid Surface Projection
+ * %%
+ * Copyright (C) 2016 - 2018 Tobias Pietzsch
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.mpicbg.ovaries;
+
+import gnu.trove.list.array.TDoubleArrayList;
+import gnu.trove.list.array.TIntArrayList;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.RealPoint;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.util.Intervals;
+import bdv.BigDataViewer;
+import bdv.img.hdf5.Hdf5ImageLoader;
+import bdv.spimdata.SpimDataMinimal;
+import bdv.spimdata.WrapBasicImgLoader;
+import bdv.spimdata.XmlIoSpimDataMinimal;
+import bdv.tools.brightness.ConverterSetup;
+import bdv.viewer.Source;
+import bdv.viewer.SourceAndConverter;
+import de.mpicbg.ovaries.ellipsoid.Ellipsoid;
+import de.mpicbg.ovaries.ellipsoid.EllipsoidModel;
+import de.mpicbg.ovaries.ellipsoid.SamplingOptions;
+import mpicbg.spim.data.SpimDataException;
+
+/**
+ * Headless batch processing: bounding box, blob detection, ellipsoid fit, and
+ * projection, without any GUI.
+ *
+ * <p>
+ * Usage: {@code OvariesProjectionBatch [--threads n] params.properties...}
+ *
+ * <p>
+ * Each parameter file describes one dataset. Datasets are processed one after
+ * another, sharing one thread pool. Recognized keys (with defaults) are:
+ *
+ * <pre>
+ * xml                  BDV dataset (required)
+ * output               output directory (default: "projection" next to the xml)
+ * bbox.min, bbox.max   bounding box "x,y,z" in voxel coordinates of the first
+ *                      source (default: the whole image)
+ * dog.source           index of the source for blob detection (0)
+ * dog.sigma            blob sigma (3)
+ * dog.minPeakValue     minimum DoG peak value (250)
+ * dog.timepoints       timepoints for blob detection, "t1,t2,..." (0)
+ * fit.numRandomSamples number of RANSAC samples (10000)
+ * fit.outsideCutoff    outside cutoff distance (10)
+ * fit.insideCutoff     inside cutoff distance (10)
+ * fit.seed             RANSAC random seed (current time)
+ * fit.adaptive         stop RANSAC early when confident (false)
+ * fit.confidence       confidence for adaptive stopping (0.99)
+ * fit.model            general, axis-aligned, spheroid, or sphere (general)
+ * fit.refit            refit a general ellipsoid to the inliers (true)
+ * fit.localOptimization refine each new best hypothesis (false)
+ * fit.geometric        refine the final fit by point distances (false)
+ * fit.guided           sample the strongest detections first (false)
+ * projection.method    "cylindrical" or "spherical" (cylindrical)
+ * projection.width     output width (800)
+ * projection.height    output height (400)
+ * projection.minDistance, projection.maxDistance, projection.sliceDistance
+ *                      (5, 50, 1)
+ * projection.minTimepoint, projection.maxTimepoint
+ *                      (0, last timepoint)
+ * projection.flipZ, projection.alignY (false, false)
+ * projection.pixelMajor, projection.directSampling (false, false)
+ * projection.mipmapLevel  resolution level, -1 for automatic (0)
+ * projection.reduction    MAX, MEAN, SUM, ARGMAX, or empty for the full depth
+ *                         stack (empty)
+ * </pre>
+ *
+ * <p>
+ * The output directory receives the detections and their DoG responses
+ * ({@code detections.csv}), the fitted ellipsoid ({@code ellipsoid.txt}), and
+ * one TIFF per projected timepoint.
+ */
+public class OvariesProjectionBatch
+{
+	private final ExecutorService executorService;
+
+	private final int numThreads;
+
+	public OvariesProjectionBatch( final ExecutorService executorService, final int numThreads )
+	{
+		this.executorService = executorService;
+		this.numThreads = numThreads;
+	}
+
+	/**
+	 * Process the dataset described by the given parameter file.
+	 */
+	public void process( final File parameterFile ) throws IOException, SpimDataException
+	{
+		final Properties params = new Properties();
+		final InputStream in = new FileInputStream( parameterFile );
+		try
+		{
+			params.load( in );
+		}
+		finally
+		{
+			in.close();
+		}
+		process( params, parameterFile.getAbsoluteFile().getParentFile() );
+	}
+
+	/**
+	 * Process the dataset described by the given parameters.
+	 *
+	 * @param baseDirectory
+	 *            relative paths in the parameters are resolved against this
+	 *            directory.
+	 */
+	public void process( final Properties params, final File baseDirectory ) throws IOException, SpimDataException
+	{
+		final String xml = params.getProperty( "xml" );
+		if ( xml == null )
+			throw new IllegalArgumentException( "missing parameter \"xml\"" );
+		final File xmlFile = resolve( baseDirectory, xml );
+		final File outputDirectory = params.getProperty( "output" ) == null
+				? new File( xmlFile.getParentFile(), "projection" )
+				: resolve( baseDirectory, params.getProperty( "output" ) );
+		if ( !outputDirectory.isDirectory() && !outputDirectory.mkdirs() )
+			throw new IOException( "Could not create directory " + outputDirectory );
+
+		System.out.println( "processing " + xmlFile );
+		final SpimDataMinimal spimData = new XmlIoSpimDataMinimal().load( xmlFile.getAbsolutePath() );
+		WrapBasicImgLoader.wrapImgLoaderIfNecessary( spimData );
+		final ArrayList< ConverterSetup > converterSetups = new ArrayList< ConverterSetup >();
+		final ArrayList< SourceAndConverter< ? > > sourceAndConverters = new ArrayList< SourceAndConverter< ? > >();
+		BigDataViewer.initSetups( spimData, converterSetups, sourceAndConverters );
+		final ArrayList< Source< ? > > sources = new ArrayList< Source< ? > >();
+		for ( final SourceAndConverter< ? > soc : sourceAndConverters )
+			sources.add( soc.getSpimSource() );
+
+		try
+		{
+			final Data data = new Data( sources );
+			data.setExecutorService( executorService );
+
+			// bounding box
+			final Source< ? > first = sources.get( 0 );
+			final AffineTransform3D transform = new AffineTransform3D();
+			first.getSourceTransform( 0, 0, transform );
+			final Interval img = first.getSource( 0, 0 );
+			final long[] min = params.getProperty( "bbox.min" ) == null ? Intervals.minAsLongArray( img ) : parseLongs( params.getProperty( "bbox.min" ) );
+			final long[] max = params.getProperty( "bbox.max" ) == null ? Intervals.maxAsLongArray( img ) : parseLongs( params.getProperty( "bbox.max" ) );
+			data.setBoundingBox( new FinalInterval( min, max ), transform );
+
+			// blobs
+			data.setImageDataSourceIndex( getInt( params, "dog.source", 0 ) );
+			final TDoubleArrayList sigmas = new TDoubleArrayList();
+			sigmas.add( getDouble( params, "dog.sigma", 3 ) );
+			final TDoubleArrayList minPeakValues = new TDoubleArrayList();
+			minPeakValues.add( getDouble( params, "dog.minPeakValue", 250 ) );
+			final TIntArrayList timepoints = new TIntArrayList();
+			for ( final long t : parseLongs( params.getProperty( "dog.timepoints", "0" ) ) )
+				timepoints.add( ( int ) t );
+			data.computeDetections( sigmas, minPeakValues, timepoints );
+			writeDetections( data.getDetections(), data.getDetectionResponses(), new File( outputDirectory, "detections.csv" ) );
+
+			// ellipsoid
+			final SamplingOptions samplingOptions = SamplingOptions.options()
+					.numThreads( numThreads )
+					.executorService( executorService )
+					.adaptive( getBoolean( params, "fit.adaptive", false ) )
+					.confidence( getDouble( params, "fit.confidence", 0.99 ) )
+					.model( EllipsoidModel.forName( params.getProperty( "fit.model", "general" ).trim() ) )
+					.unconstrainedRefit( getBoolean( params, "fit.refit", true ) )
+					.localOptimization( getBoolean( params, "fit.localOptimization", false ) )
+					.geometricRefinement( getBoolean( params, "fit.geometric", false ) )
+					.guidedSampling( getBoolean( params, "fit.guided", false ) );
+			if ( params.getProperty( "fit.seed" ) != null )
+				samplingOptions.seed( Long.parseLong( params.getProperty( "fit.seed" ).trim() ) );
+			data.fitEllipsoid(
+					getInt( params, "fit.numRandomSamples", 10000 ),
+					getDouble( params, "fit.outsideCutoff", 10 ),
+					getDouble( params, "fit.insideCutoff", 10 ),
+					samplingOptions );
+			if ( data.getEllipsoid() == null )
+				throw new IllegalStateException( "no ellipsoid could be fitted to the " + data.getDetections().size() + " detections" );
+			writeEllipsoid( data.getEllipsoid(), new File( outputDirectory, "ellipsoid.txt" ) );
+
+			// projection
+			final boolean isMethodCylindrical = !"spherical".equals( params.getProperty( "projection.method", "cylindrical" ).trim() );
+			final int lastTimepoint = spimData.getSequenceDescription().getTimePoints().size() - 1;
+			final String reduction = params.getProperty( "projection.reduction", "" ).trim();
+			final ProjectionOptions options = ProjectionOptions.options()
+					.numThreads( numThreads )
+					.executorService( executorService )
+					.pixelMajor( getBoolean( params, "projection.pixelMajor", false ) )
+					.directSampling( getBoolean( params, "projection.directSampling", false ) )
+					.mipmapLevel( getInt( params, "projection.mipmapLevel", 0 ) )
+					.reduction( reduction.isEmpty() ? null : ProjectionReduction.valueOf( reduction ) )
+					.writer( new TiffSeriesWriter( outputDirectory, isMethodCylindrical ? "cylindrical" : "spherical" ) );
+			data.project(
+					getInt( params, "projection.width", 800 ),
+					getInt( params, "projection.height", 400 ),
+					getDouble( params, "projection.minDistance", 5 ),
+					getDouble( params, "projection.maxDistance", 50 ),
+					getDouble( params, "projection.sliceDistance", 1 ),
+					getInt( params, "projection.minTimepoint", 0 ),
+					getInt( params, "projection.maxTimepoint", lastTimepoint ),
+					getBoolean( params, "projection.flipZ", false ),
+					getBoolean( params, "projection.alignY", false ),
+					isMethodCylindrical,
+					options );
+		}
+		finally
+		{
+			final Object imgLoader = spimData.getSequenceDescription().getImgLoader();
+			if ( imgLoader instanceof Hdf5ImageLoader )
+				( ( Hdf5ImageLoader ) imgLoader ).close();
+		}
+	}
+
+	private static void writeDetections( final List< RealPoint > detections, final TDoubleArrayList responses, final File file ) throws IOException
+	{
+		final PrintWriter out = new PrintWriter( file );
+		try
+		{
+			out.println( "x,y,z,response" );
+			for ( int i = 0; i < detections.size(); ++i )
+			{
+				final RealPoint p = detections.get( i );
+				out.println( p.getDoublePosition( 0 ) + "," + p.getDoublePosition( 1 ) + "," + p.getDoublePosition( 2 ) + "," + responses.get( i ) );
+			}
+		}
+		finally
+		{
+			out.close();
+		}
+	}
+
+	private static void writeEllipsoid( final Ellipsoid ellipsoid, final File file ) throws IOException
+	{
+		final PrintWriter out = new PrintWriter( file );
+		try
+		{
+			out.println( ellipsoid );
+		}
+		finally
+		{
+			out.close();
+		}
+	}
+
+	private static File resolve( final File baseDirectory, final String path )
+	{
+		final File file = new File( path );
+		return file.isAbsolute() || baseDirectory == null ? file : new File( baseDirectory, path );
+	}
+
+	private static long[] parseLongs( final String value )
+	{
+		final String[] parts = value.split( "," );
+		final long[] values = new long[ parts.length ];
+		for ( int i = 0; i < parts.length; ++i )
+			values[ i ] = Long.parseLong( parts[ i ].trim() );
+		return values;
+	}
+
+	private static int getInt( final Properties params, final String key, final int defaultValue )
+	{
+		final String value = params.getProperty( key );
+		return value == null ? defaultValue : Integer.parseInt( value.trim() );
+	}
+
+	private static double getDouble( final Properties params, final String key, final double defaultValue )
+	{
+		final String value = params.getProperty( key );
+		return value == null ? defaultValue : Double.parseDouble( value.trim() );
+	}
+
+	private static boolean getBoolean( final Properties params, final String key, final boolean defaultValue )
+	{
+		final String value = params.getProperty( key );
+		return value == null ? defaultValue : Boolean.parseBoolean( value.trim() );
+	}
+
+	public static void main( final String[] args )
+	{
+		System.setProperty( "java.awt.headless", "true" );
+
+		int numThreads = Runtime.getRuntime().availableProcessors();
+		final ArrayList< File > parameterFiles = new ArrayList< File >();
+		for ( int i = 0; i < args.length; ++i )
+		{
+			if ( "--threads".equals( args[ i ] ) && i + 1 < args.length )
+				numThreads = Integer.parseInt( args[ ++i ] );
+			else
+				parameterFiles.add( new File( args[ i ] ) );
+		}
+		if ( parameterFiles.isEmpty() )
+		{
+			System.err.println( "usage: OvariesProjectionBatch [--threads n] params.properties..." );
+			System.exit( 1 );
+		}
+
+		final ExecutorService executorService = Executors.newFixedThreadPool( numThreads );
+		final OvariesProjectionBatch batch = new OvariesProjectionBatch( executorService, numThreads );
+		int numFailed = 0;
+		try
+		{
+			for ( final File parameterFile : parameterFiles )
+			{
+				try
+				{
+					batch.process( parameterFile );
+				}
+				catch ( final Exception e )
+				{
+					System.err.println( "failed to process " + parameterFile );
+					e.printStackTrace();
+					++numFailed;
+				}
+			}
+		}
+		finally
+		{
+			executorService.shutdown();
+		}
+		System.exit( numFailed == 0 ? 0 : 1 );
+	}
+}
@@ -136,8 +136,14 @@ public class OvariesProjectionDialog extends JDialog
 		tabs.setSelectedComponent( fitTab );
 	}
 
+	protected void ellipsoidRefitted()
+	{
+		projTab.updatePreview();
+	}
+
 	protected void fitEllipsoidDone()
 	{
+		projTab.updatePreview();
 		tabs.setSelectedComponent( projTab );
 	}
 }
@@ -0,0 +1,228 @@
+/*-
+ * #%L
+ * Ellipsoid Surface Projection
+ * %%
+ * Copyright (C) 2016 - 2018 Tobias Pietzsch
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.mpicbg.ovaries;
+
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Optional parameters for {@link EllipsoidProjection}.
+ */
+public class ProjectionOptions
+{
+	private int numThreads = Runtime.getRuntime().availableProcessors();
+
+	private ExecutorService executorService = null;
+
+	private boolean pixelMajor = false;
+
+	private boolean directSampling = false;
+
+	private int mipmapLevel = 0;
+
+	private ProjectionPlanCache planCache = null;
+
+	private ProjectionWriter writer = null;
+
+	private ProjectionReduction reduction = null;
+
+	/**
+	 * Create default {@link ProjectionOptions}.
+	 *
+	 * @return default {@link ProjectionOptions}.
+	 */
+	public static ProjectionOptions options()
+	{
+		return new ProjectionOptions();
+	}
+
+	/**
+	 * Set the number of threads used to compute projections. Each projected
+	 * plane is split into tiles of rows which are processed in parallel.
+	 *
+	 * @param n
+	 *            number of threads. Defaults to the number of available
+	 *            processors.
+	 */
+	public ProjectionOptions numThreads( final int n )
+	{
+		numThreads = Math.max( 1, n );
+		return this;
+	}
+
+	/**
+	 * Set the {@link ExecutorService} that runs the tiles of each projected
+	 * plane, e.g., to share one thread pool between several projections. The
+	 * service is not shut down when the projection is finished.
+	 *
+	 * @param service
+	 *            the executor service, or {@code null} to use a pool shared
+	 *            by all projections. In both cases, at most
+	 *            {@link #numThreads(int)} tiles run concurrently. Defaults to
+	 *            {@code null}.
+	 */
+	public ProjectionOptions executorService( final ExecutorService service )
+	{
+		executorService = service;
+		return this;
+	}
+
+	/**
+	 * Set whether to traverse the output pixel-major. If {@code true}, the
+	 * surface point and normal are computed once per output pixel and all
+	 * depth samples are obtained by stepping along the normal in voxel space.
+	 * If {@code false}, the output is computed plane by plane, recomputing the
+	 * surface geometry for every plane.
+	 *
+	 * @param b
+	 *            whether to traverse pixel-major. Defaults to {@code false}.
+	 */
+	public ProjectionOptions pixelMajor( final boolean b )
+	{
+		pixelMajor = b;
+		return this;
+	}
+
+	/**
+	 * Set whether to read source voxels directly from the underlying
+	 * {@code short[]} storage using a {@link TrilinearSampler}, instead of
+	 * going through the interpolated BigDataViewer source. This applies to
+	 * pixel-major traversal and lazily evaluated previews. Compiled
+	 * {@link ProjectionPlan}s are always sampled directly.
+	 *
+	 * @param b
+	 *            whether to sample directly. Defaults to {@code false}.
+	 */
+	public ProjectionOptions directSampling( final boolean b )
+	{
+		directSampling = b;
+		return this;
+	}
+
+	/**
+	 * Set the resolution level to read from the sources. If the level is
+	 * negative, it is chosen automatically as the coarsest level whose voxels
+	 * are not larger than the sample spacing of the projection.
+	 *
+	 * @param level
+	 *            the resolution level (clamped to the available levels), or a
+	 *            negative value to choose automatically. Defaults to
+	 *            {@code 0}, i.e., full resolution.
+	 */
+	public ProjectionOptions mipmapLevel( final int level )
+	{
+		mipmapLevel = level;
+		return this;
+	}
+
+	/**
+	 * Set the cache of compiled {@link ProjectionPlan}s. If not {@code null},
+	 * the voxel positions and interpolation weights of all samples are
+	 * computed once per source transform and reused for each timepoint
+	 * (provided that the plan fits into the cache).
+	 *
+	 * @param cache
+	 *            the plan cache, or {@code null} to not use compiled plans.
+	 *            Defaults to {@code null}.
+	 */
+	public ProjectionOptions planCache( final ProjectionPlanCache cache )
+	{
+		planCache = cache;
+		return this;
+	}
+
+	/**
+	 * Set a writer that the projection of each timepoint is streamed to. If
+	 * set, only one timepoint is kept in memory at a time.
+	 *
+	 * @param writer
+	 *            the writer, or {@code null} to show the complete projection
+	 *            as one hyperstack. Defaults to {@code null}.
+	 */
+	public ProjectionOptions writer( final ProjectionWriter writer )
+	{
+		this.writer = writer;
+		return this;
+	}
+
+	/**
+	 * Set a reduction that is applied along the surface normal of each output
+	 * pixel. If set, the samples of each normal are reduced as they are
+	 * taken, and the output has a single plane per channel and timepoint
+	 * instead of a depth stack. Rays are always traversed pixel-major then.
+	 *
+	 * @param reduction
+	 *            the reduction, or {@code null} to output the full depth
+	 *            stack. Defaults to {@code null}.
+	 */
+	public ProjectionOptions reduction( final ProjectionReduction reduction )
+	{
+		this.reduction = reduction;
+		return this;
+	}
+
+	public int getNumThreads()
+	{
+		return numThreads;
+	}
+
+	public ExecutorService getExecutorService()
+	{
+		return executorService;
+	}
+
+	public boolean isPixelMajor()
+	{
+		return pixelMajor;
+	}
+
+	public boolean isDirectSampling()
+	{
+		return directSampling;
+	}
+
+	public int getMipmapLevel()
+	{
+		return mipmapLevel;
+	}
+
+	public ProjectionPlanCache getPlanCache()
+	{
+		return planCache;
+	}
+
+	public ProjectionWriter getWriter()
+	{
+		return writer;
+	}
+
+	public ProjectionReduction getReduction()
+	{
+		return reduction;
+	}
+}
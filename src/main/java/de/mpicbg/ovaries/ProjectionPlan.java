@@ -0,0 +1,154 @@
+/*-
+ * #%L
+ * Ellipsoid Surface Projection
+ * %%
+ * Copyright (C) 2016 - 2018 Tobias Pietzsch
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.mpicbg.ovaries;
+
+/**
+ * A compiled sampling plan for an {@link EllipsoidProjection}. For every
+ * output sample, stores the base voxel and the trilinear interpolation weights
+ * in the source. As long as ellipsoid, projection parameters, and source
+ * transform stay the same, projecting another timepoint or channel is then a
+ * pure gather of voxel values.
+ *
+ * <p>
+ * Samples are indexed pixel-major, see {@link #index(int, int, int)}.
+ */
+public class ProjectionPlan
+{
+	private static final int BYTES_PER_SAMPLE = 3 * 4 + 3 * 4;
+
+	private final int width;
+
+	private final int height;
+
+	private final int depth;
+
+	// base voxel coordinates
+	private final int[] x;
+
+	private final int[] y;
+
+	private final int[] z;
+
+	// fractional offsets from the base voxel
+	private final float[] fx;
+
+	private final float[] fy;
+
+	private final float[] fz;
+
+	public ProjectionPlan( final int width, final int height, final int depth )
+	{
+		if ( !canCompile( width, height, depth ) )
+			throw new IllegalArgumentException( "Too many samples for a ProjectionPlan: " + ( long ) width * height * depth );
+
+		this.width = width;
+		this.height = height;
+		this.depth = depth;
+		final int n = width * height * depth;
+		x = new int[ n ];
+		y = new int[ n ];
+		z = new int[ n ];
+		fx = new float[ n ];
+		fy = new float[ n ];
+		fz = new float[ n ];
+	}
+
+	/**
+	 * Whether a plan of the given size can be created. Samples are indexed by
+	 * {@code int}, so there may be at most {@link Integer#MAX_VALUE}.
+	 */
+	public static boolean canCompile( final int width, final int height, final int depth )
+	{
+		return ( long ) width * height * depth <= Integer.MAX_VALUE;
+	}
+
+	/**
+	 * Get the number of bytes required by a plan of the given size.
+	 */
+	public static long sizeInBytes( final int width, final int height, final int depth )
+	{
+		return ( long ) width * height * depth * BYTES_PER_SAMPLE;
+	}
+
+	public long sizeInBytes()
+	{
+		return sizeInBytes( width, height, depth );
+	}
+
+	public int getWidth()
+	{
+		return width;
+	}
+
+	public int getHeight()
+	{
+		return height;
+	}
+
+	public int getDepth()
+	{
+		return depth;
+	}
+
+	/**
+	 * Get the index of sample {@code zi} along the ray of output pixel
+	 * {@code (xpi, ypi)}.
+	 */
+	public int index( final int xpi, final int ypi, final int zi )
+	{
+		return ( ypi * width + xpi ) * depth + zi;
+	}
+
+	/**
+	 * Set sample {@code i} to the given position in source voxel coordinates.
+	 */
+	public void set( final int i, final double[] position )
+	{
+		final double px = Math.floor( position[ 0 ] );
+		final double py = Math.floor( position[ 1 ] );
+		final double pz = Math.floor( position[ 2 ] );
+		x[ i ] = ( int ) px;
+		y[ i ] = ( int ) py;
+		z[ i ] = ( int ) pz;
+		fx[ i ] = ( float ) ( position[ 0 ] - px );
+		fy[ i ] = ( float ) ( position[ 1 ] - py );
+		fz[ i ] = ( float ) ( position[ 2 ] - pz );
+	}
+
+	/**
+	 * Get the trilinearly interpolated value of sample {@code i}.
+	 *
+	 * @param in
+	 *            sampler for the source voxels.
+	 */
+	public double sample( final int i, final TrilinearSampler in )
+	{
+		return in.sample( x[ i ], y[ i ], z[ i ], fx[ i ], fy[ i ], fz[ i ] );
+	}
+}
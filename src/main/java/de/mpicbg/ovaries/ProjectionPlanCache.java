@@ -0,0 +1,155 @@
+/*-
+ * #%L
+ * Ellipsoid Surface Projection
+ * %%
+ * Copyright (C) 2016 - 2018 Tobias Pietzsch
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.mpicbg.ovaries;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map.Entry;
+
+/**
+ * Least-recently-used cache of {@link ProjectionPlan}s, bounded by the total
+ * size of the cached plans.
+ */
+public class ProjectionPlanCache
+{
+	/**
+	 * Identifies a {@link ProjectionPlan} by the projection method and the
+	 * parameters that determine its sample positions (ellipsoid, projection
+	 * parameters, source transform).
+	 */
+	public static class Key
+	{
+		private final String method;
+
+		private final double[] parameters;
+
+		private final int hashcode;
+
+		public Key( final String method, final double[] parameters )
+		{
+			this.method = method;
+			this.parameters = parameters;
+			this.hashcode = 31 * method.hashCode() + Arrays.hashCode( parameters );
+		}
+
+		@Override
+		public boolean equals( final Object obj )
+		{
+			if ( this == obj )
+				return true;
+			if ( !( obj instanceof Key ) )
+				return false;
+			final Key other = ( Key ) obj;
+			return method.equals( other.method ) && Arrays.equals( parameters, other.parameters );
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return hashcode;
+		}
+	}
+
+	private final long maxBytes;
+
+	private long bytes;
+
+	private final LinkedHashMap< Key, ProjectionPlan > plans;
+
+	/**
+	 * @param maxBytes
+	 *            maximum total size of cached plans.
+	 */
+	public ProjectionPlanCache( final long maxBytes )
+	{
+		this.maxBytes = maxBytes;
+		bytes = 0;
+		plans = new LinkedHashMap< Key, ProjectionPlan >( 16, 0.75f, true );
+	}
+
+	/**
+	 * Create a cache that may use a quarter of the maximum heap size.
+	 */
+	public ProjectionPlanCache()
+	{
+		this( Runtime.getRuntime().maxMemory() / 4 );
+	}
+
+	/**
+	 * Whether a plan of the given size can be cached at all.
+	 */
+	public boolean fits( final long sizeInBytes )
+	{
+		return sizeInBytes <= maxBytes;
+	}
+
+	public synchronized ProjectionPlan get( final Key key )
+	{
+		return plans.get( key );
+	}
+
+	/**
+	 * Add a plan, evicting least recently used plans until the total size is
+	 * within bounds. Plans that are larger than the cache are not added.
+	 */
+	public synchronized void put( final Key key, final ProjectionPlan plan )
+	{
+		final long size = plan.sizeInBytes();
+		if ( !fits( size ) )
+			return;
+
+		final ProjectionPlan previous = plans.put( key, plan );
+		if ( previous != null )
+			bytes -= previous.sizeInBytes();
+		bytes += size;
+
+		final Iterator< Entry< Key, ProjectionPlan > > it = plans.entrySet().iterator();
+		while ( bytes > maxBytes && it.hasNext() )
+		{
+			final Entry< Key, ProjectionPlan > entry = it.next();
+			if ( entry.getKey().equals( key ) )
+				continue;
+			bytes -= entry.getValue().sizeInBytes();
+			it.remove();
+		}
+	}
+
+	public synchronized void clear()
+	{
+		plans.clear();
+		bytes = 0;
+	}
+
+	@Override
+	public synchronized String toString()
+	{
+		return "ProjectionPlanCache(" + plans.size() + " plans, " + ( bytes >> 20 ) + " of " + ( maxBytes >> 20 ) + " MB)";
+	}
+}
@@ -0,0 +1,98 @@
+/*-
+ * #%L
+ * Ellipsoid Surface Projection
+ * %%
+ * Copyright (C) 2016 - 2018 Tobias Pietzsch
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.mpicbg.ovaries;
+
+/**
+ * Reduction of the samples along the surface normal of each output pixel to a
+ * single value. Used with {@link ProjectionOptions#reduction(ProjectionReduction)}
+ * to compute one 2D map per channel and timepoint instead of a depth stack.
+ */
+public enum ProjectionReduction
+{
+	/**
+	 * Maximum intensity.
+	 */
+	MAX,
+
+	/**
+	 * Mean intensity.
+	 */
+	MEAN,
+
+	/**
+	 * Sum of intensities.
+	 */
+	SUM,
+
+	/**
+	 * Distance from the ellipsoid surface of the (first) maximum intensity.
+	 */
+	ARGMAX;
+
+	/**
+	 * Reduce the samples along one normal.
+	 *
+	 * @param values
+	 *            the samples, {@code values[z]} being taken at distance
+	 *            {@code minDistance + z * sliceDistance} from the surface.
+	 * @param depth
+	 *            number of samples.
+	 */
+	public float reduce( final float[] values, final int depth, final double minDistance, final double sliceDistance )
+	{
+		switch ( this )
+		{
+		case MAX:
+		{
+			float max = values[ 0 ];
+			for ( int z = 1; z < depth; ++z )
+				if ( values[ z ] > max )
+					max = values[ z ];
+			return max;
+		}
+		case MEAN:
+		case SUM:
+		{
+			double sum = 0;
+			for ( int z = 0; z < depth; ++z )
+				sum += values[ z ];
+			return ( float ) ( this == MEAN ? sum / depth : sum );
+		}
+		case ARGMAX:
+		default:
+		{
+			int argmax = 0;
+			for ( int z = 1; z < depth; ++z )
+				if ( values[ z ] > values[ argmax ] )
+					argmax = z;
+			return ( float ) ( minDistance + argmax * sliceDistance );
+		}
+		}
+	}
+}
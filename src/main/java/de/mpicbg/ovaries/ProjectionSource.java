@@ -0,0 +1,420 @@
+/*-
+ * #%L
+ * Ellipsoid Surface Projection
+ * %%
+ * Copyright (C) 2016 - 2018 Tobias Pietzsch
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.mpicbg.ovaries;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import bdv.util.RealRandomAccessibleSource;
+import bdv.viewer.Interpolation;
+import bdv.viewer.RequestRepaint;
+
+import net.imglib2.AbstractInterval;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.Point;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.RealRandomAccessible;
+import net.imglib2.interpolation.randomaccess.NLinearInterpolatorFactory;
+import net.imglib2.interpolation.randomaccess.NearestNeighborInterpolatorFactory;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
+
+/**
+ * Lazily evaluated {@link EllipsoidProjection} of one source (channel),
+ * exposed as a BigDataViewer source. The projection is computed in blocks, on
+ * demand, when the viewer accesses them. Blocks are kept in a bounded LRU
+ * cache which is cleared whenever the projection is
+ * {@link #setProjection(EllipsoidProjection) replaced}.
+ *
+ * <p>
+ * Missing blocks are computed in the background, so that rendering does not
+ * wait for them. Until a block is ready, its values are 0. When it is ready,
+ * a repaint is requested from the {@link #setRequestRepaint(RequestRepaint)
+ * viewer}.
+ *
+ * <p>
+ * Source coordinates are {@code (x, y, z)} of the projection, i.e., map
+ * coordinates and slice index.
+ */
+public class ProjectionSource extends RealRandomAccessibleSource< FloatType >
+{
+	private static final int[] blockSize = new int[] { 64, 64, 4 };
+
+	private final int channel;
+
+	private final int maxNumBlocks;
+
+	private final LinkedHashMap< BlockKey, float[] > blocks;
+
+	// blocks that are queued or being computed
+	private final HashSet< BlockKey > pending;
+
+	private RequestRepaint requestRepaint;
+
+	private final AffineTransform3D sourceTransform;
+
+	private EllipsoidProjection projection;
+
+	private Interval interval;
+
+	/**
+	 * @param name
+	 *            name of the source.
+	 * @param projection
+	 *            the projection to evaluate. May be {@code null}, in which
+	 *            case the source is not present until
+	 *            {@link #setProjection(EllipsoidProjection)} is called.
+	 * @param channel
+	 *            which source of the projection to evaluate.
+	 * @param maxNumBlocks
+	 *            maximum number of cached blocks.
+	 */
+	public ProjectionSource( final String name, final EllipsoidProjection projection, final int channel, final int maxNumBlocks )
+	{
+		super( null, new FloatType(), name );
+		this.channel = channel;
+		this.maxNumBlocks = maxNumBlocks;
+		blocks = new LinkedHashMap< BlockKey, float[] >( 16, 0.75f, true )
+		{
+			@Override
+			protected boolean removeEldestEntry( final Map.Entry< BlockKey, float[] > eldest )
+			{
+				return size() > ProjectionSource.this.maxNumBlocks;
+			}
+		};
+		pending = new HashSet< BlockKey >();
+		sourceTransform = new AffineTransform3D();
+		setProjection( projection );
+	}
+
+	/**
+	 * Replace the projection (e.g., because the ellipsoid or the projection
+	 * distances changed). This discards all cached blocks.
+	 */
+	public synchronized void setProjection( final EllipsoidProjection projection )
+	{
+		this.projection = projection;
+		interval = projection == null
+				? null
+				: new FinalInterval( projection.width, projection.height, projection.getDepth() );
+		blocks.clear();
+		pending.clear();
+	}
+
+	/**
+	 * Discard all cached blocks.
+	 */
+	public synchronized void invalidate()
+	{
+		blocks.clear();
+		pending.clear();
+	}
+
+	/**
+	 * Set the viewer to repaint when a block has been computed.
+	 */
+	public synchronized void setRequestRepaint( final RequestRepaint requestRepaint )
+	{
+		this.requestRepaint = requestRepaint;
+	}
+
+	/**
+	 * Set the transform from projection coordinates to global coordinates.
+	 */
+	public synchronized void setSourceTransform( final AffineTransform3D transform )
+	{
+		sourceTransform.set( transform );
+	}
+
+	@Override
+	public synchronized boolean isPresent( final int t )
+	{
+		return projection != null && projection.sources.get( channel ).isPresent( t );
+	}
+
+	@Override
+	public synchronized Interval getInterval( final int t, final int level )
+	{
+		return interval;
+	}
+
+	@Override
+	public synchronized RandomAccessibleInterval< FloatType > getSource( final int t, final int level )
+	{
+		if ( projection == null )
+			return null;
+		return new LazyImg( projection, interval, t );
+	}
+
+	@Override
+	public RealRandomAccessible< FloatType > getInterpolatedSource( final int t, final int level, final Interpolation method )
+	{
+		final RandomAccessibleInterval< FloatType > img = getSource( t, level );
+		if ( method == Interpolation.NLINEAR )
+			return Views.interpolate( Views.extendZero( img ), new NLinearInterpolatorFactory< FloatType >() );
+		else
+			return Views.interpolate( Views.extendZero( img ), new NearestNeighborInterpolatorFactory< FloatType >() );
+	}
+
+	@Override
+	public synchronized void getSourceTransform( final int t, final int level, final AffineTransform3D transform )
+	{
+		transform.set( sourceTransform );
+	}
+
+	@Override
+	public int getNumMipmapLevels()
+	{
+		return 1;
+	}
+
+	/**
+	 * Get a block from the cache. If it is not in the cache, queue it for
+	 * computation in the background.
+	 *
+	 * @return the block, or {@code null} if it is not yet computed.
+	 */
+	private synchronized float[] getBlock( final EllipsoidProjection proj, final BlockKey key )
+	{
+		if ( proj != projection )
+			return null;
+		final float[] block = blocks.get( key );
+		if ( block == null && pending.add( key ) )
+		{
+			getBlockLoader().execute( new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					loadBlock( proj, key );
+				}
+			} );
+		}
+		return block;
+	}
+
+	/**
+	 * Compute a block and put it into the cache, unless the projection has
+	 * been replaced in the meantime. If computing the block fails, the error
+	 * is reported and the block is cached as zeros.
+	 */
+	private void loadBlock( final EllipsoidProjection proj, final BlockKey key )
+	{
+		synchronized ( this )
+		{
+			if ( proj != projection || !pending.contains( key ) )
+				return;
+		}
+
+		final long[] min = new long[ 3 ];
+		final int[] size = new int[ 3 ];
+		final long[] max = new long[] { proj.width - 1, proj.height - 1, proj.getDepth() - 1 };
+		for ( int d = 0; d < 3; ++d )
+		{
+			min[ d ] = key.position[ d ] * blockSize[ d ];
+			size[ d ] = ( int ) Math.min( blockSize[ d ], max[ d ] - min[ d ] + 1 );
+		}
+		final float[] block = new float[ size[ 0 ] * size[ 1 ] * size[ 2 ] ];
+		try
+		{
+			proj.projectBlock( key.t, channel, min, size, block );
+		}
+		catch ( final RuntimeException e )
+		{
+			// cache the failed block as zeros, so that it is not retried on every repaint
+			System.err.println( "Error: " + e.getMessage() );
+			Arrays.fill( block, 0 );
+		}
+
+		final RequestRepaint repaint;
+		synchronized ( this )
+		{
+			if ( proj != projection || !pending.remove( key ) )
+				return;
+			blocks.put( key, block );
+			repaint = requestRepaint;
+		}
+		if ( repaint != null )
+			repaint.requestRepaint();
+	}
+
+	private static ExecutorService blockLoader;
+
+	/**
+	 * Get the pool that computes blocks for all {@link ProjectionSource}s. Its
+	 * threads are daemon threads, so it is never shut down.
+	 */
+	private static synchronized ExecutorService getBlockLoader()
+	{
+		if ( blockLoader == null )
+		{
+			final AtomicInteger threadCount = new AtomicInteger();
+			blockLoader = Executors.newFixedThreadPool( Runtime.getRuntime().availableProcessors(), new ThreadFactory()
+			{
+				@Override
+				public Thread newThread( final Runnable r )
+				{
+					final Thread thread = new Thread( r, "projection-block-loader-" + threadCount.incrementAndGet() );
+					thread.setDaemon( true );
+					thread.setPriority( Thread.MIN_PRIORITY );
+					return thread;
+				}
+			} );
+		}
+		return blockLoader;
+	}
+
+	private static class BlockKey
+	{
+		private final int t;
+
+		private final long[] position;
+
+		private final int hashcode;
+
+		BlockKey( final int t, final long[] position )
+		{
+			this.t = t;
+			this.position = position;
+			hashcode = 31 * t + Arrays.hashCode( position );
+		}
+
+		@Override
+		public boolean equals( final Object obj )
+		{
+			if ( !( obj instanceof BlockKey ) )
+				return false;
+			final BlockKey other = ( BlockKey ) obj;
+			return t == other.t && Arrays.equals( position, other.position );
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return hashcode;
+		}
+	}
+
+	private class LazyImg extends AbstractInterval implements RandomAccessibleInterval< FloatType >
+	{
+		private final EllipsoidProjection proj;
+
+		private final int t;
+
+		LazyImg( final EllipsoidProjection proj, final Interval interval, final int t )
+		{
+			super( interval );
+			this.proj = proj;
+			this.t = t;
+		}
+
+		@Override
+		public RandomAccess< FloatType > randomAccess()
+		{
+			return new Access();
+		}
+
+		@Override
+		public RandomAccess< FloatType > randomAccess( final Interval interval )
+		{
+			return randomAccess();
+		}
+
+		private class Access extends Point implements RandomAccess< FloatType >
+		{
+			private final FloatType type;
+
+			private final long[] blockPosition;
+
+			private BlockKey currentKey;
+
+			private float[] currentBlock;
+
+			Access()
+			{
+				super( 3 );
+				type = new FloatType();
+				blockPosition = new long[ 3 ];
+			}
+
+			Access( final Access a )
+			{
+				super( a );
+				type = new FloatType();
+				blockPosition = new long[ 3 ];
+			}
+
+			@Override
+			public FloatType get()
+			{
+				for ( int d = 0; d < 3; ++d )
+					blockPosition[ d ] = position[ d ] / blockSize[ d ];
+				if ( currentKey == null || !Arrays.equals( blockPosition, currentKey.position ) )
+				{
+					currentKey = new BlockKey( t, blockPosition.clone() );
+					currentBlock = getBlock( proj, currentKey );
+				}
+				if ( currentBlock == null )
+				{
+					type.setZero();
+					return type;
+				}
+
+				final int sx = ( int ) Math.min( blockSize[ 0 ], proj.width - blockPosition[ 0 ] * blockSize[ 0 ] );
+				final int sy = ( int ) Math.min( blockSize[ 1 ], proj.height - blockPosition[ 1 ] * blockSize[ 1 ] );
+				final int x = ( int ) ( position[ 0 ] - blockPosition[ 0 ] * blockSize[ 0 ] );
+				final int y = ( int ) ( position[ 1 ] - blockPosition[ 1 ] * blockSize[ 1 ] );
+				final int z = ( int ) ( position[ 2 ] - blockPosition[ 2 ] * blockSize[ 2 ] );
+				type.set( currentBlock[ x + sx * ( y + sy * z ) ] );
+				return type;
+			}
+
+			@Override
+			public Access copy()
+			{
+				return new Access( this );
+			}
+
+			@Override
+			public Access copyRandomAccess()
+			{
+				return copy();
+			}
+		}
+	}
+}
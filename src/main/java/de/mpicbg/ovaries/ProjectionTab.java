@@ -34,12 +34,14 @@ import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.ItemEvent;
 import java.awt.event.ItemListener;
+import java.util.ArrayList;
 
 import javax.swing.AbstractAction;
 import javax.swing.BoxLayout;
 import javax.swing.JButton;
 import javax.swing.JCheckBox;
 import javax.swing.JComboBox;
+import javax.swing.JFileChooser;
 import javax.swing.JLabel;
 import javax.swing.JPanel;
 import javax.swing.JSpinner;
@@ -49,8 +51,10 @@ import javax.swing.event.ChangeListener;
 
 import net.imglib2.Interval;
 import net.imglib2.display.RealARGBColorConverter;
+import net.imglib2.realtransform.AffineTransform3D;
 import net.imglib2.type.numeric.ARGBType;
 import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
 import bdv.tools.boundingbox.BoundingBoxUtil;
 import bdv.tools.brightness.RealARGBColorConverterSetup;
 import bdv.tools.brightness.SetupAssignments;
@@ -64,6 +68,10 @@ public class ProjectionTab extends JPanel
 	private final OvariesProjectionDialog dialog;
 	private final RealARGBColorConverterSetup bandConverterSetup;
 	private final SourceAndConverter< UnsignedShortType > bandSourceAndConverter;
+	private final Data data;
+	private final ArrayList< ProjectionSource > previewSources;
+	private final ArrayList< SourceAndConverter< FloatType > > previewSourceAndConverters;
+	private final ArrayList< RealARGBColorConverterSetup > previewConverterSetups;
 
 	private double minProjectDistance;
 	private double maxProjectDistance;
@@ -75,6 +83,14 @@ public class ProjectionTab extends JPanel
 	private boolean flipZ;
 	private boolean alignY;
 	private boolean isMethodCylindrical;
+	private int numThreads;
+	private int mipmapLevel;
+	private boolean pixelMajor;
+	private boolean directSampling;
+	private boolean usePlanCache;
+	private ProjectionReduction reduction;
+	private boolean saveToDirectory;
+	private boolean preview;
 
 	public ProjectionTab(
 			final ViewerPanel viewer,
@@ -88,6 +104,10 @@ public class ProjectionTab extends JPanel
 		this.viewer = viewer;
 		this.setupAssignments = setupAssignments;
 		this.dialog = ovariesProjectionDialog;
+		this.data = data;
+		previewSources = new ArrayList< ProjectionSource >();
+		previewSourceAndConverters = new ArrayList< SourceAndConverter< FloatType > >();
+		previewConverterSetups = new ArrayList< RealARGBColorConverterSetup >();
 
 		final JPanel panel = new JPanel();
 		panel.setLayout( new BoxLayout( panel, BoxLayout.PAGE_AXIS ) );
@@ -104,6 +124,7 @@ public class ProjectionTab extends JPanel
 			public void stateChanged( final ChangeEvent e )
 			{
 				minProjectDistance = ( ( Double ) minProjectSpinner.getValue() ).doubleValue();
+				updatePreview();
 				bandSource.setMinProjectionDistance( minProjectDistance );
 				viewer.requestRepaint();
 			}
@@ -123,6 +144,7 @@ public class ProjectionTab extends JPanel
 			public void stateChanged( final ChangeEvent e )
 			{
 				maxProjectDistance = ( ( Double ) maxProjectSpinner.getValue() ).doubleValue();
+				updatePreview();
 				bandSource.setMaxProjectionDistance( maxProjectDistance );
 				viewer.requestRepaint();
 			}
@@ -141,6 +163,7 @@ public class ProjectionTab extends JPanel
 			public void stateChanged( final ChangeEvent e )
 			{
 				sliceDistance = ( ( Double ) sliceDistanceSpinner.getValue() ).doubleValue();
+				updatePreview();
 			}
 		} );
 		final JPanel sliceDistanceSpinnerPanel = new JPanel();
@@ -157,6 +180,7 @@ public class ProjectionTab extends JPanel
 			public void stateChanged( final ChangeEvent e )
 			{
 				projectWidth = ( ( Integer ) projectWidthSpinner.getValue() ).intValue();
+				updatePreview();
 			}
 		} );
 		final JPanel projectWidthSpinnerPanel = new JPanel();
@@ -173,6 +197,7 @@ public class ProjectionTab extends JPanel
 			public void stateChanged( final ChangeEvent e )
 			{
 				projectHeight = ( ( Integer ) projectHeightSpinner.getValue() ).intValue();
+				updatePreview();
 			}
 		} );
 		final JPanel projectHeightSpinnerPanel = new JPanel();
@@ -214,6 +239,39 @@ public class ProjectionTab extends JPanel
 		maxTimepointSpinnerPanel.add( maxTimepointSpinner, BorderLayout.CENTER );
 		panel.add( maxTimepointSpinnerPanel );
 
+		numThreads = Runtime.getRuntime().availableProcessors();
+		final JSpinner numThreadsSpinner = new JSpinner( new SpinnerNumberModel( numThreads, 1, 256, 1 ) );
+		numThreadsSpinner.addChangeListener( new ChangeListener()
+		{
+			@Override
+			public void stateChanged( final ChangeEvent e )
+			{
+				numThreads = ( ( Integer ) numThreadsSpinner.getValue() ).intValue();
+			}
+		} );
+		final JPanel numThreadsSpinnerPanel = new JPanel();
+		numThreadsSpinnerPanel.setLayout( new BorderLayout( 10, 10 ) );
+		numThreadsSpinnerPanel.add( new JLabel( "threads" ), BorderLayout.LINE_START );
+		numThreadsSpinnerPanel.add( numThreadsSpinner, BorderLayout.CENTER );
+		panel.add( numThreadsSpinnerPanel );
+
+		mipmapLevel = 0;
+		final JSpinner mipmapLevelSpinner = new JSpinner( new SpinnerNumberModel( mipmapLevel, -1, 16, 1 ) );
+		mipmapLevelSpinner.addChangeListener( new ChangeListener()
+		{
+			@Override
+			public void stateChanged( final ChangeEvent e )
+			{
+				mipmapLevel = ( ( Integer ) mipmapLevelSpinner.getValue() ).intValue();
+				updatePreview();
+			}
+		} );
+		final JPanel mipmapLevelSpinnerPanel = new JPanel();
+		mipmapLevelSpinnerPanel.setLayout( new BorderLayout( 10, 10 ) );
+		mipmapLevelSpinnerPanel.add( new JLabel( "resolution level (-1 = auto)" ), BorderLayout.LINE_START );
+		mipmapLevelSpinnerPanel.add( mipmapLevelSpinner, BorderLayout.CENTER );
+		panel.add( mipmapLevelSpinnerPanel );
+
 		isMethodCylindrical = true;
 		final JComboBox projectionMethodComboBox = new JComboBox();
 		final String CYLINDRICAL = "cylindrical projection";
@@ -226,6 +284,7 @@ public class ProjectionTab extends JPanel
 			public void itemStateChanged( final ItemEvent ie )
 			{
 				isMethodCylindrical = CYLINDRICAL.equals( ie.getItem() );
+				updatePreview();
 			}
 		} );
 		panel.add( projectionMethodComboBox );
@@ -239,6 +298,7 @@ public class ProjectionTab extends JPanel
 			public void actionPerformed( final ActionEvent e )
 			{
 				flipZ = flipZCheckBox.isSelected();
+				updatePreview();
 			}
 		} );
 		panel.add( flipZCheckBox );
@@ -252,10 +312,108 @@ public class ProjectionTab extends JPanel
 			public void actionPerformed( final ActionEvent e )
 			{
 				alignY = alignYCheckBox.isSelected();
+				updatePreview();
 			}
 		} );
 		panel.add( alignYCheckBox );
 
+		pixelMajor = false;
+		final JCheckBox pixelMajorCheckBox = new JCheckBox( "pixel-major traversal" );
+		pixelMajorCheckBox.setSelected( pixelMajor );
+		pixelMajorCheckBox.addActionListener( new ActionListener()
+		{
+			@Override
+			public void actionPerformed( final ActionEvent e )
+			{
+				pixelMajor = pixelMajorCheckBox.isSelected();
+			}
+		} );
+		panel.add( pixelMajorCheckBox );
+
+		directSampling = false;
+		final JCheckBox directSamplingCheckBox = new JCheckBox( "direct voxel sampling" );
+		directSamplingCheckBox.setSelected( directSampling );
+		directSamplingCheckBox.addActionListener( new ActionListener()
+		{
+			@Override
+			public void actionPerformed( final ActionEvent e )
+			{
+				directSampling = directSamplingCheckBox.isSelected();
+				updatePreview();
+			}
+		} );
+		panel.add( directSamplingCheckBox );
+
+		reduction = null;
+		final JComboBox reductionComboBox = new JComboBox();
+		final String NO_REDUCTION = "depth stack";
+		reductionComboBox.addItem( NO_REDUCTION );
+		for ( final ProjectionReduction r : ProjectionReduction.values() )
+			reductionComboBox.addItem( r );
+		reductionComboBox.addItemListener( new ItemListener()
+		{
+			@Override
+			public void itemStateChanged( final ItemEvent ie )
+			{
+				if ( ie.getStateChange() == ItemEvent.SELECTED )
+					reduction = NO_REDUCTION.equals( ie.getItem() ) ? null : ( ProjectionReduction ) ie.getItem();
+			}
+		} );
+		final JPanel reductionPanel = new JPanel();
+		reductionPanel.setLayout( new BorderLayout( 10, 10 ) );
+		reductionPanel.add( new JLabel( "reduction" ), BorderLayout.LINE_START );
+		reductionPanel.add( reductionComboBox, BorderLayout.CENTER );
+		panel.add( reductionPanel );
+
+		usePlanCache = false;
+		final JCheckBox usePlanCacheCheckBox = new JCheckBox( "reuse sampling plan across timepoints" );
+		usePlanCacheCheckBox.setSelected( usePlanCache );
+		usePlanCacheCheckBox.addActionListener( new ActionListener()
+		{
+			@Override
+			public void actionPerformed( final ActionEvent e )
+			{
+				usePlanCache = usePlanCacheCheckBox.isSelected();
+			}
+		} );
+		panel.add( usePlanCacheCheckBox );
+
+		saveToDirectory = false;
+		final JCheckBox saveToDirectoryCheckBox = new JCheckBox( "save timepoints to directory" );
+		saveToDirectoryCheckBox.setSelected( saveToDirectory );
+		saveToDirectoryCheckBox.addActionListener( new ActionListener()
+		{
+			@Override
+			public void actionPerformed( final ActionEvent e )
+			{
+				saveToDirectory = saveToDirectoryCheckBox.isSelected();
+			}
+		} );
+		panel.add( saveToDirectoryCheckBox );
+
+		preview = false;
+		final JCheckBox previewCheckBox = new JCheckBox( "preview projection" );
+		previewCheckBox.setSelected( preview );
+		previewCheckBox.addActionListener( new ActionListener()
+		{
+			@Override
+			public void actionPerformed( final ActionEvent e )
+			{
+				if ( previewCheckBox.isSelected() )
+				{
+					preview = true;
+					updatePreview();
+					addPreviewSources();
+				}
+				else
+				{
+					removePreviewSources();
+					preview = false;
+				}
+			}
+		} );
+		panel.add( previewCheckBox );
+
 		final JButton bcomputeButton = new JButton( "compute" );
 		bcomputeButton.addActionListener( new AbstractAction()
 		{
@@ -266,7 +424,24 @@ public class ProjectionTab extends JPanel
 					maxTimepoint = minTimepoint;
 				if ( maxProjectDistance < minProjectDistance )
 					maxProjectDistance = minProjectDistance;
-				data.project( projectWidth, projectHeight, minProjectDistance, maxProjectDistance, sliceDistance, minTimepoint, maxTimepoint, flipZ, alignY, isMethodCylindrical );
+				ProjectionWriter writer = null;
+				if ( saveToDirectory )
+				{
+					final JFileChooser fileChooser = new JFileChooser();
+					fileChooser.setFileSelectionMode( JFileChooser.DIRECTORIES_ONLY );
+					if ( fileChooser.showSaveDialog( ProjectionTab.this ) != JFileChooser.APPROVE_OPTION )
+						return;
+					writer = new TiffSeriesWriter( fileChooser.getSelectedFile(), isMethodCylindrical ? "cylindrical" : "spherical" );
+				}
+				final ProjectionOptions options = ProjectionOptions.options()
+						.numThreads( numThreads )
+						.pixelMajor( pixelMajor )
+						.mipmapLevel( mipmapLevel )
+						.directSampling( directSampling )
+						.planCache( usePlanCache ? data.getPlanCache() : null )
+						.writer( writer )
+						.reduction( reduction );
+				data.project( projectWidth, projectHeight, minProjectDistance, maxProjectDistance, sliceDistance, minTimepoint, maxTimepoint, flipZ, alignY, isMethodCylindrical, options );
 			}
 		} );
 
@@ -279,17 +454,74 @@ public class ProjectionTab extends JPanel
 
 		bandConverterSetup = new RealARGBColorConverterSetup( bandSetupId, converter );
 		bandConverterSetup.setViewer( viewer );
+
+		// show the preview next to the data
+		final AffineTransform3D previewTransform = new AffineTransform3D();
+		previewTransform.setTranslation( rangeInterval.max( 0 ) + 50, rangeInterval.min( 1 ), rangeInterval.min( 2 ) );
+		for ( int c = 0; c < data.numProjectionSources(); ++c )
+		{
+			final ProjectionSource previewSource = new ProjectionSource( "projection preview " + c, null, c, 1024 );
+			previewSource.setSourceTransform( previewTransform );
+			previewSource.setRequestRepaint( viewer );
+			final RealARGBColorConverter< FloatType > previewConverter = new RealARGBColorConverter.Imp1< FloatType >( 0, 5000 );
+			previewConverter.setColor( new ARGBType( Color.white.getRGB() ) );
+			previewSources.add( previewSource );
+			previewSourceAndConverters.add( new SourceAndConverter< FloatType >( previewSource, previewConverter ) );
+			final RealARGBColorConverterSetup previewConverterSetup = new RealARGBColorConverterSetup( bandSetupId + 1 + c, previewConverter );
+			previewConverterSetup.setViewer( viewer );
+			previewConverterSetups.add( previewConverterSetup );
+		}
+	}
+
+	/**
+	 * Update the lazily computed preview projection to the current ellipsoid
+	 * and parameters.
+	 */
+	void updatePreview()
+	{
+		if ( !preview )
+			return;
+
+		final EllipsoidProjection projection = data.getEllipsoid() == null
+				? null
+				: data.createProjection( projectWidth, projectHeight, minProjectDistance, Math.max( minProjectDistance, maxProjectDistance ),
+						sliceDistance, minTimepoint, maxTimepoint, flipZ, alignY, isMethodCylindrical, ProjectionOptions.options().directSampling( directSampling ).mipmapLevel( mipmapLevel ) );
+		for ( final ProjectionSource previewSource : previewSources )
+			previewSource.setProjection( projection );
+		viewer.requestRepaint();
+	}
+
+	private void addPreviewSources()
+	{
+		for ( int c = 0; c < previewSources.size(); ++c )
+		{
+			viewer.addSource( previewSourceAndConverters.get( c ) );
+			setupAssignments.addSetup( previewConverterSetups.get( c ) );
+		}
+	}
+
+	private void removePreviewSources()
+	{
+		for ( int c = 0; c < previewSources.size(); ++c )
+		{
+			viewer.removeSource( previewSources.get( c ) );
+			setupAssignments.removeSetup( previewConverterSetups.get( c ) );
+		}
 	}
 
 	void addOverlays()
 	{
 		viewer.addSource( bandSourceAndConverter );
 		setupAssignments.addSetup( bandConverterSetup );
+		if ( preview )
+			addPreviewSources();
 	}
 
 	void removeOverlays()
 	{
 		viewer.removeSource( bandSourceAndConverter.getSpimSource() );
 		setupAssignments.removeSetup( bandConverterSetup );
+		if ( preview )
+			removePreviewSources();
 	}
 }
@@ -28,49 +28,53 @@
  */
 package de.mpicbg.ovaries;
 
-import bdv.viewer.Interpolation;
+import java.util.Collections;
+import java.util.List;
+
 import bdv.viewer.Source;
 import de.mpicbg.ovaries.ellipsoid.Ellipsoid;
 import de.mpicbg.ovaries.ellipsoid.HyperEllipsoid;
-import ij.IJ;
-import ij.ImagePlus;
 
-import net.imglib2.RandomAccess;
-import net.imglib2.RandomAccessible;
-import net.imglib2.RealRandomAccess;
-import net.imglib2.exception.ImgLibException;
-import net.imglib2.img.imageplus.FloatImagePlus;
-import net.imglib2.img.imageplus.ImagePlusImgs;
-import net.imglib2.realtransform.AffineTransform3D;
-import net.imglib2.realtransform.RealViews;
 import net.imglib2.realtransform.SphericalToCartesianTransform3D;
 import net.imglib2.type.numeric.integer.UnsignedShortType;
-import net.imglib2.type.numeric.real.FloatType;
 import net.imglib2.util.LinAlgHelpers;
-import net.imglib2.view.IntervalView;
-import net.imglib2.view.Views;
 
-public class SphericalProjection
+public class SphericalProjection extends EllipsoidProjection
 {
-	private final Ellipsoid ellipsoid;
-
-	private final int width;
-
-	private final int height;
-
-	private final Source< UnsignedShortType > source;
-
-	private final double[][] cylAxes;
-
-	private final double minProjectDistance;
-
-	private final double maxProjectDistance;
-
-	private final double sliceDistance;
-
-	private final int minTimepoint;
+	public SphericalProjection(
+			final Ellipsoid ellipsoid,
+			final int width,
+			final int height,
+			final double minProjectDistance,
+			final double maxProjectDistance,
+			final double sliceDistance,
+			final int minTimepoint,
+			final int maxTimepoint,
+			final boolean flipZ,
+			final boolean alignY,
+			final Source< UnsignedShortType > source )
+	{
+		this( ellipsoid, width, height, minProjectDistance, maxProjectDistance, sliceDistance,
+				minTimepoint, maxTimepoint, flipZ, alignY, source, ProjectionOptions.options() );
+	}
 
-	private final int maxTimepoint;
+	public SphericalProjection(
+			final Ellipsoid ellipsoid,
+			final int width,
+			final int height,
+			final double minProjectDistance,
+			final double maxProjectDistance,
+			final double sliceDistance,
+			final int minTimepoint,
+			final int maxTimepoint,
+			final boolean flipZ,
+			final boolean alignY,
+			final Source< UnsignedShortType > source,
+			final ProjectionOptions options )
+	{
+		this( ellipsoid, width, height, minProjectDistance, maxProjectDistance, sliceDistance,
+				minTimepoint, maxTimepoint, flipZ, alignY, Collections.singletonList( source ), options );
+	}
 
 	public SphericalProjection(
 			final Ellipsoid ellipsoid,
@@ -83,18 +87,11 @@ public class SphericalProjection
 			final int maxTimepoint,
 			final boolean flipZ,
 			final boolean alignY,
-			final Source< UnsignedShortType > source )
+			final List< Source< UnsignedShortType > > sources,
+			final ProjectionOptions options )
 	{
-		this.ellipsoid = ellipsoid;
-		this.width = width;
-		this.height = height;
-		this.minProjectDistance = minProjectDistance;
-		this.maxProjectDistance = maxProjectDistance;
-		this.sliceDistance = sliceDistance;
-		this.minTimepoint = minTimepoint;
-		this.maxTimepoint = maxTimepoint;
-		this.source = source;
-		this.cylAxes = getCylinderAxes( ellipsoid, flipZ, alignY );
+		super( ellipsoid, width, height, minProjectDistance, maxProjectDistance, sliceDistance,
+				minTimepoint, maxTimepoint, flipZ, alignY, sources, options );
 	}
 
 	public static double[][] getCylinderAxes( final Ellipsoid ellipsoid, final boolean flipZ, final boolean alignY )
@@ -134,88 +131,19 @@ public class SphericalProjection
 		return new double[][] { A, Z, L };
 	}
 
-	public ImagePlus project()
+	@Override
+	protected String getName()
 	{
-		final StringBuilder sb = new StringBuilder("\n\nSphericalProjection\n");
-		sb.append( "Ellipsoid = " + ellipsoid + "\n");
-		sb.append( "cylAxes = " + LinAlgHelpers.toString( cylAxes ) + "\n");
-		sb.append( "width = " + width + "\n");
-		sb.append( "height = " + height + "\n");
-		sb.append( "minProjectDistance = " + minProjectDistance + "\n");
-		sb.append( "maxProjectDistance = " + maxProjectDistance + "\n");
-		sb.append( "sliceDistance = " + sliceDistance + "\n");
-		sb.append( "minTimepoint = " + minTimepoint + "\n");
-		sb.append( "maxTimepoint = " + maxTimepoint + "\n\n\n");
-		IJ.log( sb.toString() );
-		ImagePlus imp = null;
-		try
-		{
-			final int depth = ( int ) Math.ceil( ( maxProjectDistance - minProjectDistance ) / sliceDistance ) + 1;
-			final int numTimepoints = maxTimepoint - minTimepoint + 1;
-			final FloatImagePlus< FloatType > floats = ImagePlusImgs.floats( width, height, depth, numTimepoints );
-			imp = floats.getImagePlus();
-			imp.setDimensions( 1, depth, numTimepoints );
-			imp.show();
-
-			for ( int t = 0; t < numTimepoints; ++t )
-			{
-				for ( int z = 0; z < depth; ++z )
-				{
-					final double distance = minProjectDistance + z * sliceDistance;
-					final IntervalView< FloatType > slice = Views.hyperSlice( Views.hyperSlice( floats, 3, t ), 2, z );
-					projectPlane( distance, t + minTimepoint, slice );
-				}
-			}
-		}
-		catch ( final ImgLibException e )
-		{}
-		return imp;
+		return "SphericalProjection";
 	}
 
-	public void projectPlane( final double distance, final int t, final RandomAccessible< FloatType > plane )
+	@Override
+	protected void getDirection( final int xpi, final int ypi, final double[] spherical, final double[] direction )
 	{
-		final RandomAccess< FloatType > out = plane.randomAccess();
-		final AffineTransform3D transform = new AffineTransform3D();
-		source.getSourceTransform( t, 0, transform );
-		final RealRandomAccess< UnsignedShortType > in = RealViews.affineReal( source.getInterpolatedSource( t, 0, Interpolation.NLINEAR ), transform ).realRandomAccess();
-
-		final double[] spherical = new double[ 3 ];
-		final double[] unit = new double[ 3 ];
-		final double[] cyl = new double[ 3 ];
-		// point on ellipsoid
-		final double[] pe = new double[ 3 ];
-		// unit normal at pe
-		final double[] ne = new double[ 3 ];
-
-		final long t0 = System.currentTimeMillis();
 		spherical[ 0 ] = 1.0; // radius
-		for ( int ypi = 0; ypi < height; ++ypi )
-		{
-			out.setPosition( ypi, 1 );
-			spherical[ 1 ] = ypi * Math.PI / height; // inclination
-			for ( int xpi = 0; xpi < width; ++xpi )
-			{
-				out.setPosition( xpi, 0 );
-				spherical[ 2 ] = xpi * 2 * Math.PI / width; // azimuth
-				SphericalToCartesianTransform3D.getInstance().apply( spherical, cyl );
-				LinAlgHelpers.multT( cylAxes, cyl, unit );
-				LinAlgHelpers.normalize( unit );
-
-				LinAlgHelpers.mult( ellipsoid.getPrecision(), unit, ne );
-				LinAlgHelpers.scale( unit, Math.sqrt( 1.0 / LinAlgHelpers.dot( unit, ne ) ), pe );
-				LinAlgHelpers.mult( ellipsoid.getPrecision(), pe, ne );
-				LinAlgHelpers.normalize( ne );
-				LinAlgHelpers.add( pe, ellipsoid.getCenter(), pe );
-
-				LinAlgHelpers.scale( ne, distance, ne );
-				LinAlgHelpers.add( pe, ne, pe );
-				in.setPosition( pe );
-				final double v = in.get().getRealDouble();
-				out.get().setReal( v );
-			}
-		}
-		final long t1 = System.currentTimeMillis();
-		System.out.println( (t1 - t0) + " ms" );
+		spherical[ 1 ] = ypi * Math.PI / height; // inclination
+		spherical[ 2 ] = xpi * 2 * Math.PI / width; // azimuth
+		SphericalToCartesianTransform3D.getInstance().apply( spherical, direction );
 	}
 
 	protected static void pointInDirection( final HyperEllipsoid ellipsoid, final double[] unit, final double[] point )
@@ -0,0 +1,78 @@
+/*-
+ * #%L
+ * Ellipsoid Surface Projection
+ * %%
+ * Copyright (C) 2016 - 2018 Tobias Pietzsch
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.mpicbg.ovaries;
+
+import java.io.File;
+import java.io.IOException;
+
+import ij.ImagePlus;
+import ij.io.FileSaver;
+
+/**
+ * Writes the projection of each timepoint to a separate TIFF file
+ * {@code <prefix>-t<timepoint>.tif} in a directory.
+ */
+public class TiffSeriesWriter implements ProjectionWriter
+{
+	private final File directory;
+
+	private final String prefix;
+
+	public TiffSeriesWriter( final File directory, final String prefix )
+	{
+		this.directory = directory;
+		this.prefix = prefix;
+	}
+
+	public File getFile( final int timepoint )
+	{
+		return new File( directory, String.format( "%s-t%05d.tif", prefix, timepoint ) );
+	}
+
+	@Override
+	public void write( final int timepoint, final ImagePlus imp ) throws IOException
+	{
+		if ( !directory.isDirectory() && !directory.mkdirs() )
+			throw new IOException( "Could not create directory " + directory );
+
+		final File file = getFile( timepoint );
+		final FileSaver saver = new FileSaver( imp );
+		final boolean success = imp.getStackSize() > 1
+				? saver.saveAsTiffStack( file.getAbsolutePath() )
+				: saver.saveAsTiff( file.getAbsolutePath() );
+		if ( !success )
+			throw new IOException( "Could not write " + file );
+	}
+
+	@Override
+	public String toString()
+	{
+		return "TiffSeriesWriter(" + new File( directory, prefix ) + ")";
+	}
+}
@@ -0,0 +1,233 @@
+/*-
+ * #%L
+ * Ellipsoid Surface Projection
+ * %%
+ * Copyright (C) 2016 - 2018 Tobias Pietzsch
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.mpicbg.ovaries;
+
+import net.imglib2.Interval;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.basictypeaccess.array.ArrayDataAccess;
+import net.imglib2.img.cell.AbstractCellImg;
+import net.imglib2.img.cell.Cell;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+/**
+ * Trilinear {@link VoxelSampler} for {@link UnsignedShortType} images.
+ *
+ * <p>
+ * If the image is an {@link ArrayImg} or a cell image (as loaded by
+ * BigDataViewer), the eight neighbours of a sample are read directly from the
+ * {@code short[]} storage of the cell containing them. The last cell is
+ * remembered, so consecutive samples along a ray usually avoid any lookup.
+ * Samples whose neighbourhood straddles a cell border or leaves the image are
+ * read through a zero-extended {@link RandomAccess}.
+ */
+public class TrilinearSampler implements VoxelSampler
+{
+	private final RandomAccess< UnsignedShortType > outOfBounds;
+
+	private final Interval imgInterval;
+
+	private final RandomAccess< ? extends Cell< ? > > cells;
+
+	private final int[] cellDims;
+
+	private final long[] cellGridPosition;
+
+	// the current cell
+	private short[] data;
+
+	private long minX, minY, minZ;
+
+	private long maxX, maxY, maxZ;
+
+	private int strideY, strideZ;
+
+	private final int[] tmpDims = new int[ 3 ];
+
+	private final long[] tmpMin = new long[ 3 ];
+
+	public TrilinearSampler( final RandomAccessibleInterval< UnsignedShortType > img )
+	{
+		outOfBounds = Views.extendZero( img ).randomAccess();
+		imgInterval = Intervals.expand( img, 0 );
+		cellGridPosition = new long[ 3 ];
+
+		if ( img instanceof AbstractCellImg )
+		{
+			final AbstractCellImg< ?, ?, ?, ? > cellImg = ( AbstractCellImg< ?, ?, ?, ? > ) img;
+			final CellGrid grid = cellImg.getCellGrid();
+			cellDims = new int[ 3 ];
+			grid.cellDimensions( cellDims );
+			cells = cellImg.getCells().randomAccess();
+		}
+		else
+		{
+			cellDims = null;
+			cells = null;
+			if ( img instanceof ArrayImg )
+				setCurrentStorage( ( ( ArrayImg< ?, ? > ) img ).update( null ), img.min( 0 ), img.min( 1 ), img.min( 2 ), ( int ) img.dimension( 0 ), ( int ) img.dimension( 1 ), ( int ) img.dimension( 2 ) );
+		}
+	}
+
+	@Override
+	public double sample( final double[] position )
+	{
+		final double px = Math.floor( position[ 0 ] );
+		final double py = Math.floor( position[ 1 ] );
+		final double pz = Math.floor( position[ 2 ] );
+		return sample( ( long ) px, ( long ) py, ( long ) pz, position[ 0 ] - px, position[ 1 ] - py, position[ 2 ] - pz );
+	}
+
+	/**
+	 * Get the value at {@code (x0 + wx, y0 + wy, z0 + wz)}.
+	 *
+	 * @param x0
+	 *            base voxel
+	 * @param wx
+	 *            fractional offset from the base voxel, in {@code [0, 1)}.
+	 */
+	public double sample( final long x0, final long y0, final long z0, final double wx, final double wy, final double wz )
+	{
+		if ( !contains( x0, y0, z0 ) && !( cells != null && findCell( x0, y0, z0 ) ) )
+			return sampleOutOfBounds( x0, y0, z0, wx, wy, wz );
+
+		final int i000 = ( int ) ( x0 - minX ) + strideY * ( int ) ( y0 - minY ) + strideZ * ( int ) ( z0 - minZ );
+		final int i010 = i000 + strideY;
+		final int i001 = i000 + strideZ;
+		final int i011 = i001 + strideY;
+		final short[] d = data;
+		final double v000 = d[ i000 ] & 0xffff;
+		final double v100 = d[ i000 + 1 ] & 0xffff;
+		final double v010 = d[ i010 ] & 0xffff;
+		final double v110 = d[ i010 + 1 ] & 0xffff;
+		final double v001 = d[ i001 ] & 0xffff;
+		final double v101 = d[ i001 + 1 ] & 0xffff;
+		final double v011 = d[ i011 ] & 0xffff;
+		final double v111 = d[ i011 + 1 ] & 0xffff;
+		return interpolate( v000, v100, v010, v110, v001, v101, v011, v111, wx, wy, wz );
+	}
+
+	/**
+	 * Whether the 2x2x2 neighbourhood starting at {@code (x0, y0, z0)} is
+	 * contained in the current cell.
+	 */
+	private boolean contains( final long x0, final long y0, final long z0 )
+	{
+		return data != null
+				&& x0 >= minX && x0 < maxX
+				&& y0 >= minY && y0 < maxY
+				&& z0 >= minZ && z0 < maxZ;
+	}
+
+	/**
+	 * Make the cell containing {@code (x0, y0, z0)} current.
+	 *
+	 * @return whether the 2x2x2 neighbourhood starting at {@code (x0, y0, z0)}
+	 *         is contained in the new current cell.
+	 */
+	private boolean findCell( final long x0, final long y0, final long z0 )
+	{
+		if ( x0 < imgInterval.min( 0 ) || x0 >= imgInterval.max( 0 )
+				|| y0 < imgInterval.min( 1 ) || y0 >= imgInterval.max( 1 )
+				|| z0 < imgInterval.min( 2 ) || z0 >= imgInterval.max( 2 ) )
+			return false;
+
+		cellGridPosition[ 0 ] = ( x0 - imgInterval.min( 0 ) ) / cellDims[ 0 ];
+		cellGridPosition[ 1 ] = ( y0 - imgInterval.min( 1 ) ) / cellDims[ 1 ];
+		cellGridPosition[ 2 ] = ( z0 - imgInterval.min( 2 ) ) / cellDims[ 2 ];
+		cells.setPosition( cellGridPosition );
+		final Cell< ? > cell = cells.get();
+		cell.min( tmpMin );
+		cell.dimensions( tmpDims );
+		setCurrentStorage( cell.getData(), tmpMin[ 0 ], tmpMin[ 1 ], tmpMin[ 2 ], tmpDims[ 0 ], tmpDims[ 1 ], tmpDims[ 2 ] );
+		return contains( x0, y0, z0 );
+	}
+
+	private void setCurrentStorage( final Object access, final long x, final long y, final long z, final int sx, final int sy, final int sz )
+	{
+		final Object array = access instanceof ArrayDataAccess ? ( ( ArrayDataAccess< ? > ) access ).getCurrentStorageArray() : null;
+		if ( !( array instanceof short[] ) )
+		{
+			data = null;
+			return;
+		}
+		data = ( short[] ) array;
+		minX = x;
+		minY = y;
+		minZ = z;
+		// the neighbourhood of a base voxel extends one voxel further
+		maxX = x + sx - 1;
+		maxY = y + sy - 1;
+		maxZ = z + sz - 1;
+		strideY = sx;
+		strideZ = sx * sy;
+	}
+
+	private double sampleOutOfBounds( final long x0, final long y0, final long z0, final double wx, final double wy, final double wz )
+	{
+		final RandomAccess< UnsignedShortType > in = outOfBounds;
+		in.setPosition( x0, 0 );
+		in.setPosition( y0, 1 );
+		in.setPosition( z0, 2 );
+		final double v000 = in.get().getRealDouble();
+		in.fwd( 0 );
+		final double v100 = in.get().getRealDouble();
+		in.fwd( 1 );
+		final double v110 = in.get().getRealDouble();
+		in.bck( 0 );
+		final double v010 = in.get().getRealDouble();
+		in.fwd( 2 );
+		final double v011 = in.get().getRealDouble();
+		in.fwd( 0 );
+		final double v111 = in.get().getRealDouble();
+		in.bck( 1 );
+		final double v101 = in.get().getRealDouble();
+		in.bck( 0 );
+		final double v001 = in.get().getRealDouble();
+		return interpolate( v000, v100, v010, v110, v001, v101, v011, v111, wx, wy, wz );
+	}
+
+	private static double interpolate(
+			final double v000, final double v100, final double v010, final double v110,
+			final double v001, final double v101, final double v011, final double v111,
+			final double wx, final double wy, final double wz )
+	{
+		final double v00 = v000 + wx * ( v100 - v000 );
+		final double v10 = v010 + wx * ( v110 - v010 );
+		final double v01 = v001 + wx * ( v101 - v001 );
+		final double v11 = v011 + wx * ( v111 - v011 );
+		final double v0 = v00 + wy * ( v10 - v00 );
+		final double v1 = v01 + wy * ( v11 - v01 );
+		return v0 + wz * ( v1 - v0 );
+	}
+}
@@ -0,0 +1,64 @@
+/*-
+ * #%L
+ * Ellipsoid Surface Projection
+ * %%
+ * Copyright (C) 2016 - 2018 Tobias Pietzsch
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.mpicbg.ovaries;
+
+import net.imglib2.RealRandomAccess;
+import net.imglib2.type.numeric.RealType;
+
+/**
+ * Samples an image at real voxel coordinates.
+ */
+public interface VoxelSampler
+{
+	/**
+	 * Get the interpolated value at {@code position} (in voxel coordinates).
+	 */
+	public double sample( final double[] position );
+
+	/**
+	 * {@link VoxelSampler} backed by a {@link RealRandomAccess}, e.g., into
+	 * the interpolated source of a BigDataViewer source.
+	 */
+	public static class Interpolated implements VoxelSampler
+	{
+		private final RealRandomAccess< ? extends RealType< ? > > access;
+
+		public Interpolated( final RealRandomAccess< ? extends RealType< ? > > access )
+		{
+			this.access = access;
+		}
+
+		@Override
+		public double sample( final double[] position )
+		{
+			access.setPosition( position );
+			return access.get().getRealDouble();
+		}
+	}
+}
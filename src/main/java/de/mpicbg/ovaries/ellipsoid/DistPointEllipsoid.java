@@ -0,0 +1,535 @@
+/*-
+ * #%L
+ * Ellipsoid Surface Projection
+ * %%
+ * Copyright (C) 2016 - 2018 Tobias Pietzsch
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.mpicbg.ovaries.ellipsoid;
+
+import net.imglib2.RealLocalizable;
+
+/**
+ * Distance from a point to an ellipsoid in 3D. This is the algorithm of
+ * {@link DistPointHyperEllipsoid}, specialized to three dimensions.
+ *
+ * <p>
+ * The axes, center, and radii (sorted by decreasing length) of the ellipsoid
+ * are set up once in the constructor. Queries use only local variables, so
+ * they do not allocate and one {@link DistPointEllipsoid} may be used
+ * concurrently by multiple threads. Callers that need the closest point pass
+ * their own (per-thread) array to receive it.
+ */
+public class DistPointEllipsoid
+{
+	// center
+	private final double c0, c1, c2;
+
+	// axes, ordered by decreasing radius
+	private final double[][] axes;
+
+	// radii, e0 >= e1 >= e2
+	private final double e0, e1, e2;
+
+	// half size of the axis-aligned bounding box
+	private final double h0, h1, h2;
+
+	public DistPointEllipsoid( final HyperEllipsoid ellipsoid )
+	{
+		if ( ellipsoid.numDimensions() != 3 )
+			throw new IllegalArgumentException( "DistPointEllipsoid requires a 3D ellipsoid" );
+
+		final double[] center = ellipsoid.getCenter();
+		c0 = center[ 0 ];
+		c1 = center[ 1 ];
+		c2 = center[ 2 ];
+
+		final double[][] a = ellipsoid.getAxes();
+		final double[] e = ellipsoid.getRadii();
+		final int[] permute = { 0, 1, 2 };
+		for ( int i = 1; i < 3; ++i )
+			for ( int j = i; j > 0 && e[ permute[ j ] ] > e[ permute[ j - 1 ] ]; --j )
+			{
+				final int tmp = permute[ j ];
+				permute[ j ] = permute[ j - 1 ];
+				permute[ j - 1 ] = tmp;
+			}
+		axes = new double[][] { a[ permute[ 0 ] ].clone(), a[ permute[ 1 ] ].clone(), a[ permute[ 2 ] ].clone() };
+		e0 = e[ permute[ 0 ] ];
+		e1 = e[ permute[ 1 ] ];
+		e2 = e[ permute[ 2 ] ];
+
+		final double[] h = new double[ 3 ];
+		for ( int d = 0; d < 3; ++d )
+			for ( int k = 0; k < 3; ++k )
+				h[ d ] += e[ k ] * e[ k ] * a[ k ][ d ] * a[ k ][ d ];
+		h0 = Math.sqrt( h[ 0 ] );
+		h1 = Math.sqrt( h[ 1 ] );
+		h2 = Math.sqrt( h[ 2 ] );
+	}
+
+	public double distance( final RealLocalizable point )
+	{
+		return distance( point.getDoublePosition( 0 ), point.getDoublePosition( 1 ), point.getDoublePosition( 2 ) );
+	}
+
+	public double distance( final double x, final double y, final double z )
+	{
+		return distance( x, y, z, null );
+	}
+
+	/**
+	 * Compute the distance from point {@code (x, y, z)} to the ellipsoid.
+	 *
+	 * @param closestPoint
+	 *            if not {@code null}, the closest point on the ellipsoid is
+	 *            stored here.
+	 */
+	public double distance( final double x, final double y, final double z, final double[] closestPoint )
+	{
+		final double d0 = x - c0;
+		final double d1 = y - c1;
+		final double d2 = z - c2;
+		final double y0 = axes[ 0 ][ 0 ] * d0 + axes[ 0 ][ 1 ] * d1 + axes[ 0 ][ 2 ] * d2;
+		final double y1 = axes[ 1 ][ 0 ] * d0 + axes[ 1 ][ 1 ] * d1 + axes[ 1 ][ 2 ] * d2;
+		final double y2 = axes[ 2 ][ 0 ] * d0 + axes[ 2 ][ 1 ] * d1 + axes[ 2 ][ 2 ] * d2;
+
+		final double sqrDistance = sqrDistance( Math.abs( y0 ), Math.abs( y1 ), Math.abs( y2 ), closestPoint );
+
+		if ( closestPoint != null )
+		{
+			// restore reflections, and rotate back
+			final double x0 = y0 < 0 ? -closestPoint[ 0 ] : closestPoint[ 0 ];
+			final double x1 = y1 < 0 ? -closestPoint[ 1 ] : closestPoint[ 1 ];
+			final double x2 = y2 < 0 ? -closestPoint[ 2 ] : closestPoint[ 2 ];
+			for ( int d = 0; d < 3; ++d )
+				closestPoint[ d ] = axes[ 0 ][ d ] * x0 + axes[ 1 ][ d ] * x1 + axes[ 2 ][ d ] * x2;
+			closestPoint[ 0 ] += c0;
+			closestPoint[ 1 ] += c1;
+			closestPoint[ 2 ] += c2;
+		}
+
+		return Math.sqrt( sqrDistance );
+	}
+
+	/**
+	 * Compute the signed distance from point {@code (x, y, z)} to the
+	 * ellipsoid: negative inside, positive outside.
+	 */
+	public double signedDistance( final double x, final double y, final double z )
+	{
+		final double d0 = x - c0;
+		final double d1 = y - c1;
+		final double d2 = z - c2;
+		final double y0 = axes[ 0 ][ 0 ] * d0 + axes[ 0 ][ 1 ] * d1 + axes[ 0 ][ 2 ] * d2;
+		final double y1 = axes[ 1 ][ 0 ] * d0 + axes[ 1 ][ 1 ] * d1 + axes[ 1 ][ 2 ] * d2;
+		final double y2 = axes[ 2 ][ 0 ] * d0 + axes[ 2 ][ 1 ] * d1 + axes[ 2 ][ 2 ] * d2;
+		return signedDistanceLocal( y0, y1, y2 );
+	}
+
+	/**
+	 * Compute the signed distance from point {@code (x, y, z)} to the
+	 * ellipsoid, if it is within the cutoff distance on its side of the
+	 * surface. Points that are certainly farther outside than
+	 * {@code outsideCutoff} (inside than {@code insideCutoff}) are
+	 * classified by cheap distance bounds and get {@code +infinity} ({@code
+	 * -infinity}) without solving for the exact distance.
+	 */
+	public double signedDistance( final double x, final double y, final double z, final double outsideCutoff, final double insideCutoff )
+	{
+		final double d0 = x - c0;
+		final double d1 = y - c1;
+		final double d2 = z - c2;
+		final double y0 = axes[ 0 ][ 0 ] * d0 + axes[ 0 ][ 1 ] * d1 + axes[ 0 ][ 2 ] * d2;
+		final double y1 = axes[ 1 ][ 0 ] * d0 + axes[ 1 ][ 1 ] * d1 + axes[ 1 ][ 2 ] * d2;
+		final double y2 = axes[ 2 ][ 0 ] * d0 + axes[ 2 ][ 1 ] * d1 + axes[ 2 ][ 2 ] * d2;
+		final double z0 = y0 / e0;
+		final double z1 = y1 / e1;
+		final double z2 = y2 / e2;
+		final double q = Math.sqrt( z0 * z0 + z1 * z1 + z2 * z2 );
+		if ( q > 1 )
+		{
+			if ( lowerBoundOutside( y0, y1, y2, q ) > outsideCutoff )
+				return Double.POSITIVE_INFINITY;
+		}
+		else if ( lowerBoundInside( q ) > insideCutoff )
+			return Double.NEGATIVE_INFINITY;
+		return signedDistanceLocal( y0, y1, y2 );
+	}
+
+	/**
+	 * Whether point {@code (x, y, z)} is within {@code outsideCutoff} outside
+	 * or {@code insideCutoff} inside the ellipsoid. The exact distance is only
+	 * computed if the cheap distance bounds do not decide.
+	 */
+	public boolean isInlier( final double x, final double y, final double z, final double outsideCutoff, final double insideCutoff )
+	{
+		final double d0 = x - c0;
+		final double d1 = y - c1;
+		final double d2 = z - c2;
+		final double y0 = axes[ 0 ][ 0 ] * d0 + axes[ 0 ][ 1 ] * d1 + axes[ 0 ][ 2 ] * d2;
+		final double y1 = axes[ 1 ][ 0 ] * d0 + axes[ 1 ][ 1 ] * d1 + axes[ 1 ][ 2 ] * d2;
+		final double y2 = axes[ 2 ][ 0 ] * d0 + axes[ 2 ][ 1 ] * d1 + axes[ 2 ][ 2 ] * d2;
+		final double z0 = y0 / e0;
+		final double z1 = y1 / e1;
+		final double z2 = y2 / e2;
+		final double q = Math.sqrt( z0 * z0 + z1 * z1 + z2 * z2 );
+		final double r = Math.sqrt( y0 * y0 + y1 * y1 + y2 * y2 );
+		if ( q > 1 )
+		{
+			if ( lowerBoundOutside( y0, y1, y2, q ) > outsideCutoff )
+				return false;
+			// the surface point on the ray from the center is at distance r * ( 1 - 1 / q )
+			if ( r * ( 1 - 1 / q ) <= outsideCutoff )
+				return true;
+			return Math.sqrt( sqrDistance( Math.abs( y0 ), Math.abs( y1 ), Math.abs( y2 ), null ) ) <= outsideCutoff;
+		}
+		else
+		{
+			if ( lowerBoundInside( q ) > insideCutoff )
+				return false;
+			// no point inside is deeper than the center, which is at distance e2
+			final double upper = q > 0 ? Math.min( r * ( 1 / q - 1 ), e2 ) : e2;
+			if ( upper <= insideCutoff )
+				return true;
+			return Math.sqrt( sqrDistance( Math.abs( y0 ), Math.abs( y1 ), Math.abs( y2 ), null ) ) <= insideCutoff;
+		}
+	}
+
+	/**
+	 * Check whether all points within {@code radius} of {@code (x, y, z)} are
+	 * certainly beyond the cutoff distance on their side of the surface. This
+	 * uses the axis-aligned bounding box of the ellipsoid and the distance
+	 * bounds at {@code (x, y, z)}, which carry over to the ball because the
+	 * signed distance is 1-Lipschitz.
+	 *
+	 * @return 1 if all points are farther outside than {@code outsideCutoff},
+	 *         -1 if all points are farther inside than {@code insideCutoff},
+	 *         0 otherwise.
+	 */
+	public int beyondCutoff( final double x, final double y, final double z, final double radius, final double outsideCutoff, final double insideCutoff )
+	{
+		final double d0 = x - c0;
+		final double d1 = y - c1;
+		final double d2 = z - c2;
+		final double margin = outsideCutoff + radius;
+		if ( Math.abs( d0 ) > h0 + margin || Math.abs( d1 ) > h1 + margin || Math.abs( d2 ) > h2 + margin )
+			return 1;
+
+		final double y0 = axes[ 0 ][ 0 ] * d0 + axes[ 0 ][ 1 ] * d1 + axes[ 0 ][ 2 ] * d2;
+		final double y1 = axes[ 1 ][ 0 ] * d0 + axes[ 1 ][ 1 ] * d1 + axes[ 1 ][ 2 ] * d2;
+		final double y2 = axes[ 2 ][ 0 ] * d0 + axes[ 2 ][ 1 ] * d1 + axes[ 2 ][ 2 ] * d2;
+		final double z0 = y0 / e0;
+		final double z1 = y1 / e1;
+		final double z2 = y2 / e2;
+		final double q = Math.sqrt( z0 * z0 + z1 * z1 + z2 * z2 );
+		if ( q > 1 )
+			return lowerBoundOutside( y0, y1, y2, q ) - radius > outsideCutoff ? 1 : 0;
+		else
+			return lowerBoundInside( q ) - radius > insideCutoff ? -1 : 0;
+	}
+
+	/**
+	 * Lower bound on the distance of an outside point {@code (y0, y1, y2)}
+	 * (in the axis-aligned ellipsoid frame) with scaled radius {@code q > 1}.
+	 * The scaled radius {@code q = |diag(1/e) y|} (the square root of the
+	 * algebraic distance {@code x^T P x}) is Lipschitz with constant
+	 * {@code 1/e2}, and the ellipsoid is inside the sphere of radius
+	 * {@code e0}.
+	 */
+	private double lowerBoundOutside( final double y0, final double y1, final double y2, final double q )
+	{
+		final double r = Math.sqrt( y0 * y0 + y1 * y1 + y2 * y2 );
+		return Math.max( ( q - 1 ) * e2, r - e0 );
+	}
+
+	/**
+	 * Lower bound on the distance of an inside point with scaled radius
+	 * {@code q <= 1}. See {@link #lowerBoundOutside(double, double, double, double)}.
+	 */
+	private double lowerBoundInside( final double q )
+	{
+		return ( 1 - q ) * e2;
+	}
+
+	/**
+	 * Compute the signed distances (negative inside, positive outside) of all
+	 * {@code points} to the ellipsoid.
+	 *
+	 * @param distances
+	 *            array of at least {@code points.size()} elements to store the
+	 *            distances.
+	 */
+	public void signedDistances( final PointCloud points, final double[] distances )
+	{
+		signedDistances( points.getXs(), points.getYs(), points.getZs(), distances );
+	}
+
+	/**
+	 * Compute the signed distances (negative inside, positive outside) of the
+	 * points {@code (xs[i], ys[i], zs[i])} to the ellipsoid.
+	 *
+	 * @param distances
+	 *            array of at least {@code xs.length} elements to store the
+	 *            distances.
+	 */
+	public void signedDistances( final double[] xs, final double[] ys, final double[] zs, final double[] distances )
+	{
+		final double a00 = axes[ 0 ][ 0 ], a01 = axes[ 0 ][ 1 ], a02 = axes[ 0 ][ 2 ];
+		final double a10 = axes[ 1 ][ 0 ], a11 = axes[ 1 ][ 1 ], a12 = axes[ 1 ][ 2 ];
+		final double a20 = axes[ 2 ][ 0 ], a21 = axes[ 2 ][ 1 ], a22 = axes[ 2 ][ 2 ];
+		for ( int i = 0; i < xs.length; ++i )
+		{
+			final double d0 = xs[ i ] - c0;
+			final double d1 = ys[ i ] - c1;
+			final double d2 = zs[ i ] - c2;
+			distances[ i ] = signedDistanceLocal(
+					a00 * d0 + a01 * d1 + a02 * d2,
+					a10 * d0 + a11 * d1 + a12 * d2,
+					a20 * d0 + a21 * d1 + a22 * d2 );
+		}
+	}
+
+	/**
+	 * Signed distance of {@code (y0, y1, y2)} in the axis-aligned ellipsoid
+	 * frame. Inside means {@code sum_i (y_i / e_i)^2 <= 1}, as in
+	 * {@link HyperEllipsoid#contains(double[])}.
+	 */
+	private double signedDistanceLocal( final double y0, final double y1, final double y2 )
+	{
+		final double d = Math.sqrt( sqrDistance( Math.abs( y0 ), Math.abs( y1 ), Math.abs( y2 ), null ) );
+		final double z0 = y0 / e0;
+		final double z1 = y1 / e1;
+		final double z2 = y2 / e2;
+		return z0 * z0 + z1 * z1 + z2 * z2 <= 1 ? -d : d;
+	}
+
+	/**
+	 * Squared distance from {@code (y0, y1, y2)} (in the first octant of the
+	 * axis-aligned ellipsoid frame) to the ellipsoid. See
+	 * {@code DistPointHyperEllipsoid.SqrDistanceSpecial}.
+	 *
+	 * @param x
+	 *            if not {@code null}, the closest point (in the first octant of
+	 *            the axis-aligned ellipsoid frame) is stored here.
+	 */
+	private double sqrDistance( final double y0, final double y1, final double y2, final double[] x )
+	{
+		// Components below RESOLUTION (relative to the radius) are treated as
+		// 0. The root is too close to the pole to be resolved in double
+		// precision otherwise, while treating them as 0 moves the closest
+		// point by less than the component.
+		if ( resolvable( y2, e2 ) )
+			return bisector( y0 > 0 ? y0 : 0, y1 > 0 ? y1 : 0, y2, 2, x );
+
+		// y2 == 0
+		return sqrDistance( resolvable( y0, e0 ) ? y0 : 0, resolvable( y1, e1 ) ? y1 : 0, x );
+	}
+
+	/**
+	 * Squared distance from {@code (y0, y1, 0)} to the ellipsoid. Components
+	 * below the resolution must already be 0, otherwise the subellipse tests
+	 * fail for {@code e0 == e2} or {@code e1 == e2}.
+	 */
+	private double sqrDistance( final double y0, final double y1, final double[] x )
+	{
+		final double e2Sqr = e2 * e2;
+		final double numer0 = e0 * y0;
+		final double numer1 = e1 * y1;
+		final double denom0 = e0 * e0 - e2Sqr;
+		final double denom1 = e1 * e1 - e2Sqr;
+		if ( ( y0 <= 0 || numer0 < denom0 ) && ( y1 <= 0 || numer1 < denom1 ) )
+		{
+			// (y0, y1) is inside the axis-aligned bounding box of the
+			// subellipse. This intermediate test is designed to guard against
+			// the division by zero when e0 == e2 or e1 == e2.
+			final double xde0 = y0 > 0 ? numer0 / denom0 : 0;
+			final double xde1 = y1 > 0 ? numer1 / denom1 : 0;
+			final double discr = 1 - xde0 * xde0 - xde1 * xde1;
+			if ( discr > 0 )
+			{
+				// (y0, y1) is inside the subellipse. The closest ellipsoid
+				// point has x2 > 0.
+				final double x0 = e0 * xde0;
+				final double x1 = e1 * xde1;
+				final double x2 = e2 * Math.sqrt( discr );
+				if ( x != null )
+				{
+					x[ 0 ] = x0;
+					x[ 1 ] = x1;
+					x[ 2 ] = x2;
+				}
+				return ( x0 - y0 ) * ( x0 - y0 ) + ( x1 - y1 ) * ( x1 - y1 ) + x2 * x2;
+			}
+		}
+
+		// (y0, y1) is outside the subellipse. The closest ellipsoid point has
+		// x2 == 0 and is on the domain-boundary ellipse.
+		if ( y1 > 0 )
+			return bisector( y0, y1, 0, 1, x );
+		else if ( y0 > 0 )
+			return bisector( y0, 0, 0, 0, x );
+		else
+		{
+			// the center of a degenerate ellipsoid
+			if ( x != null )
+			{
+				x[ 0 ] = 0;
+				x[ 1 ] = 0;
+				x[ 2 ] = e2;
+			}
+			return e2Sqr;
+		}
+	}
+
+	private static boolean resolvable( final double y, final double e )
+	{
+		return y > e * RESOLUTION;
+	}
+
+	/**
+	 * Root finding on the components {@code i} with {@code y_i > 0}. The other
+	 * components must be 0. See {@code DistPointHyperEllipsoid.Bisector}.
+	 *
+	 * @param last
+	 *            the component with {@code y_i > 0} that has the smallest
+	 *            radius.
+	 */
+	private double bisector( final double y0, final double y1, final double y2, final int last, final double[] x )
+	{
+		final double z0 = y0 / e0;
+		final double z1 = y1 / e1;
+		final double z2 = y2 / e2;
+		final double sumZSqr = z0 * z0 + z1 * z1 + z2 * z2;
+
+		if ( sumZSqr == 1 )
+		{
+			// The point is on the ellipsoid.
+			if ( x != null )
+			{
+				x[ 0 ] = y0;
+				x[ 1 ] = y1;
+				x[ 2 ] = y2;
+			}
+			return 0;
+		}
+
+		final double emin = last == 0 ? e0 : last == 1 ? e1 : e2;
+		final double p0 = e0 / emin;
+		final double p1 = e1 / emin;
+		final double p2 = e2 / emin;
+		final double pSqr0 = p0 * p0;
+		final double pSqr1 = p1 * p1;
+		final double pSqr2 = p2 * p2;
+		final double numerator0 = pSqr0 * z0;
+		final double numerator1 = pSqr1 * z1;
+		final double numerator2 = pSqr2 * z2;
+
+		double s = 0, smin = ( last == 0 ? z0 : last == 1 ? z1 : z2 ) - 1, smax;
+		if ( sumZSqr < 1 )
+		{
+			// The point is strictly inside the ellipsoid.
+			smax = 0;
+		}
+		else
+		{
+			// The point is strictly outside the ellipsoid.
+			smax = Math.sqrt( numerator0 * numerator0 + numerator1 * numerator1 + numerator2 * numerator2 ) - 1;
+		}
+
+		// Safeguarded Newton iteration on
+		// g(s) = sum_i ( numerator_i / ( s + pSqr_i ) )^2 - 1.
+		// g is convex and decreasing on the bracket. Steps that leave the
+		// bracket are replaced by bisection, which keeps the robustness of
+		// plain bisection. (The first iterate is the midpoint, because g may
+		// not be finite at the bracket ends in floating point.)
+		s = ( smin + smax ) * 0.5;
+		for ( int j = 0; j < MAX_ITERATIONS; ++j )
+		{
+			// (components with y_i == 0 are skipped, s + pSqr_i may be 0 for them)
+			final double ratio0 = y0 > 0 ? numerator0 / ( s + pSqr0 ) : 0;
+			final double ratio1 = y1 > 0 ? numerator1 / ( s + pSqr1 ) : 0;
+			final double ratio2 = y2 > 0 ? numerator2 / ( s + pSqr2 ) : 0;
+			final double g = -1 + ratio0 * ratio0 + ratio1 * ratio1 + ratio2 * ratio2;
+
+			if ( g > 0 )
+			{
+				smin = s;
+			}
+			else if ( g < 0 )
+			{
+				smax = s;
+			}
+			else
+			{
+				break;
+			}
+
+			final double dg = -2 * (
+					( y0 > 0 ? ratio0 * ratio0 / ( s + pSqr0 ) : 0 ) +
+					( y1 > 0 ? ratio1 * ratio1 / ( s + pSqr1 ) : 0 ) +
+					( y2 > 0 ? ratio2 * ratio2 / ( s + pSqr2 ) : 0 ) );
+			double next = s - g / dg;
+			if ( next == s )
+			{
+				break;
+			}
+			if ( !( next > smin && next < smax ) )
+			{
+				next = ( smin + smax ) * 0.5;
+				if ( next == smin || next == smax )
+				{
+					break;
+				}
+			}
+			s = next;
+		}
+
+		final double x0 = y0 > 0 ? pSqr0 * y0 / ( s + pSqr0 ) : 0;
+		final double x1 = y1 > 0 ? pSqr1 * y1 / ( s + pSqr1 ) : 0;
+		final double x2 = y2 > 0 ? pSqr2 * y2 / ( s + pSqr2 ) : 0;
+		if ( x != null )
+		{
+			x[ 0 ] = x0;
+			x[ 1 ] = x1;
+			x[ 2 ] = x2;
+		}
+		return ( x0 - y0 ) * ( x0 - y0 ) + ( x1 - y1 ) * ( x1 - y1 ) + ( x2 - y2 ) * ( x2 - y2 );
+	}
+
+	/**
+	 * Components {@code y_i < e_i * RESOLUTION} are treated as 0. The square
+	 * root of the machine epsilon balances the error of the root finding
+	 * near the pole against the error of ignoring the component.
+	 */
+	private static final double RESOLUTION = 0x1p-26;
+
+	/**
+	 * Upper bound on the number of root finding iterations: the number of
+	 * bisections needed to exhaust the double range (see
+	 * {@code DistPointHyperEllipsoid.GetMaxBisections()}). Newton iteration
+	 * usually converges after a few steps.
+	 */
+	private static final int MAX_ITERATIONS = 3 + 52 + 1021;
+}
@@ -0,0 +1,186 @@
+/*-
+ * #%L
+ * Ellipsoid Surface Projection
+ * %%
+ * Copyright (C) 2016 - 2018 Tobias Pietzsch
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.mpicbg.ovaries.ellipsoid;
+
+import Jama.EigenvalueDecomposition;
+import Jama.Matrix;
+
+/**
+ * Quadric models for RANSAC hypotheses, see
+ * {@link SamplingOptions#model(EllipsoidModel)}.
+ *
+ * <p>
+ * {@link #GENERAL} is the 9 parameter quadric of
+ * {@link FitEllipsoid#yuryPetrov(double[][])}. The constrained models are
+ * linear subspaces of it: their equation rows are {@code M r}, where
+ * {@code r = (x^2, y^2, z^2, 2xy, 2xz, 2yz, 2x, 2y, 2z)} is the general row and
+ * {@code M} is the {@link #constraint(PointCloud) constraint matrix}. So they
+ * are fitted from the same {@link FitEllipsoid.Moments}, and need only as many
+ * points as they have parameters.
+ */
+public enum EllipsoidModel
+{
+	/**
+	 * General ellipsoid, 9 points.
+	 */
+	GENERAL( "general", 9 ),
+
+	/**
+	 * Ellipsoid with axes parallel to the coordinate axes, 6 points.
+	 */
+	AXIS_ALIGNED( "axis-aligned", 6 ),
+
+	/**
+	 * Rotationally symmetric ellipsoid, 5 points. The symmetry axis is parallel
+	 * to the principal axis of the detections (the eigenvector of their
+	 * covariance with the largest eigenvalue), which suits elongated egg
+	 * chambers.
+	 */
+	SPHEROID( "spheroid", 5 ),
+
+	/**
+	 * Sphere, 4 points.
+	 */
+	SPHERE( "sphere", 4 );
+
+	private final String name;
+
+	private final int numPoints;
+
+	private EllipsoidModel( final String name, final int numPoints )
+	{
+		this.name = name;
+		this.numPoints = numPoints;
+	}
+
+	/**
+	 * Get the minimal number of points to fit this model.
+	 */
+	public int getNumPoints()
+	{
+		return numPoints;
+	}
+
+	/**
+	 * Get the {@code numPoints x 9} constraint matrix {@code M} for fitting
+	 * this model with {@link FitEllipsoid.Moments#fit(double[][])}, or
+	 * {@code null} for {@link #GENERAL}.
+	 *
+	 * @param points
+	 *            all detections. Only {@link #SPHEROID} uses them, to find
+	 *            the symmetry axis.
+	 */
+	public double[][] constraint( final PointCloud points )
+	{
+		switch ( this )
+		{
+		case GENERAL:
+		default:
+			return null;
+		case AXIS_ALIGNED:
+			return new double[][] {
+					{ 1, 0, 0, 0, 0, 0, 0, 0, 0 },
+					{ 0, 1, 0, 0, 0, 0, 0, 0, 0 },
+					{ 0, 0, 1, 0, 0, 0, 0, 0, 0 },
+					{ 0, 0, 0, 0, 0, 0, 1, 0, 0 },
+					{ 0, 0, 0, 0, 0, 0, 0, 1, 0 },
+					{ 0, 0, 0, 0, 0, 0, 0, 0, 1 } };
+		case SPHEROID:
+		{
+			// a ( |p|^2 - (u.p)^2 ) + c (u.p)^2 + 2 g.p = 1
+			final double[] u = principalAxis( points );
+			final double[] uu = { u[ 0 ] * u[ 0 ], u[ 1 ] * u[ 1 ], u[ 2 ] * u[ 2 ], u[ 0 ] * u[ 1 ], u[ 0 ] * u[ 2 ], u[ 1 ] * u[ 2 ] };
+			return new double[][] {
+					{ 1 - uu[ 0 ], 1 - uu[ 1 ], 1 - uu[ 2 ], -uu[ 3 ], -uu[ 4 ], -uu[ 5 ], 0, 0, 0 },
+					{ uu[ 0 ], uu[ 1 ], uu[ 2 ], uu[ 3 ], uu[ 4 ], uu[ 5 ], 0, 0, 0 },
+					{ 0, 0, 0, 0, 0, 0, 1, 0, 0 },
+					{ 0, 0, 0, 0, 0, 0, 0, 1, 0 },
+					{ 0, 0, 0, 0, 0, 0, 0, 0, 1 } };
+		}
+		case SPHERE:
+			return new double[][] {
+					{ 1, 1, 1, 0, 0, 0, 0, 0, 0 },
+					{ 0, 0, 0, 0, 0, 0, 1, 0, 0 },
+					{ 0, 0, 0, 0, 0, 0, 0, 1, 0 },
+					{ 0, 0, 0, 0, 0, 0, 0, 0, 1 } };
+		}
+	}
+
+	/**
+	 * Get the unit eigenvector of the covariance of {@code points} with the
+	 * largest eigenvalue.
+	 */
+	static double[] principalAxis( final PointCloud points )
+	{
+		final double[][] coordinates = { points.getXs(), points.getYs(), points.getZs() };
+		final int n = points.size();
+		final double[] mean = new double[ 3 ];
+		for ( int d = 0; d < 3; ++d )
+		{
+			for ( int i = 0; i < n; ++i )
+				mean[ d ] += coordinates[ d ][ i ];
+			mean[ d ] /= n;
+		}
+		final double[][] cov = new double[ 3 ][ 3 ];
+		for ( int i = 0; i < n; ++i )
+			for ( int r = 0; r < 3; ++r )
+				for ( int c = r; c < 3; ++c )
+					cov[ r ][ c ] += ( coordinates[ r ][ i ] - mean[ r ] ) * ( coordinates[ c ][ i ] - mean[ c ] );
+		for ( int r = 0; r < 3; ++r )
+			for ( int c = 0; c < r; ++c )
+				cov[ r ][ c ] = cov[ c ][ r ];
+
+		final EigenvalueDecomposition eig = new Matrix( cov ).eig();
+		final double[] ev = eig.getRealEigenvalues();
+		final double[][] v = eig.getV().getArray();
+		int max = 0;
+		for ( int d = 1; d < 3; ++d )
+			if ( ev[ d ] > ev[ max ] )
+				max = d;
+		return new double[] { v[ 0 ][ max ], v[ 1 ][ max ], v[ 2 ][ max ] };
+	}
+
+	@Override
+	public String toString()
+	{
+		return name;
+	}
+
+	/**
+	 * Get the model with the given {@link #toString() name}, or by enum
+	 * constant name.
+	 */
+	public static EllipsoidModel forName( final String name )
+	{
+		for ( final EllipsoidModel model : values() )
+			if ( model.name.equalsIgnoreCase( name ) || model.name().equalsIgnoreCase( name ) )
+				return model;
+		throw new IllegalArgumentException( "unknown ellipsoid model: " + name );
+	}
+}
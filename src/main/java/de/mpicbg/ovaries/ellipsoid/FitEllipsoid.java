@@ -30,6 +30,7 @@ package de.mpicbg.ovaries.ellipsoid;
 
 import net.imglib2.util.LinAlgHelpers;
 import Jama.CholeskyDecomposition;
+import Jama.LUDecomposition;
 import Jama.Matrix;
 
 /**
@@ -60,29 +61,175 @@ public class FitEllipsoid
 		if ( nPoints < 9 )
 			throw new IllegalArgumentException( "Too few points; need at least 9 to calculate a unique ellipsoid" );
 
-		final double[][] d = new double[ nPoints ][ 9 ];
-		final double[][] b = new double[ 9 ][ 1 ];
-		for (int i = 0; i < nPoints; i++) {
-			final double x = points[i][0];
-			final double y = points[i][1];
-			final double z = points[i][2];
-			d[i][0] = x * x;
-			d[i][1] = y * y;
-			d[i][2] = z * z;
-			d[i][3] = 2 * x * y;
-			d[i][4] = 2 * x * z;
-			d[i][5] = 2 * y * z;
-			d[i][6] = 2 * x;
-			d[i][7] = 2 * y;
-			d[i][8] = 2 * z;
+		final Moments moments = new Moments();
+		for ( int i = 0; i < nPoints; ++i )
+			moments.add( points[ i ][ 0 ], points[ i ][ 1 ], points[ i ][ 2 ] );
+		return moments.fit();
+	}
+
+	/**
+	 * Accumulates the normal equations {@code D^T D V = D^T 1} of
+	 * {@link FitEllipsoid#yuryPetrov(double[][])} point by point, so that
+	 * memory does not grow with the number of points. Partial sums (e.g., from
+	 * different threads) are merged with {@link #add(Moments)}.
+	 *
+	 * <p>
+	 * A {@link Moments} instance is not thread-safe.
+	 */
+	public static class Moments
+	{
+		// upper triangle of D^T D, row by row
+		private final double[] dtd = new double[ 45 ];
+
+		// D^T 1
+		private final double[] b = new double[ 9 ];
+
+		// row of D for the current point
+		private final double[] row = new double[ 9 ];
+
+		private long n = 0;
+
+		public void add( final double x, final double y, final double z )
+		{
+			row[ 0 ] = x * x;
+			row[ 1 ] = y * y;
+			row[ 2 ] = z * z;
+			row[ 3 ] = 2 * x * y;
+			row[ 4 ] = 2 * x * z;
+			row[ 5 ] = 2 * y * z;
+			row[ 6 ] = 2 * x;
+			row[ 7 ] = 2 * y;
+			row[ 8 ] = 2 * z;
+			for ( int j = 0, k = 0; j < 9; ++j )
+			{
+				b[ j ] += row[ j ];
+				for ( int l = j; l < 9; ++l, ++k )
+					dtd[ k ] += row[ j ] * row[ l ];
+			}
+			++n;
+		}
+
+		/**
+		 * Add the points accumulated in {@code moments}.
+		 */
+		public void add( final Moments moments )
+		{
+			for ( int k = 0; k < 45; ++k )
+				dtd[ k ] += moments.dtd[ k ];
 			for ( int j = 0; j < 9; ++j )
-				b[j][0] += d[i][j];
+				b[ j ] += moments.b[ j ];
+			n += moments.n;
 		}
 
-		final double[][] DTD = new double[ 9 ][ 9 ];
-		LinAlgHelpers.multATB( d, d, DTD );
-		final Matrix V = new CholeskyDecomposition( new Matrix( DTD ) ).solve( new Matrix( b ) );
-		return ellipsoidFromEquation( V );
+		/**
+		 * Get the number of accumulated points.
+		 */
+		public long size()
+		{
+			return n;
+		}
+
+		/**
+		 * Fit an ellipsoid to the accumulated points.
+		 *
+		 * @throws IllegalArgumentException
+		 *             if there are too few points.
+		 * @throws ArithmeticException
+		 *             if the points do not determine a unique ellipsoid.
+		 */
+		public Ellipsoid fit()
+		{
+			if ( n < 9 )
+				throw new IllegalArgumentException( "Too few points; need at least 9 to calculate a unique ellipsoid" );
+
+			final double[][] DTD = new double[ 9 ][ 9 ];
+			for ( int j = 0, k = 0; j < 9; ++j )
+				for ( int l = j; l < 9; ++l, ++k )
+				{
+					DTD[ j ][ l ] = dtd[ k ];
+					DTD[ l ][ j ] = dtd[ k ];
+				}
+			final Matrix V = solve( new Matrix( DTD ), new Matrix( b, 9 ) );
+			return ellipsoidFromEquation( V );
+		}
+
+		/**
+		 * Fit a constrained model to the accumulated points. The model
+		 * equation rows are {@code M r}, where {@code r} is the row of
+		 * {@link FitEllipsoid#yuryPetrov(double[][])}. This solves
+		 * {@code M D^T D M^T v = M D^T 1} and returns the ellipsoid with
+		 * equation variables {@code V = M^T v}.
+		 *
+		 * @param constraint
+		 *            the {@code k x 9} matrix {@code M}, see
+		 *            {@link EllipsoidModel#constraint(PointCloud)}, or
+		 *            {@code null} for a general ellipsoid.
+		 */
+		public Ellipsoid fit( final double[][] constraint )
+		{
+			if ( constraint == null )
+				return fit();
+
+			final int k = constraint.length;
+			if ( n < k )
+				throw new IllegalArgumentException( "Too few points; need at least " + k + " to calculate a unique ellipsoid" );
+
+			final double[][] DTD = new double[ 9 ][ 9 ];
+			for ( int j = 0, i = 0; j < 9; ++j )
+				for ( int l = j; l < 9; ++l, ++i )
+				{
+					DTD[ j ][ l ] = dtd[ i ];
+					DTD[ l ][ j ] = dtd[ i ];
+				}
+			final double[][] MDTD = new double[ k ][ 9 ];
+			LinAlgHelpers.mult( constraint, DTD, MDTD );
+			// (computed as upper triangle and mirrored, because
+			// CholeskyDecomposition requires exact symmetry)
+			final double[][] MDTDMT = new double[ k ][ k ];
+			final double[][] Mb = new double[ k ][ 1 ];
+			for ( int r = 0; r < k; ++r )
+			{
+				for ( int c = r; c < k; ++c )
+				{
+					MDTDMT[ r ][ c ] = LinAlgHelpers.dot( MDTD[ r ], constraint[ c ] );
+					MDTDMT[ c ][ r ] = MDTDMT[ r ][ c ];
+				}
+				Mb[ r ][ 0 ] = LinAlgHelpers.dot( constraint[ r ], b );
+			}
+			final Matrix v = solve( new Matrix( MDTDMT ), new Matrix( Mb ) );
+			return ellipsoidFromEquation( new Matrix( constraint ).transpose().times( v ) );
+		}
+	}
+
+	/**
+	 * Fit a constrained model to an n * 3 array of coordinates.
+	 *
+	 * @param constraint
+	 *            the constraint matrix of the model, see
+	 *            {@link EllipsoidModel#constraint(PointCloud)}, or
+	 *            {@code null} for a general ellipsoid.
+	 */
+	public static Ellipsoid fit( final double[][] points, final double[][] constraint )
+	{
+		final Moments moments = new Moments();
+		for ( int i = 0; i < points.length; ++i )
+			moments.add( points[ i ][ 0 ], points[ i ][ 1 ], points[ i ][ 2 ] );
+		return moments.fit( constraint );
+	}
+
+	/**
+	 * Solve the normal equations {@code A x = b}.
+	 *
+	 * @throws ArithmeticException
+	 *             if {@code A} is not positive definite, i.e., the points do
+	 *             not determine a unique solution.
+	 */
+	private static Matrix solve( final Matrix A, final Matrix b )
+	{
+		final CholeskyDecomposition cholesky = new CholeskyDecomposition( A );
+		if ( !cholesky.isSPD() )
+			throw new ArithmeticException( "Singular system; the points do not determine a unique ellipsoid" );
+		return cholesky.solve( b );
 	}
 
 	/**
@@ -111,7 +258,10 @@ public class FitEllipsoid
 				{ d, b, f },
 				{ e, f, c } };
 		final double[] bb = new double[] { g, h, i };
-		final double[] cc = new Matrix( aa ).solve( new Matrix( bb, 3 ) ).getRowPackedCopy();
+		final LUDecomposition lu = new LUDecomposition( new Matrix( aa ) );
+		if ( !lu.isNonsingular() )
+			throw new ArithmeticException( "Singular quadric; the equation has no unique center" );
+		final double[] cc = lu.solve( new Matrix( bb, 3 ) ).getRowPackedCopy();
 		LinAlgHelpers.scale( cc, -1, cc );
 
 		final double[] At = new double[ 3 ];
@@ -0,0 +1,176 @@
+/*-
+ * #%L
+ * Ellipsoid Surface Projection
+ * %%
+ * Copyright (C) 2016 - 2018 Tobias Pietzsch
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.mpicbg.ovaries.ellipsoid;
+
+/**
+ * Cheap validity checks for RANSAC samples and hypotheses, so that invalid
+ * ones are dropped before they are scored against all detections.
+ */
+final class HypothesisFilter
+{
+	/**
+	 * Samples with {@code det(C) < MIN_PLANARITY * (trace(C) / 3)^3}, where
+	 * {@code C} is the covariance of the sample points, are near-coplanar (or
+	 * near-collinear).
+	 */
+	static final double MIN_PLANARITY = 1e-4;
+
+	/**
+	 * Samples with RMS distance from their mean below
+	 * {@code MIN_SPREAD * diagonal} are clustered, where {@code diagonal} is
+	 * the diagonal of the bounding box of all detections.
+	 */
+	static final double MIN_SPREAD = 0.01;
+
+	// bounding box of all detections
+	private final double minX, minY, minZ, maxX, maxY, maxZ;
+
+	private final double diagonal;
+
+	HypothesisFilter( final PointCloud points )
+	{
+		double x0 = Double.POSITIVE_INFINITY, y0 = Double.POSITIVE_INFINITY, z0 = Double.POSITIVE_INFINITY;
+		double x1 = Double.NEGATIVE_INFINITY, y1 = Double.NEGATIVE_INFINITY, z1 = Double.NEGATIVE_INFINITY;
+		final double[] xs = points.getXs();
+		final double[] ys = points.getYs();
+		final double[] zs = points.getZs();
+		for ( int i = 0; i < xs.length; ++i )
+		{
+			x0 = Math.min( x0, xs[ i ] );
+			y0 = Math.min( y0, ys[ i ] );
+			z0 = Math.min( z0, zs[ i ] );
+			x1 = Math.max( x1, xs[ i ] );
+			y1 = Math.max( y1, ys[ i ] );
+			z1 = Math.max( z1, zs[ i ] );
+		}
+		minX = x0;
+		minY = y0;
+		minZ = z0;
+		maxX = x1;
+		maxY = y1;
+		maxZ = z1;
+		diagonal = Math.sqrt( ( x1 - x0 ) * ( x1 - x0 ) + ( y1 - y0 ) * ( y1 - y0 ) + ( z1 - z0 ) * ( z1 - z0 ) );
+	}
+
+	/**
+	 * Check whether the sample points are near-coplanar or clustered.
+	 */
+	boolean isDegenerate( final double[][] coordinates )
+	{
+		final int k = coordinates.length;
+		double mx = 0, my = 0, mz = 0;
+		for ( final double[] p : coordinates )
+		{
+			mx += p[ 0 ];
+			my += p[ 1 ];
+			mz += p[ 2 ];
+		}
+		mx /= k;
+		my /= k;
+		mz /= k;
+		double cxx = 0, cxy = 0, cxz = 0, cyy = 0, cyz = 0, czz = 0;
+		for ( final double[] p : coordinates )
+		{
+			final double dx = p[ 0 ] - mx;
+			final double dy = p[ 1 ] - my;
+			final double dz = p[ 2 ] - mz;
+			cxx += dx * dx;
+			cxy += dx * dy;
+			cxz += dx * dz;
+			cyy += dy * dy;
+			cyz += dy * dz;
+			czz += dz * dz;
+		}
+		cxx /= k;
+		cxy /= k;
+		cxz /= k;
+		cyy /= k;
+		cyz /= k;
+		czz /= k;
+
+		final double trace = cxx + cyy + czz;
+		if ( !( Math.sqrt( trace ) >= MIN_SPREAD * diagonal ) )
+			return true;
+
+		final double det = det( cxx, cxy, cxz, cyy, cyz, czz );
+		final double m = trace / 3;
+		return !( det >= MIN_PLANARITY * m * m * m );
+	}
+
+	/**
+	 * Check whether the quadric is an ellipsoid, that is, whether its
+	 * precision matrix is positive definite.
+	 */
+	boolean isEllipsoid( final Ellipsoid ellipsoid )
+	{
+		final double[][] p = ellipsoid.getPrecision();
+		return isPositiveDefinite( p[ 0 ][ 0 ], p[ 0 ][ 1 ], p[ 0 ][ 2 ], p[ 1 ][ 1 ], p[ 1 ][ 2 ], p[ 2 ][ 2 ] );
+	}
+
+	/**
+	 * Check whether the ellipsoid is plausible for the detections: all radii
+	 * are smaller than the diagonal of their bounding box, and the center is in
+	 * their bounding box grown by half the diagonal. Assumes
+	 * {@link #isEllipsoid(Ellipsoid)}.
+	 */
+	boolean isPlausible( final Ellipsoid ellipsoid )
+	{
+		final double[] c = ellipsoid.getCenter();
+		final double margin = diagonal / 2;
+		if ( !( c[ 0 ] >= minX - margin && c[ 0 ] <= maxX + margin
+				&& c[ 1 ] >= minY - margin && c[ 1 ] <= maxY + margin
+				&& c[ 2 ] >= minZ - margin && c[ 2 ] <= maxZ + margin ) )
+			return false;
+
+		// all radii < diagonal, iff all eigenvalues of the precision matrix
+		// are > 1 / diagonal^2, iff precision - I / diagonal^2 is positive
+		// definite
+		final double[][] p = ellipsoid.getPrecision();
+		final double s = 1 / ( diagonal * diagonal );
+		return isPositiveDefinite( p[ 0 ][ 0 ] - s, p[ 0 ][ 1 ], p[ 0 ][ 2 ], p[ 1 ][ 1 ] - s, p[ 1 ][ 2 ], p[ 2 ][ 2 ] - s );
+	}
+
+	/**
+	 * Sylvester's criterion for the symmetric 3x3 matrix with upper triangle
+	 * {@code (a, b, c; d, e; f)}.
+	 */
+	private static boolean isPositiveDefinite( final double a, final double b, final double c, final double d, final double e, final double f )
+	{
+		return a > 0 && a * d - b * b > 0 && det( a, b, c, d, e, f ) > 0;
+	}
+
+	/**
+	 * Determinant of the symmetric 3x3 matrix with upper triangle
+	 * {@code (a, b, c; d, e; f)}.
+	 */
+	private static double det( final double a, final double b, final double c, final double d, final double e, final double f )
+	{
+		return a * ( d * f - e * e ) - b * ( b * f - e * c ) + c * ( b * e - d * c );
+	}
+}
@@ -0,0 +1,222 @@
+/*-
+ * #%L
+ * Ellipsoid Surface Projection
+ * %%
+ * Copyright (C) 2016 - 2018 Tobias Pietzsch
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.mpicbg.ovaries.ellipsoid;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import net.imglib2.RealLocalizable;
+
+/**
+ * Signed distances of points to a fixed ellipsoid (typically the best RANSAC
+ * hypothesis), with the points sorted by distance. The inliers for any pair
+ * of cutoff distances are a contiguous range of the sorted points, so they
+ * can be counted and fitted again without computing distances. For fitting,
+ * {@link FitEllipsoid.Moments} of blocks of {@link #POINTS_PER_BLOCK} sorted
+ * points are precomputed, and only the points at the ends of the range are
+ * added one by one.
+ */
+public class InlierCache
+{
+	/**
+	 * Number of sorted points per precomputed {@link FitEllipsoid.Moments}.
+	 */
+	static final int POINTS_PER_BLOCK = 256;
+
+	private final Ellipsoid ellipsoid;
+
+	// points, sorted by increasing signed distance
+	private final PointCloud points;
+
+	private final double[] distances;
+
+	private final FitEllipsoid.Moments[] blocks;
+
+	// created on first use, see getGrid()
+	private PointGrid grid;
+
+	public InlierCache( final Ellipsoid ellipsoid, final List< ? extends RealLocalizable > points )
+	{
+		this( ellipsoid, new PointCloud( points ) );
+	}
+
+	public InlierCache( final Ellipsoid ellipsoid, final PointCloud points )
+	{
+		this.ellipsoid = ellipsoid;
+
+		final int n = points.size();
+		final double[] unsorted = new double[ n ];
+		new DistPointEllipsoid( ellipsoid ).signedDistances( points, unsorted );
+		final Integer[] order = new Integer[ n ];
+		for ( int i = 0; i < n; ++i )
+			order[ i ] = i;
+		Arrays.sort( order, new Comparator< Integer >()
+		{
+			@Override
+			public int compare( final Integer i, final Integer j )
+			{
+				return Double.compare( unsorted[ i ], unsorted[ j ] );
+			}
+		} );
+
+		final double[] xs = new double[ n ];
+		final double[] ys = new double[ n ];
+		final double[] zs = new double[ n ];
+		distances = new double[ n ];
+		for ( int i = 0; i < n; ++i )
+		{
+			final int j = order[ i ];
+			xs[ i ] = points.getXs()[ j ];
+			ys[ i ] = points.getYs()[ j ];
+			zs[ i ] = points.getZs()[ j ];
+			distances[ i ] = unsorted[ j ];
+		}
+		this.points = new PointCloud( xs, ys, zs );
+
+		blocks = new FitEllipsoid.Moments[ n / POINTS_PER_BLOCK ];
+		for ( int b = 0; b < blocks.length; ++b )
+		{
+			blocks[ b ] = new FitEllipsoid.Moments();
+			for ( int i = b * POINTS_PER_BLOCK; i < ( b + 1 ) * POINTS_PER_BLOCK; ++i )
+				blocks[ b ].add( xs[ i ], ys[ i ], zs[ i ] );
+		}
+	}
+
+	/**
+	 * Get the ellipsoid that distances are computed to.
+	 */
+	public Ellipsoid getEllipsoid()
+	{
+		return ellipsoid;
+	}
+
+	/**
+	 * Get all points, sorted by increasing signed distance.
+	 */
+	public PointCloud getPoints()
+	{
+		return points;
+	}
+
+	/**
+	 * Get a {@link PointGrid} of {@link #getPoints()}, for distance queries
+	 * to ellipsoids other than the cached one (e.g., in geometric
+	 * refinement). The grid is created on the first call and reused by later
+	 * calls.
+	 */
+	public synchronized PointGrid getGrid()
+	{
+		if ( grid == null )
+			grid = new PointGrid( points );
+		return grid;
+	}
+
+	/**
+	 * Count the points within {@code outsideCutoffDistance} outside or
+	 * {@code insideCutoffDistance} inside the ellipsoid.
+	 */
+	public int countInliers( final double outsideCutoffDistance, final double insideCutoffDistance )
+	{
+		return Math.max( 0, end( outsideCutoffDistance ) - start( insideCutoffDistance ) );
+	}
+
+	/**
+	 * Get the points within {@code outsideCutoffDistance} outside or
+	 * {@code insideCutoffDistance} inside the ellipsoid.
+	 */
+	public PointCloud inliers( final double outsideCutoffDistance, final double insideCutoffDistance )
+	{
+		final int start = start( insideCutoffDistance );
+		final int end = Math.max( start, end( outsideCutoffDistance ) );
+		return new PointCloud(
+				Arrays.copyOfRange( points.getXs(), start, end ),
+				Arrays.copyOfRange( points.getYs(), start, end ),
+				Arrays.copyOfRange( points.getZs(), start, end ) );
+	}
+
+	/**
+	 * Get the {@link FitEllipsoid.Moments} of the points within
+	 * {@code outsideCutoffDistance} outside or {@code insideCutoffDistance}
+	 * inside the ellipsoid.
+	 */
+	public FitEllipsoid.Moments moments( final double outsideCutoffDistance, final double insideCutoffDistance )
+	{
+		final double[] xs = points.getXs();
+		final double[] ys = points.getYs();
+		final double[] zs = points.getZs();
+		final int end = end( outsideCutoffDistance );
+		final FitEllipsoid.Moments moments = new FitEllipsoid.Moments();
+		int i = start( insideCutoffDistance );
+		for ( ; i < end && i % POINTS_PER_BLOCK != 0; ++i )
+			moments.add( xs[ i ], ys[ i ], zs[ i ] );
+		for ( ; i + POINTS_PER_BLOCK <= end; i += POINTS_PER_BLOCK )
+			moments.add( blocks[ i / POINTS_PER_BLOCK ] );
+		for ( ; i < end; ++i )
+			moments.add( xs[ i ], ys[ i ], zs[ i ] );
+		return moments;
+	}
+
+	/**
+	 * Index of the first point with distance {@code >= -insideCutoffDistance}.
+	 */
+	private int start( final double insideCutoffDistance )
+	{
+		final double min = -insideCutoffDistance;
+		int lo = 0;
+		int hi = distances.length;
+		while ( lo < hi )
+		{
+			final int mid = ( lo + hi ) >>> 1;
+			if ( distances[ mid ] >= min )
+				hi = mid;
+			else
+				lo = mid + 1;
+		}
+		return lo;
+	}
+
+	/**
+	 * Index of the first point with distance {@code > outsideCutoffDistance}.
+	 */
+	private int end( final double outsideCutoffDistance )
+	{
+		int lo = 0;
+		int hi = distances.length;
+		while ( lo < hi )
+		{
+			final int mid = ( lo + hi ) >>> 1;
+			if ( distances[ mid ] > outsideCutoffDistance )
+				hi = mid;
+			else
+				lo = mid + 1;
+		}
+		return lo;
+	}
+}
@@ -0,0 +1,90 @@
+/*-
+ * #%L
+ * Ellipsoid Surface Projection
+ * %%
+ * Copyright (C) 2016 - 2018 Tobias Pietzsch
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.mpicbg.ovaries.ellipsoid;
+
+import java.util.List;
+
+import net.imglib2.RealLocalizable;
+
+/**
+ * 3D point coordinates in primitive arrays, for batch computations such as
+ * {@link DistPointEllipsoid#signedDistances(PointCloud, double[])}.
+ */
+public class PointCloud
+{
+	private final double[] xs;
+
+	private final double[] ys;
+
+	private final double[] zs;
+
+	public PointCloud( final double[] xs, final double[] ys, final double[] zs )
+	{
+		if ( ys.length != xs.length || zs.length != xs.length )
+			throw new IllegalArgumentException( "coordinate arrays must have the same length" );
+		this.xs = xs;
+		this.ys = ys;
+		this.zs = zs;
+	}
+
+	public PointCloud( final List< ? extends RealLocalizable > points )
+	{
+		final int n = points.size();
+		xs = new double[ n ];
+		ys = new double[ n ];
+		zs = new double[ n ];
+		for ( int i = 0; i < n; ++i )
+		{
+			final RealLocalizable point = points.get( i );
+			xs[ i ] = point.getDoublePosition( 0 );
+			ys[ i ] = point.getDoublePosition( 1 );
+			zs[ i ] = point.getDoublePosition( 2 );
+		}
+	}
+
+	public int size()
+	{
+		return xs.length;
+	}
+
+	public double[] getXs()
+	{
+		return xs;
+	}
+
+	public double[] getYs()
+	{
+		return ys;
+	}
+
+	public double[] getZs()
+	{
+		return zs;
+	}
+}
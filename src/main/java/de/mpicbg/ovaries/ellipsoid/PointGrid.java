@@ -0,0 +1,338 @@
+/*-
+ * #%L
+ * Ellipsoid Surface Projection
+ * %%
+ * Copyright (C) 2016 - 2018 Tobias Pietzsch
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.mpicbg.ovaries.ellipsoid;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * A uniform grid over a {@link PointCloud}, for queries of the points near an
+ * ellipsoid surface.
+ *
+ * <p>
+ * Points are reordered by cell, so that the points of each non-empty cell are
+ * contiguous in {@link #getPoints()}. Within a cell, points keep the order of
+ * the input {@link PointCloud}. Cells are tested as a whole by
+ * {@link DistPointEllipsoid#beyondCutoff(double, double, double, double, double, double)},
+ * using the ball around the cell center with radius {@link #getCellRadius()}.
+ *
+ * <p>
+ * Besides the raster order of cell indices, the grid stores a fixed, seeded
+ * random order of the cells ({@link #cell(int)}). Costs that stop early once
+ * they exceed a bound visit cells in this order, so that the partial cost of
+ * a bad hypothesis does not depend on where its wrong part lies in the
+ * raster.
+ */
+public class PointGrid
+{
+	/**
+	 * Target mean number of points per non-empty cell, if the cell size is
+	 * chosen automatically.
+	 */
+	static final int POINTS_PER_CELL = 16;
+
+	/**
+	 * Maximum number of cells along each dimension.
+	 */
+	private static final int MAX_CELLS_PER_DIMENSION = 1024;
+
+	private final PointCloud points;
+
+	private final double cellSize;
+
+	private final double cellRadius;
+
+	// offsets into points, cell c holds points cellStart[ c ] ... cellStart[ c + 1 ] - 1
+	private final int[] cellStart;
+
+	// cell centers
+	private final double[] cxs, cys, czs;
+
+	// cell indices, in random order
+	private final int[] cellOrder;
+
+	/**
+	 * Create a grid with a cell size that puts about {@link #POINTS_PER_CELL}
+	 * points into each non-empty cell.
+	 */
+	public PointGrid( final PointCloud points )
+	{
+		this( points, chooseCellSize( points, POINTS_PER_CELL ), 0 );
+	}
+
+	/**
+	 * Create a grid with a cell size that puts about {@link #POINTS_PER_CELL}
+	 * points into each non-empty cell, and visiting order {@link #cell(int)}
+	 * shuffled with the given seed.
+	 */
+	public PointGrid( final PointCloud points, final long seed )
+	{
+		this( points, chooseCellSize( points, POINTS_PER_CELL ), seed );
+	}
+
+	public PointGrid( final PointCloud points, final double cellSize, final long seed )
+	{
+		final int n = points.size();
+		final double[] xs = points.getXs();
+		final double[] ys = points.getYs();
+		final double[] zs = points.getZs();
+		final double[] min = new double[ 3 ];
+		final double[] max = new double[ 3 ];
+		boundingBox( points, min, max );
+
+		final double extent = Math.max( max[ 0 ] - min[ 0 ], Math.max( max[ 1 ] - min[ 1 ], max[ 2 ] - min[ 2 ] ) );
+		this.cellSize = extent > 0 ? Math.max( cellSize, extent / MAX_CELLS_PER_DIMENSION ) : 1;
+		cellRadius = this.cellSize * Math.sqrt( 3 ) / 2;
+
+		final long[] keys = cellKeys( points, min, this.cellSize );
+		final int numCells = countCells( keys );
+		cellStart = new int[ numCells + 1 ];
+		cxs = new double[ numCells ];
+		cys = new double[ numCells ];
+		czs = new double[ numCells ];
+
+		final double[] sxs = new double[ n ];
+		final double[] sys = new double[ n ];
+		final double[] szs = new double[ n ];
+		int c = -1;
+		for ( int j = 0; j < n; ++j )
+		{
+			final long cell = keys[ j ] / n;
+			final int i = ( int ) ( keys[ j ] % n );
+			sxs[ j ] = xs[ i ];
+			sys[ j ] = ys[ i ];
+			szs[ j ] = zs[ i ];
+			if ( j == 0 || cell != keys[ j - 1 ] / n )
+			{
+				++c;
+				cellStart[ c ] = j;
+				cxs[ c ] = min[ 0 ] + ( Math.floor( ( xs[ i ] - min[ 0 ] ) / this.cellSize ) + 0.5 ) * this.cellSize;
+				cys[ c ] = min[ 1 ] + ( Math.floor( ( ys[ i ] - min[ 1 ] ) / this.cellSize ) + 0.5 ) * this.cellSize;
+				czs[ c ] = min[ 2 ] + ( Math.floor( ( zs[ i ] - min[ 2 ] ) / this.cellSize ) + 0.5 ) * this.cellSize;
+			}
+		}
+		cellStart[ numCells ] = n;
+		this.points = new PointCloud( sxs, sys, szs );
+
+		cellOrder = new int[ numCells ];
+		for ( int k = 0; k < numCells; ++k )
+			cellOrder[ k ] = k;
+		final Random random = new Random( seed );
+		for ( int k = numCells - 1; k > 0; --k )
+		{
+			final int j = random.nextInt( k + 1 );
+			final int tmp = cellOrder[ k ];
+			cellOrder[ k ] = cellOrder[ j ];
+			cellOrder[ j ] = tmp;
+		}
+	}
+
+	/**
+	 * Get the points, ordered by cell.
+	 */
+	public PointCloud getPoints()
+	{
+		return points;
+	}
+
+	public double getCellSize()
+	{
+		return cellSize;
+	}
+
+	/**
+	 * Get the radius of the ball around a cell center that contains the cell.
+	 */
+	public double getCellRadius()
+	{
+		return cellRadius;
+	}
+
+	/**
+	 * Get the number of non-empty cells.
+	 */
+	public int numCells()
+	{
+		return cxs.length;
+	}
+
+	/**
+	 * Get the {@code k}-th cell in the random visiting order. As {@code k}
+	 * runs from 0 to {@link #numCells()}{@code - 1}, every cell is returned
+	 * once.
+	 */
+	public int cell( final int k )
+	{
+		return cellOrder[ k ];
+	}
+
+	/**
+	 * Get the index (into {@link #getPoints()}) of the first point in cell
+	 * {@code c}.
+	 */
+	public int cellStart( final int c )
+	{
+		return cellStart[ c ];
+	}
+
+	/**
+	 * Get the index (into {@link #getPoints()}) one past the last point in
+	 * cell {@code c}.
+	 */
+	public int cellEnd( final int c )
+	{
+		return cellStart[ c + 1 ];
+	}
+
+	public double cellCenterX( final int c )
+	{
+		return cxs[ c ];
+	}
+
+	public double cellCenterY( final int c )
+	{
+		return cys[ c ];
+	}
+
+	public double cellCenterZ( final int c )
+	{
+		return czs[ c ];
+	}
+
+	/**
+	 * Choose a cell size such that non-empty cells contain on average at
+	 * least {@code pointsPerCell} points. Detections lie on a surface, so this
+	 * is not simply derived from the volume of the bounding box. Instead the
+	 * cell size is grown geometrically, starting from the finest grid. For
+	 * each candidate size, non-empty cells are counted with a hash set (see
+	 * {@link #countCells(PointCloud, double[], double, int, long[])}), so no
+	 * keys are sorted until the grid is built.
+	 */
+	static double chooseCellSize( final PointCloud points, final int pointsPerCell )
+	{
+		final int n = points.size();
+		final double[] min = new double[ 3 ];
+		final double[] max = new double[ 3 ];
+		boundingBox( points, min, max );
+		final double extent = Math.max( max[ 0 ] - min[ 0 ], Math.max( max[ 1 ] - min[ 1 ], max[ 2 ] - min[ 2 ] ) );
+		if ( !( extent > 0 ) )
+			return 1;
+
+		final int maxCells = n / pointsPerCell;
+		final long[] table = new long[ Integer.highestOneBit( Math.max( 1, 2 * maxCells + 1 ) ) << 1 ];
+		double cellSize = extent / MAX_CELLS_PER_DIMENSION;
+		while ( cellSize < extent && countCells( points, min, cellSize, maxCells, table ) > maxCells )
+			cellSize *= 1.25;
+		return cellSize;
+	}
+
+	/**
+	 * Count the non-empty cells of the grid with the given cell size, stopping
+	 * once more than {@code maxCells} are found. Cell indices are inserted
+	 * into {@code table}, an open-addressing hash set whose length is a power
+	 * of two greater than {@code maxCells + 1}.
+	 *
+	 * @return the number of non-empty cells, or {@code maxCells + 1} if
+	 *         there are more than {@code maxCells}.
+	 */
+	private static int countCells( final PointCloud points, final double[] min, final double cellSize, final int maxCells, final long[] table )
+	{
+		final int n = points.size();
+		final double[] xs = points.getXs();
+		final double[] ys = points.getYs();
+		final double[] zs = points.getZs();
+		final long dim = MAX_CELLS_PER_DIMENSION + 1;
+		final int mask = table.length - 1;
+		Arrays.fill( table, -1 );
+		int numCells = 0;
+		for ( int i = 0; i < n; ++i )
+		{
+			final long ix = Math.min( dim - 1, ( long ) ( ( xs[ i ] - min[ 0 ] ) / cellSize ) );
+			final long iy = Math.min( dim - 1, ( long ) ( ( ys[ i ] - min[ 1 ] ) / cellSize ) );
+			final long iz = Math.min( dim - 1, ( long ) ( ( zs[ i ] - min[ 2 ] ) / cellSize ) );
+			final long cell = ( iz * dim + iy ) * dim + ix;
+			int slot = ( int ) ( ( cell * 0x9E3779B97F4A7C15L ) >>> 32 ) & mask;
+			while ( table[ slot ] != -1 && table[ slot ] != cell )
+				slot = ( slot + 1 ) & mask;
+			if ( table[ slot ] == -1 )
+			{
+				table[ slot ] = cell;
+				if ( ++numCells > maxCells )
+					break;
+			}
+		}
+		return numCells;
+	}
+
+	private static void boundingBox( final PointCloud points, final double[] min, final double[] max )
+	{
+		Arrays.fill( min, Double.POSITIVE_INFINITY );
+		Arrays.fill( max, Double.NEGATIVE_INFINITY );
+		final double[][] coordinates = { points.getXs(), points.getYs(), points.getZs() };
+		for ( int d = 0; d < 3; ++d )
+			for ( final double x : coordinates[ d ] )
+			{
+				min[ d ] = Math.min( min[ d ], x );
+				max[ d ] = Math.max( max[ d ], x );
+			}
+	}
+
+	/**
+	 * Get {@code cell * n + i} for every point {@code i}, sorted. Sorting
+	 * groups the points by cell, and keeps their order within each cell.
+	 */
+	private static long[] cellKeys( final PointCloud points, final double[] min, final double cellSize )
+	{
+		final int n = points.size();
+		final double[] xs = points.getXs();
+		final double[] ys = points.getYs();
+		final double[] zs = points.getZs();
+		final long dim = MAX_CELLS_PER_DIMENSION + 1;
+		final long[] keys = new long[ n ];
+		for ( int i = 0; i < n; ++i )
+		{
+			final long ix = Math.min( dim - 1, ( long ) ( ( xs[ i ] - min[ 0 ] ) / cellSize ) );
+			final long iy = Math.min( dim - 1, ( long ) ( ( ys[ i ] - min[ 1 ] ) / cellSize ) );
+			final long iz = Math.min( dim - 1, ( long ) ( ( zs[ i ] - min[ 2 ] ) / cellSize ) );
+			keys[ i ] = ( ( iz * dim + iy ) * dim + ix ) * n + i;
+		}
+		Arrays.sort( keys );
+		return keys;
+	}
+
+	private static int countCells( final long[] keys )
+	{
+		final int n = keys.length;
+		int numCells = 0;
+		for ( int j = 0; j < n; ++j )
+			if ( j == 0 || keys[ j ] / n != keys[ j - 1 ] / n )
+				++numCells;
+		return numCells;
+	}
+}
@@ -0,0 +1,494 @@
+/*-
+ * #%L
+ * Ellipsoid Surface Projection
+ * %%
+ * Copyright (C) 2016 - 2018 Tobias Pietzsch
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.mpicbg.ovaries.ellipsoid;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import Jama.CholeskyDecomposition;
+import Jama.Matrix;
+import net.imglib2.RealLocalizable;
+
+/**
+ * Geometric least-squares refinement of an ellipsoid. Minimizes the sum of
+ * squared (true, orthogonal) distances from the points to the ellipsoid over
+ * center, rotation and radii, using Levenberg-Marquardt with analytic
+ * Jacobians.
+ *
+ * <p>
+ * The algebraic fit of {@link FitEllipsoid} minimizes a residual that is not
+ * proportional to the distance, and is biased when the points cover only part
+ * of the ellipsoid. Starting from such a fit, a few iterations of this
+ * refinement remove the bias.
+ *
+ * <p>
+ * For a point <em>p</em> with closest point <em>x</em> on the ellipsoid
+ * <em>F(x) = 0</em>, the derivative of the signed distance with respect to a
+ * parameter <em>a</em> is <em>(dF/da)(x) / |grad F(x)|</em>. Rotations are
+ * parametrized by a rotation vector relative to the current axes.
+ */
+public class RefineEllipsoid
+{
+	/**
+	 * Maximum number of Levenberg-Marquardt iterations.
+	 */
+	static final int MAX_ITERATIONS = 100;
+
+	/**
+	 * Stop when an accepted step decreases the cost by less than this
+	 * fraction.
+	 */
+	static final double TOLERANCE = 1e-10;
+
+	/**
+	 * Stop when the damping exceeds this value without finding a better
+	 * step.
+	 */
+	static final double MAX_LAMBDA = 1e10;
+
+	/**
+	 * Number of points whose residuals are accumulated into one partial sum.
+	 */
+	static final int POINTS_PER_BLOCK = 4096;
+
+	/**
+	 * Refine a general ellipsoid to fit all {@code points}.
+	 */
+	public static Ellipsoid refine( final Ellipsoid guess, final List< ? extends RealLocalizable > points )
+	{
+		return refine( guess, new PointCloud( points ), EllipsoidModel.GENERAL, SamplingOptions.options() );
+	}
+
+	/**
+	 * Refine {@code guess} to minimize the sum of squared distances to all
+	 * {@code points}. Residuals are evaluated in parallel with
+	 * {@link SamplingOptions#getNumThreads()} threads, over blocks of
+	 * {@link #POINTS_PER_BLOCK} points that are summed in order. So the result
+	 * does not depend on the number of threads.
+	 *
+	 * @param model
+	 *            constraints that are kept during refinement. For
+	 *            {@link EllipsoidModel#AXIS_ALIGNED} and
+	 *            {@link EllipsoidModel#SPHERE} the axes are fixed, for
+	 *            {@link EllipsoidModel#SPHEROID} the two most similar radii
+	 *            and for {@link EllipsoidModel#SPHERE} all radii are kept
+	 *            equal.
+	 * @return the refined ellipsoid, or {@code guess} if there are too few
+	 *         points to refine it.
+	 */
+	public static Ellipsoid refine(
+			final Ellipsoid guess,
+			final PointCloud points,
+			final EllipsoidModel model,
+			final SamplingOptions options )
+	{
+		final Parameters start = new Parameters( guess, model );
+		if ( points.size() <= start.numParameters() )
+			return guess;
+
+		Parameters current = start;
+		Normal normal = evaluate( current, points, options );
+		double lambda = 1e-3;
+		int iteration = 0;
+		while ( iteration < MAX_ITERATIONS && lambda < MAX_LAMBDA )
+		{
+			++iteration;
+			final double[] step = normal.solve( lambda );
+			final Parameters next = step == null ? null : current.update( step );
+			if ( next == null )
+			{
+				lambda *= 10;
+				continue;
+			}
+			final Normal nextNormal = evaluate( next, points, options );
+			if ( nextNormal.cost < normal.cost )
+			{
+				final boolean converged = normal.cost - nextNormal.cost <= TOLERANCE * normal.cost;
+				current = next;
+				normal = nextNormal;
+				lambda = Math.max( lambda / 10, 1e-12 );
+				if ( converged )
+					break;
+			}
+			else
+				lambda *= 10;
+		}
+
+		return current.ellipsoid();
+	}
+
+	/**
+	 * Compute cost, {@code J^T J} and {@code J^T r} of {@code parameters} for
+	 * all points.
+	 */
+	private static Normal evaluate( final Parameters parameters, final PointCloud points, final SamplingOptions options )
+	{
+		final double[] xs = points.getXs();
+		final double[] ys = points.getYs();
+		final double[] zs = points.getZs();
+		final int n = points.size();
+		final int numBlocks = ( n + POINTS_PER_BLOCK - 1 ) / POINTS_PER_BLOCK;
+		final Normal[] partials = new Normal[ numBlocks ];
+		final AtomicInteger nextBlock = new AtomicInteger();
+		final int numTasks = Math.max( 1, Math.min( options.getNumThreads(), numBlocks ) );
+		final ArrayList< Callable< Void > > tasks = new ArrayList< Callable< Void > >();
+		for ( int t = 0; t < numTasks; ++t )
+		{
+			tasks.add( new Callable< Void >()
+			{
+				@Override
+				public Void call() throws Exception
+				{
+					final double[] closest = new double[ 3 ];
+					final double[] jacobian = new double[ parameters.numParameters() ];
+					for ( int block = nextBlock.getAndIncrement(); block < numBlocks; block = nextBlock.getAndIncrement() )
+					{
+						final Normal normal = new Normal( parameters.numParameters() );
+						final int end = Math.min( n, ( block + 1 ) * POINTS_PER_BLOCK );
+						for ( int i = block * POINTS_PER_BLOCK; i < end; ++i )
+						{
+							final double r = parameters.residual( xs[ i ], ys[ i ], zs[ i ], closest, jacobian );
+							normal.add( jacobian, r );
+						}
+						partials[ block ] = normal;
+					}
+					return null;
+				}
+			} );
+		}
+		SampleEllipsoids.runTasks( tasks, options );
+
+		final Normal normal = new Normal( parameters.numParameters() );
+		for ( final Normal partial : partials )
+			normal.add( partial );
+		return normal;
+	}
+
+	/**
+	 * Ellipsoid parameters: center, axes and radii. The free parameters are
+	 * the center, (unless the axes are fixed) a rotation vector, and one
+	 * radius per group of tied radii.
+	 */
+	private static final class Parameters
+	{
+		final double[] center;
+
+		// rows are the axes
+		final double[][] axes;
+
+		final double[] radii;
+
+		final boolean rotate;
+
+		// index of the free radius that each radius is tied to
+		final int[] group;
+
+		final int numGroups;
+
+		final DistPointEllipsoid distance;
+
+		Parameters( final Ellipsoid ellipsoid, final EllipsoidModel model )
+		{
+			center = ellipsoid.getCenter().clone();
+			axes = new double[ 3 ][];
+			for ( int k = 0; k < 3; ++k )
+				axes[ k ] = ellipsoid.getAxes()[ k ].clone();
+			radii = ellipsoid.getRadii().clone();
+			rotate = model == EllipsoidModel.GENERAL || model == EllipsoidModel.SPHEROID;
+			switch ( model )
+			{
+			case SPHERE:
+				group = new int[] { 0, 0, 0 };
+				break;
+			case SPHEROID:
+				group = spheroidGroups( radii );
+				break;
+			default:
+				group = new int[] { 0, 1, 2 };
+			}
+			numGroups = Math.max( group[ 0 ], Math.max( group[ 1 ], group[ 2 ] ) ) + 1;
+			for ( int g = 0; g < numGroups; ++g )
+			{
+				double sum = 0;
+				int count = 0;
+				for ( int k = 0; k < 3; ++k )
+					if ( group[ k ] == g )
+					{
+						sum += radii[ k ];
+						++count;
+					}
+				for ( int k = 0; k < 3; ++k )
+					if ( group[ k ] == g )
+						radii[ k ] = sum / count;
+			}
+			distance = new DistPointEllipsoid( ellipsoid() );
+		}
+
+		private Parameters( final double[] center, final double[][] axes, final double[] radii, final Parameters template )
+		{
+			this.center = center;
+			this.axes = axes;
+			this.radii = radii;
+			rotate = template.rotate;
+			group = template.group;
+			numGroups = template.numGroups;
+			distance = new DistPointEllipsoid( ellipsoid() );
+		}
+
+		/**
+		 * Tie the two radii that are closest to each other.
+		 */
+		private static int[] spheroidGroups( final double[] radii )
+		{
+			final double d01 = Math.abs( radii[ 0 ] - radii[ 1 ] );
+			final double d02 = Math.abs( radii[ 0 ] - radii[ 2 ] );
+			final double d12 = Math.abs( radii[ 1 ] - radii[ 2 ] );
+			if ( d01 <= d02 && d01 <= d12 )
+				return new int[] { 0, 0, 1 };
+			else if ( d02 <= d12 )
+				return new int[] { 0, 1, 0 };
+			else
+				return new int[] { 0, 1, 1 };
+		}
+
+		int numParameters()
+		{
+			return 3 + ( rotate ? 3 : 0 ) + numGroups;
+		}
+
+		Ellipsoid ellipsoid()
+		{
+			return new Ellipsoid( center, null, null, axes, radii );
+		}
+
+		/**
+		 * Compute the signed distance of point {@code (x, y, z)} (positive
+		 * outside) and its derivatives with respect to the free parameters.
+		 *
+		 * @param closest
+		 *            temporary array of length 3.
+		 * @param jacobian
+		 *            derivatives are stored here.
+		 */
+		double residual( final double x, final double y, final double z, final double[] closest, final double[] jacobian )
+		{
+			final double dist = distance.distance( x, y, z, closest );
+
+			// point and closest point in ellipsoid coordinates
+			final double d0 = x - center[ 0 ];
+			final double d1 = y - center[ 1 ];
+			final double d2 = z - center[ 2 ];
+			final double c0 = closest[ 0 ] - center[ 0 ];
+			final double c1 = closest[ 1 ] - center[ 1 ];
+			final double c2 = closest[ 2 ] - center[ 2 ];
+			final double[] a0 = axes[ 0 ];
+			final double[] a1 = axes[ 1 ];
+			final double[] a2 = axes[ 2 ];
+			final double u0 = ( a0[ 0 ] * d0 + a0[ 1 ] * d1 + a0[ 2 ] * d2 ) / radii[ 0 ];
+			final double u1 = ( a1[ 0 ] * d0 + a1[ 1 ] * d1 + a1[ 2 ] * d2 ) / radii[ 1 ];
+			final double u2 = ( a2[ 0 ] * d0 + a2[ 1 ] * d1 + a2[ 2 ] * d2 ) / radii[ 2 ];
+			final double v0 = a0[ 0 ] * c0 + a0[ 1 ] * c1 + a0[ 2 ] * c2;
+			final double v1 = a1[ 0 ] * c0 + a1[ 1 ] * c1 + a1[ 2 ] * c2;
+			final double v2 = a2[ 0 ] * c0 + a2[ 1 ] * c1 + a2[ 2 ] * c2;
+
+			// gradient of F = sum (v_k / e_k)^2 - 1 is 2 g
+			final double g0 = v0 / ( radii[ 0 ] * radii[ 0 ] );
+			final double g1 = v1 / ( radii[ 1 ] * radii[ 1 ] );
+			final double g2 = v2 / ( radii[ 2 ] * radii[ 2 ] );
+			final double gn = Math.sqrt( g0 * g0 + g1 * g1 + g2 * g2 );
+
+			// center: -(R g) / |g|, that is, minus the outward normal
+			for ( int d = 0; d < 3; ++d )
+				jacobian[ d ] = -( a0[ d ] * g0 + a1[ d ] * g1 + a2[ d ] * g2 ) / gn;
+
+			// rotation vector: (g x v) / |g|
+			int j = 3;
+			if ( rotate )
+			{
+				jacobian[ j++ ] = ( g1 * v2 - g2 * v1 ) / gn;
+				jacobian[ j++ ] = ( g2 * v0 - g0 * v2 ) / gn;
+				jacobian[ j++ ] = ( g0 * v1 - g1 * v0 ) / gn;
+			}
+
+			// radii: -v_k^2 / (e_k^3 |g|), summed over tied radii
+			for ( int i = 0; i < numGroups; ++i )
+				jacobian[ j + i ] = 0;
+			jacobian[ j + group[ 0 ] ] -= v0 * g0 / ( radii[ 0 ] * gn );
+			jacobian[ j + group[ 1 ] ] -= v1 * g1 / ( radii[ 1 ] * gn );
+			jacobian[ j + group[ 2 ] ] -= v2 * g2 / ( radii[ 2 ] * gn );
+
+			return u0 * u0 + u1 * u1 + u2 * u2 <= 1 ? -dist : dist;
+		}
+
+		/**
+		 * Apply {@code step} to the free parameters.
+		 *
+		 * @return updated parameters, or {@code null} if a radius would not be
+		 *         positive.
+		 */
+		Parameters update( final double[] step )
+		{
+			final double[] newCenter = new double[] {
+					center[ 0 ] + step[ 0 ],
+					center[ 1 ] + step[ 1 ],
+					center[ 2 ] + step[ 2 ] };
+
+			int j = 3;
+			final double[][] newAxes;
+			if ( rotate )
+			{
+				// axes are rotated by exp(-[w]x), so that coordinates
+				// relative to the axes change by -w x u
+				final double[][] q = rotation( -step[ j ], -step[ j + 1 ], -step[ j + 2 ] );
+				j += 3;
+				newAxes = new double[ 3 ][ 3 ];
+				for ( int k = 0; k < 3; ++k )
+					for ( int d = 0; d < 3; ++d )
+						newAxes[ k ][ d ] = q[ k ][ 0 ] * axes[ 0 ][ d ] + q[ k ][ 1 ] * axes[ 1 ][ d ] + q[ k ][ 2 ] * axes[ 2 ][ d ];
+			}
+			else
+				newAxes = axes;
+
+			final double[] newRadii = new double[ 3 ];
+			for ( int k = 0; k < 3; ++k )
+			{
+				newRadii[ k ] = radii[ k ] + step[ j + group[ k ] ];
+				if ( !( newRadii[ k ] > 0 ) )
+					return null;
+			}
+
+			return new Parameters( newCenter, newAxes, newRadii, this );
+		}
+
+		/**
+		 * Rotation matrix for rotation vector {@code (w0, w1, w2)} (Rodrigues'
+		 * formula).
+		 */
+		private static double[][] rotation( final double w0, final double w1, final double w2 )
+		{
+			final double theta = Math.sqrt( w0 * w0 + w1 * w1 + w2 * w2 );
+			final double[][] r = new double[][] { { 1, 0, 0 }, { 0, 1, 0 }, { 0, 0, 1 } };
+			if ( theta == 0 )
+				return r;
+			final double k0 = w0 / theta;
+			final double k1 = w1 / theta;
+			final double k2 = w2 / theta;
+			final double s = Math.sin( theta );
+			final double c = 1 - Math.cos( theta );
+			final double[][] k = new double[][] { { 0, -k2, k1 }, { k2, 0, -k0 }, { -k1, k0, 0 } };
+			for ( int i = 0; i < 3; ++i )
+				for ( int l = 0; l < 3; ++l )
+				{
+					double kk = 0;
+					for ( int m = 0; m < 3; ++m )
+						kk += k[ i ][ m ] * k[ m ][ l ];
+					r[ i ][ l ] += s * k[ i ][ l ] + c * kk;
+				}
+			return r;
+		}
+	}
+
+	/**
+	 * Accumulates the cost {@code r^T r}, {@code J^T J} and {@code J^T r}.
+	 */
+	private static final class Normal
+	{
+		final int n;
+
+		// upper triangle of J^T J, row by row
+		final double[] jtj;
+
+		final double[] jtr;
+
+		double cost;
+
+		Normal( final int n )
+		{
+			this.n = n;
+			jtj = new double[ n * ( n + 1 ) / 2 ];
+			jtr = new double[ n ];
+		}
+
+		void add( final double[] jacobian, final double r )
+		{
+			int i = 0;
+			for ( int row = 0; row < n; ++row )
+			{
+				final double jr = jacobian[ row ];
+				for ( int col = row; col < n; ++col )
+					jtj[ i++ ] += jr * jacobian[ col ];
+				jtr[ row ] += jr * r;
+			}
+			cost += r * r;
+		}
+
+		void add( final Normal other )
+		{
+			for ( int i = 0; i < jtj.length; ++i )
+				jtj[ i ] += other.jtj[ i ];
+			for ( int i = 0; i < n; ++i )
+				jtr[ i ] += other.jtr[ i ];
+			cost += other.cost;
+		}
+
+		/**
+		 * Solve {@code (J^T J + lambda diag(J^T J)) step = -J^T r}. Diagonal
+		 * entries are bounded below, so that parameters that do not affect
+		 * the cost (e.g., rotation about the symmetry axis of a spheroid)
+		 * stay fixed.
+		 *
+		 * @return the step, or {@code null} if the system is singular.
+		 */
+		double[] solve( final double lambda )
+		{
+			final Matrix a = new Matrix( n, n );
+			double maxDiagonal = 0;
+			for ( int row = 0, i = 0; row < n; i += n - row, ++row )
+				maxDiagonal = Math.max( maxDiagonal, jtj[ i ] );
+			for ( int row = 0, i = 0; row < n; ++row )
+				for ( int col = row; col < n; ++col, ++i )
+				{
+					a.set( row, col, jtj[ i ] );
+					a.set( col, row, jtj[ i ] );
+				}
+			for ( int row = 0; row < n; ++row )
+				a.set( row, row, a.get( row, row ) + lambda * Math.max( a.get( row, row ), 1e-12 * maxDiagonal ) );
+
+			final CholeskyDecomposition cholesky = a.chol();
+			if ( !cholesky.isSPD() )
+				return null;
+			final Matrix b = new Matrix( n, 1 );
+			for ( int row = 0; row < n; ++row )
+				b.set( row, 0, -jtr[ row ] );
+			return cholesky.solve( b ).getColumnPackedCopy();
+		}
+	}
+}
@@ -29,13 +29,23 @@
 package de.mpicbg.ovaries.ellipsoid;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 import net.imglib2.RealLocalizable;
 
-import de.mpicbg.ovaries.ellipsoid.DistPointHyperEllipsoid.Result;
-
 public class SampleEllipsoids
 {
 	public static Ellipsoid sample( final List< ? extends RealLocalizable > points )
@@ -52,56 +62,701 @@ public class SampleEllipsoids
 			final double outsideCutoffDistance,
 			final double insideCutoffDistance )
 	{
-		final int numPointsPerSample = 9;
+		return sample( points, numSamples, outsideCutoffDistance, insideCutoffDistance, SamplingOptions.options() );
+	}
+
+	public static Ellipsoid sample(
+			final List< ? extends RealLocalizable > points,
+			final int numSamples,
+			final double outsideCutoffDistance,
+			final double insideCutoffDistance,
+			final SamplingOptions options )
+	{
+		return sample( points, null, numSamples, outsideCutoffDistance, insideCutoffDistance, options );
+	}
 
-		final Random rand = new Random( System.currentTimeMillis() );
-		final ArrayList< Integer > indices = new ArrayList< Integer >();
-		final double[][] coordinates = new double[ numPointsPerSample ][ 3 ];
+	/**
+	 * Fit an ellipsoid to {@code points} by RANSAC, evaluating
+	 * {@code numSamples} random hypotheses in parallel.
+	 *
+	 * <p>
+	 * Hypotheses are drawn in chunks of {@link #CHUNK_SIZE}, each chunk with its
+	 * own {@link Random} derived from {@link SamplingOptions#getSeed()}. The
+	 * best hypothesis is the one with lowest cost, ties broken by lowest sample
+	 * index. So the result for a given seed is reproducible, independent of
+	 * the number of threads.
+	 *
+	 * @param quality
+	 *            quality of each point (e.g., detection strength), used for
+	 *            {@link SamplingOptions#guidedSampling(boolean) guided
+	 *            sampling}. May be {@code null}, then samples are drawn
+	 *            uniformly.
+	 * @return the fitted ellipsoid, or {@code null} if no hypothesis could be
+	 *         fitted.
+	 */
+	public static Ellipsoid sample(
+			final List< ? extends RealLocalizable > points,
+			final double[] quality,
+			final int numSamples,
+			final double outsideCutoffDistance,
+			final double insideCutoffDistance,
+			final SamplingOptions options )
+	{
+		final PointGrid grid = scoringGrid( points, options.getSeed() );
+		final Ellipsoid bestEllipsoid = sampleHypothesis( points, quality, grid, numSamples, outsideCutoffDistance, insideCutoffDistance, options );
+		if ( bestEllipsoid == null )
+			return null;
 
-		Ellipsoid bestEllipsoid = null;
-		double bestCost = Double.POSITIVE_INFINITY;
+		final Ellipsoid refined = fitToInliers( bestEllipsoid, grid, outsideCutoffDistance, insideCutoffDistance, options );
+		if ( options.isGeometricRefinement() )
+			return refineGeometrically( refined, grid, outsideCutoffDistance, insideCutoffDistance, options );
+		return refined;
+	}
+
+	/**
+	 * Get the best RANSAC hypothesis for {@code points}, without refitting it
+	 * to its inliers. Parameters are as for
+	 * {@link #sample(List, double[], int, double, double, SamplingOptions)}.
+	 * To refit for different cutoff distances without sampling again, create
+	 * an {@link InlierCache} for the hypothesis and use
+	 * {@link #refit(InlierCache, double, double, SamplingOptions)}.
+	 *
+	 * @return the best hypothesis, or {@code null} if no hypothesis could be
+	 *         fitted.
+	 */
+	public static Ellipsoid sampleHypothesis(
+			final List< ? extends RealLocalizable > points,
+			final double[] quality,
+			final int numSamples,
+			final double outsideCutoffDistance,
+			final double insideCutoffDistance,
+			final SamplingOptions options )
+	{
+		final PointGrid grid = scoringGrid( points, options.getSeed() );
+		return sampleHypothesis( points, quality, grid, numSamples, outsideCutoffDistance, insideCutoffDistance, options );
+	}
+
+	static Ellipsoid sampleHypothesis(
+			final List< ? extends RealLocalizable > points,
+			final double[] quality,
+			final PointGrid grid,
+			final int numSamples,
+			final double outsideCutoffDistance,
+			final double insideCutoffDistance,
+			final SamplingOptions options )
+	{
 		final Cost costFunction = new AbsoluteDistanceCost( outsideCutoffDistance, insideCutoffDistance );
+		final boolean guided = options.isGuidedSampling() && quality != null;
+		final List< ? extends RealLocalizable > samplePoints = guided ? sortByQuality( points, quality ) : points;
+		final Hypothesis best = sampleBest( samplePoints, grid, numSamples, costFunction, guided, options );
+		if ( best == null )
+		{
+			System.err.println( "no valid ellipsoid hypothesis among " + numSamples + " samples of " + points.size() + " points" );
+			return null;
+		}
+		return best.ellipsoid;
+	}
+
+	/**
+	 * Fit an ellipsoid to the points within the cutoff distances of the
+	 * {@link InlierCache#getEllipsoid() hypothesis} of {@code cache}. This is
+	 * the final step of
+	 * {@link #sample(List, double[], int, double, double, SamplingOptions)},
+	 * but inliers and their moments come from the cache, so no distances are
+	 * computed (except for {@link SamplingOptions#geometricRefinement(boolean)
+	 * geometric refinement}).
+	 */
+	public static Ellipsoid refit(
+			final InlierCache cache,
+			final double outsideCutoffDistance,
+			final double insideCutoffDistance,
+			final SamplingOptions options )
+	{
+		final FitEllipsoid.Moments moments = cache.moments( outsideCutoffDistance, insideCutoffDistance );
+		final Ellipsoid refined = options.isUnconstrainedRefit()
+				? moments.fit()
+				: moments.fit( options.getModel().constraint( cache.getPoints() ) );
+		if ( options.isGeometricRefinement() )
+			return refineGeometrically( refined, cache.getGrid(), outsideCutoffDistance, insideCutoffDistance, options );
+		return refined;
+	}
+
+	/**
+	 * Maximum number of times that inliers are selected again after
+	 * geometric refinement.
+	 */
+	static final int MAX_REFINEMENT_ROUNDS = 10;
 
-		for ( int sample = 0; sample < numSamples; ++sample )
+	/**
+	 * Refine {@code guess} by {@link RefineEllipsoid} on its inliers. The
+	 * inliers of the algebraic fit are biased along with it, so the inliers
+	 * of the refined ellipsoid are selected again and refined, until they
+	 * no longer change.
+	 */
+	static Ellipsoid refineGeometrically(
+			final Ellipsoid guess,
+			final PointGrid grid,
+			final double outsideCutoffDistance,
+			final double insideCutoffDistance,
+			final SamplingOptions options )
+	{
+		final EllipsoidModel model = options.isUnconstrainedRefit() ? EllipsoidModel.GENERAL : options.getModel();
+		Ellipsoid refined = guess;
+		PointCloud inliers = inliers( refined, grid, outsideCutoffDistance, insideCutoffDistance );
+		for ( int round = 0; round < MAX_REFINEMENT_ROUNDS; ++round )
 		{
-			try
+			refined = RefineEllipsoid.refine( refined, inliers, model, options );
+			final PointCloud newInliers = inliers( refined, grid, outsideCutoffDistance, insideCutoffDistance );
+			if ( sameCoordinates( inliers, newInliers ) )
+				break;
+			inliers = newInliers;
+		}
+		return refined;
+	}
+
+	private static boolean sameCoordinates( final PointCloud a, final PointCloud b )
+	{
+		return Arrays.equals( a.getXs(), b.getXs() ) && Arrays.equals( a.getYs(), b.getYs() ) && Arrays.equals( a.getZs(), b.getZs() );
+	}
+
+	/**
+	 * Sort {@code points} by decreasing {@code quality}. Points of equal
+	 * quality keep their order.
+	 */
+	static List< RealLocalizable > sortByQuality( final List< ? extends RealLocalizable > points, final double[] quality )
+	{
+		if ( quality.length != points.size() )
+			throw new IllegalArgumentException( "need one quality value per point" );
+		final Integer[] order = new Integer[ points.size() ];
+		for ( int i = 0; i < order.length; ++i )
+			order[ i ] = i;
+		Arrays.sort( order, new Comparator< Integer >()
+		{
+			@Override
+			public int compare( final Integer i, final Integer j )
 			{
-				indices.clear();
-				for ( int s = 0; s < numPointsPerSample; ++s )
-				{
-					int i = rand.nextInt( points.size() );
-					while ( indices.contains( i ) )
-						i = rand.nextInt( points.size() );
-					indices.add( i );
-					points.get( i ).localize( coordinates[ s ] );
-				}
-				final Ellipsoid ellipsoid = de.mpicbg.ovaries.ellipsoid.FitEllipsoid.yuryPetrov( coordinates );
+				return Double.compare( quality[ j ], quality[ i ] );
+			}
+		} );
+		final ArrayList< RealLocalizable > sorted = new ArrayList< RealLocalizable >( order.length );
+		for ( final Integer i : order )
+			sorted.add( points.get( i ) );
+		return sorted;
+	}
 
-				final double cost = costFunction.compute( ellipsoid, points );
-				if ( cost < bestCost )
+	/**
+	 * Build the {@link PointGrid} that hypotheses are scored on. Cells are
+	 * visited, and within each cell points are, in a fixed random order, so
+	 * that the partial cost of a bad hypothesis exceeds the best cost early.
+	 */
+	static PointGrid scoringGrid( final List< ? extends RealLocalizable > points, final long seed )
+	{
+		final ArrayList< RealLocalizable > shuffled = new ArrayList< RealLocalizable >( points );
+		final Random random = new Random( seed );
+		Collections.shuffle( shuffled, random );
+		return new PointGrid( new PointCloud( shuffled ), random.nextLong() );
+	}
+
+	/**
+	 * Number of consecutive hypotheses drawn from the same {@link Random}.
+	 */
+	static final int CHUNK_SIZE = 256;
+
+	/**
+	 * Evaluate {@code numSamples} random hypotheses in parallel.
+	 *
+	 * <p>
+	 * With {@link SamplingOptions#adaptive(boolean) adaptive termination},
+	 * sampling stops early once an all-inlier sample has been drawn with
+	 * probability {@link SamplingOptions#getConfidence()}, estimated from the
+	 * largest inlier fraction seen so far. {@code numSamples} remains the
+	 * upper limit. Where sampling stops depends on the order in which threads
+	 * find good hypotheses, so adaptive results are only reproducible with a
+	 * single thread.
+	 *
+	 * <p>
+	 * Hypotheses are fitted to samples of
+	 * {@link EllipsoidModel#getNumPoints()} points with the
+	 * {@link SamplingOptions#getModel() model} of {@code options}. Degenerate
+	 * samples, non-ellipsoid quadrics, and implausible ellipsoids are dropped
+	 * before scoring (see {@link HypothesisFilter}).
+	 *
+	 * <p>
+	 * With {@link SamplingOptions#localOptimization(boolean) local
+	 * optimisation}, every new best hypothesis is refined by
+	 * {@link #localOptimization}. Which hypotheses are refined depends on the
+	 * order in which threads find them, so results are then only reproducible
+	 * with a single thread.
+	 *
+	 * <p>
+	 * With {@code guided} sampling (PROSAC), samples are first drawn from the
+	 * points with highest quality, and the set that samples are drawn from
+	 * grows with the sample index until, at {@code numSamples}, it contains
+	 * all points (see {@link #prosacSchedule(int, int, long)}). The set for a
+	 * given sample index is fixed, so results remain reproducible.
+	 *
+	 * @param points
+	 *            points to draw samples from. For {@code guided} sampling,
+	 *            sorted by decreasing quality.
+	 * @param grid
+	 *            the same points, to score hypotheses on (see
+	 *            {@link #scoringGrid(List, long)}).
+	 * @return the best hypothesis, or {@code null} if no hypothesis could be
+	 *         fitted.
+	 */
+	static Hypothesis sampleBest(
+			final List< ? extends RealLocalizable > points,
+			final PointGrid grid,
+			final int numSamples,
+			final Cost costFunction,
+			final boolean guided,
+			final SamplingOptions options )
+	{
+		final EllipsoidModel model = options.getModel();
+		final int numPointsPerSample = model.getNumPoints();
+		if ( points.size() < numPointsPerSample )
+			throw new IllegalArgumentException( "Too few points; need at least " + numPointsPerSample + " to fit an ellipsoid" );
+		final double[][] constraint = model.constraint( grid.getPoints() );
+		final HypothesisFilter filter = new HypothesisFilter( grid.getPoints() );
+		final long[] schedule = guided ? prosacSchedule( points.size(), numPointsPerSample, numSamples ) : null;
+
+		final int numChunks = ( int ) ( ( ( long ) numSamples + CHUNK_SIZE - 1 ) / CHUNK_SIZE );
+		final AtomicInteger nextChunk = new AtomicInteger();
+		final AtomicInteger numFailed = new AtomicInteger();
+		final AtomicInteger numDegenerate = new AtomicInteger();
+		final AtomicInteger numNonEllipsoid = new AtomicInteger();
+		final AtomicInteger numImplausible = new AtomicInteger();
+		final AtomicInteger numEvaluated = new AtomicInteger();
+		final AtomicInteger numLocalOptimizations = new AtomicInteger();
+		final AtomicInteger numRefits = new AtomicInteger();
+		final AtomicInteger numImprovements = new AtomicInteger();
+		final SamplingOptions refitOptions = options.isLocalOptimization()
+				? SamplingOptions.options()
+						.numThreads( 1 )
+						.model( options.getModel() )
+						.unconstrainedRefit( options.isUnconstrainedRefit() )
+				: null;
+		final AtomicInteger maxNumInliers = new AtomicInteger();
+		final AtomicLong maxNumSamples = new AtomicLong( numSamples );
+		final boolean adaptive = options.isAdaptive();
+		final AtomicReference< Hypothesis > best = new AtomicReference< Hypothesis >();
+		final long seed = options.getSeed();
+
+		final long t0 = System.currentTimeMillis();
+		final int numTasks = Math.max( 1, Math.min( options.getNumThreads(), numChunks ) );
+		final ArrayList< Callable< Void > > tasks = new ArrayList< Callable< Void > >();
+		for ( int t = 0; t < numTasks; ++t )
+		{
+			tasks.add( new Callable< Void >()
+			{
+				@Override
+				public Void call() throws Exception
 				{
-					bestCost = cost;
-					bestEllipsoid = ellipsoid;
+					final int[] indices = new int[ numPointsPerSample ];
+					final double[][] coordinates = new double[ numPointsPerSample ][ 3 ];
+					for ( int chunk = nextChunk.getAndIncrement(); chunk < numChunks; chunk = nextChunk.getAndIncrement() )
+					{
+						final Random rand = new Random( chunkSeed( seed, chunk ) );
+						final int end = ( int ) Math.min( numSamples, ( long ) ( chunk + 1 ) * CHUNK_SIZE );
+						for ( int sample = chunk * CHUNK_SIZE; sample < end && sample < maxNumSamples.get(); ++sample )
+						{
+							numEvaluated.incrementAndGet();
+							final int n = schedule == null ? points.size() : prosacSize( schedule, sample + 1 );
+							if ( n < points.size() )
+								drawGuidedSample( points, rand, n, indices, coordinates );
+							else
+								drawSample( points, rand, indices, coordinates );
+							if ( filter.isDegenerate( coordinates ) )
+							{
+								numDegenerate.incrementAndGet();
+								continue;
+							}
+							final Ellipsoid ellipsoid;
+							try
+							{
+								ellipsoid = FitEllipsoid.fit( coordinates, constraint );
+							}
+							catch ( final ArithmeticException e )
+							{
+								// singular system
+								numFailed.incrementAndGet();
+								continue;
+							}
+							if ( !filter.isEllipsoid( ellipsoid ) )
+							{
+								numNonEllipsoid.incrementAndGet();
+								continue;
+							}
+							if ( !filter.isPlausible( ellipsoid ) )
+							{
+								numImplausible.incrementAndGet();
+								continue;
+							}
+							final Hypothesis current = best.get();
+							final double bound = current == null ? Double.POSITIVE_INFINITY : current.cost;
+							final double cost = costFunction.compute( ellipsoid, grid, bound );
+							if ( adaptive && cost <= bound )
+							{
+								final int numInliers = costFunction.countInliers( ellipsoid, grid );
+								if ( atomicMax( maxNumInliers, numInliers ) )
+									atomicMin( maxNumSamples, requiredSamples( ( double ) numInliers / points.size(), numPointsPerSample, options.getConfidence() ) );
+							}
+							final Hypothesis newBest = offer( best, cost, sample, ellipsoid );
+							if ( newBest != null && refitOptions != null )
+							{
+								numLocalOptimizations.incrementAndGet();
+								final Hypothesis optimized = localOptimization( newBest, grid, costFunction, refitOptions, best, numRefits, numImprovements );
+								if ( adaptive && optimized != newBest )
+								{
+									final int numInliers = costFunction.countInliers( optimized.ellipsoid, grid );
+									if ( atomicMax( maxNumInliers, numInliers ) )
+										atomicMin( maxNumSamples, requiredSamples( ( double ) numInliers / points.size(), numPointsPerSample, options.getConfidence() ) );
+								}
+							}
+						}
+					}
+					return null;
 				}
+			} );
+		}
+		runTasks( tasks, options );
+		final long t1 = System.currentTimeMillis();
+		if ( options.isVerbose() )
+			System.out.println( "evaluated " + numEvaluated.get() + " of " + numSamples + " hypotheses in " + ( t1 - t0 ) + " ms ("
+					+ numDegenerate.get() + " degenerate samples, "
+					+ numNonEllipsoid.get() + " non-ellipsoids, "
+					+ numImplausible.get() + " implausible, "
+					+ numFailed.get() + " failed)" );
+		if ( options.isVerbose() && refitOptions != null )
+			System.out.println( "local optimisation: " + numLocalOptimizations.get() + " runs, "
+					+ numRefits.get() + " refits, "
+					+ numImprovements.get() + " improvements" );
+
+		return best.get();
+	}
+
+	/**
+	 * Get the number of samples of {@code numPointsPerSample} points required
+	 * to draw at least one all-inlier sample with probability
+	 * {@code confidence}.
+	 */
+	static long requiredSamples( final double inlierFraction, final int numPointsPerSample, final double confidence )
+	{
+		final double pGood = Math.pow( inlierFraction, numPointsPerSample );
+		if ( pGood <= 0 )
+			return Long.MAX_VALUE;
+		if ( pGood >= 1 )
+			return 1;
+		final double n = Math.ceil( Math.log( 1 - confidence ) / Math.log( 1 - pGood ) );
+		return n >= Long.MAX_VALUE ? Long.MAX_VALUE : Math.max( 1, ( long ) n );
+	}
+
+	/**
+	 * Atomically raise {@code value} to at least {@code x}.
+	 *
+	 * @return whether {@code value} was raised.
+	 */
+	private static boolean atomicMax( final AtomicInteger value, final int x )
+	{
+		int current = value.get();
+		while ( x > current )
+		{
+			if ( value.compareAndSet( current, x ) )
+				return true;
+			current = value.get();
+		}
+		return false;
+	}
+
+	/**
+	 * Atomically lower {@code value} to at most {@code x}.
+	 */
+	private static void atomicMin( final AtomicLong value, final long x )
+	{
+		long current = value.get();
+		while ( x < current && !value.compareAndSet( current, x ) )
+			current = value.get();
+	}
+
+	/**
+	 * Draw {@code indices.length} distinct random points.
+	 */
+	static void drawSample(
+			final List< ? extends RealLocalizable > points,
+			final Random rand,
+			final int[] indices,
+			final double[][] coordinates )
+	{
+		for ( int s = 0; s < indices.length; ++s )
+		{
+			int i = rand.nextInt( points.size() );
+			while ( contains( indices, s, i ) )
+				i = rand.nextInt( points.size() );
+			indices[ s ] = i;
+			points.get( i ).localize( coordinates[ s ] );
+		}
+	}
+
+	/**
+	 * Draw a PROSAC sample from the {@code n} points of highest quality: the
+	 * {@code n}-th point and {@code indices.length - 1} distinct random points
+	 * of higher quality.
+	 */
+	static void drawGuidedSample(
+			final List< ? extends RealLocalizable > points,
+			final Random rand,
+			final int n,
+			final int[] indices,
+			final double[][] coordinates )
+	{
+		indices[ 0 ] = n - 1;
+		points.get( n - 1 ).localize( coordinates[ 0 ] );
+		for ( int s = 1; s < indices.length; ++s )
+		{
+			int i = rand.nextInt( n - 1 );
+			while ( contains( indices, s, i ) )
+				i = rand.nextInt( n - 1 );
+			indices[ s ] = i;
+			points.get( i ).localize( coordinates[ s ] );
+		}
+	}
+
+	/**
+	 * Compute the PROSAC growth function (Chum and Matas, 2005). Element
+	 * {@code n} (for {@code numPointsPerSample <= n < numPoints}) is the
+	 * (1-based) index of the last sample that is drawn from the {@code n}
+	 * points of highest quality. The schedule is scaled so that the samples
+	 * reach all points after {@code numSamples}, that is, the expected number
+	 * of samples drawn from the best {@code n} points is the same as in
+	 * {@code numSamples} uniform samples.
+	 */
+	static long[] prosacSchedule( final int numPoints, final int numPointsPerSample, final long numSamples )
+	{
+		final int m = numPointsPerSample;
+		final long[] schedule = new long[ numPoints ];
+		double tn = numSamples;
+		for ( int i = 0; i < m; ++i )
+			tn *= ( double ) ( m - i ) / ( numPoints - i );
+		long tnPrime = 1;
+		for ( int n = m; n < numPoints; ++n )
+		{
+			schedule[ n ] = tnPrime;
+			final double tnNext = tn * ( n + 1 ) / ( n + 1 - m );
+			tnPrime += ( long ) Math.ceil( tnNext - tn );
+			tn = tnNext;
+		}
+		return schedule;
+	}
+
+	/**
+	 * Get the number of points of highest quality that the {@code t}-th
+	 * (1-based) sample is drawn from, that is, the smallest {@code n} with
+	 * {@code schedule[n] >= t}, or {@code schedule.length} if there is none.
+	 */
+	static int prosacSize( final long[] schedule, final long t )
+	{
+		int lo = 0;
+		int hi = schedule.length;
+		while ( lo < hi )
+		{
+			final int mid = ( lo + hi ) >>> 1;
+			if ( schedule[ mid ] >= t )
+				hi = mid;
+			else
+				lo = mid + 1;
+		}
+		return lo;
+	}
+
+	private static boolean contains( final int[] indices, final int size, final int i )
+	{
+		for ( int j = 0; j < size; ++j )
+			if ( indices[ j ] == i )
+				return true;
+		return false;
+	}
+
+	/**
+	 * Derive the seed of a chunk of hypotheses from the user seed (SplitMix64
+	 * finalizer).
+	 */
+	static long chunkSeed( final long seed, final int chunk )
+	{
+		long z = seed + ( chunk + 1 ) * 0x9E3779B97F4A7C15L;
+		z = ( z ^ ( z >>> 30 ) ) * 0xBF58476D1CE4E5B9L;
+		z = ( z ^ ( z >>> 27 ) ) * 0x94D049BB133111EBL;
+		return z ^ ( z >>> 31 );
+	}
+
+	/**
+	 * Replace the current best hypothesis if the given one is better. This is
+	 * lock-free: losing hypotheses only read {@code best}, winners retry the
+	 * compare-and-set until they either succeed or are beaten.
+	 *
+	 * @return the new best hypothesis, or {@code null} if the given one was
+	 *         not better.
+	 */
+	static Hypothesis offer( final AtomicReference< Hypothesis > best, final double cost, final int index, final Ellipsoid ellipsoid )
+	{
+		if ( !( cost < Double.POSITIVE_INFINITY ) )
+			return null;
+		Hypothesis current = best.get();
+		if ( current != null && !Hypothesis.isBetter( cost, index, current ) )
+			return null;
+		final Hypothesis hypothesis = new Hypothesis( ellipsoid, cost, index );
+		while ( !best.compareAndSet( current, hypothesis ) )
+		{
+			current = best.get();
+			if ( current != null && !Hypothesis.isBetter( cost, index, current ) )
+				return null;
+		}
+		return hypothesis;
+	}
+
+	/**
+	 * Maximum number of refits in one local optimisation.
+	 */
+	static final int LO_ITERATIONS = 4;
+
+	/**
+	 * Local optimisation (LO-RANSAC) of a new best hypothesis: refit it to
+	 * its inliers, as long as the cost decreases, up to
+	 * {@link #LO_ITERATIONS} times. Improved hypotheses are offered with the
+	 * sample index of {@code hypothesis}.
+	 *
+	 * @param refitOptions
+	 *            options for {@link #fitToInliers}. These must be
+	 *            single-threaded, because local optimisation runs inside the
+	 *            sampling tasks.
+	 * @return the optimised hypothesis, or {@code hypothesis} if no refit
+	 *         improved it.
+	 */
+	static Hypothesis localOptimization(
+			final Hypothesis hypothesis,
+			final PointGrid grid,
+			final Cost costFunction,
+			final SamplingOptions refitOptions,
+			final AtomicReference< Hypothesis > best,
+			final AtomicInteger numRefits,
+			final AtomicInteger numImprovements )
+	{
+		Hypothesis current = hypothesis;
+		for ( int i = 0; i < LO_ITERATIONS; ++i )
+		{
+			numRefits.incrementAndGet();
+			final Ellipsoid refit;
+			try
+			{
+				refit = fitToInliers( current.ellipsoid, grid, costFunction.getOutsideCutoffDistance(), costFunction.getInsideCutoffDistance(), refitOptions );
 			}
-			catch ( final IllegalArgumentException e )
+			catch ( final IllegalArgumentException | ArithmeticException e )
 			{
-				e.printStackTrace();
-				System.out.println( "oops" );
+				// too few inliers, or singular system
+				break;
+			}
+			final double cost = costFunction.compute( refit, grid, current.cost );
+			if ( !( cost < current.cost ) )
+				break;
+			numImprovements.incrementAndGet();
+			current = new Hypothesis( refit, cost, current.index );
+			offer( best, cost, current.index, refit );
+		}
+		return current;
+	}
+
+	static void runTasks( final List< ? extends Callable< Void > > tasks, final SamplingOptions options )
+	{
+		if ( tasks.size() == 1 && options.getExecutorService() == null )
+		{
+			try
+			{
+				tasks.get( 0 ).call();
 			}
 			catch ( final RuntimeException e )
 			{
-				System.out.println( "psd" );
+				throw e;
 			}
+			catch ( final Exception e )
+			{
+				throw new RuntimeException( e );
+			}
+			return;
 		}
 
-		final Ellipsoid refined = fitToInliers( bestEllipsoid, points, outsideCutoffDistance, insideCutoffDistance );
-		if ( refined == null )
+		final ExecutorService es = options.getExecutorService() != null
+				? options.getExecutorService()
+				: getSharedExecutorService();
+		try
 		{
-			System.err.println( "refined ellipsoid == null! This shouldn't happen!");
-			return bestEllipsoid;
+			for ( final Future< Void > future : es.invokeAll( tasks ) )
+				future.get();
+		}
+		catch ( final InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+			throw new RuntimeException( e );
+		}
+		catch ( final ExecutionException e )
+		{
+			throw new RuntimeException( e.getCause() );
+		}
+	}
+
+	private static ExecutorService sharedExecutorService;
+
+	/**
+	 * Get the pool that runs tasks if no executor is set in the options.
+	 * {@link RefineEllipsoid} runs tasks in every iteration, so the pool is
+	 * reused instead of created per call. The number of concurrent tasks is
+	 * limited by the number of tasks that callers create, not by the pool.
+	 * Its threads are daemon threads that end when idle, so it is never shut
+	 * down.
+	 */
+	private static synchronized ExecutorService getSharedExecutorService()
+	{
+		if ( sharedExecutorService == null )
+		{
+			final AtomicInteger threadCount = new AtomicInteger();
+			sharedExecutorService = Executors.newCachedThreadPool( new ThreadFactory()
+			{
+				@Override
+				public Thread newThread( final Runnable r )
+				{
+					final Thread thread = new Thread( r, "ellipsoid-sampling-" + threadCount.incrementAndGet() );
+					thread.setDaemon( true );
+					return thread;
+				}
+			} );
+		}
+		return sharedExecutorService;
+	}
+
+	/**
+	 * A RANSAC hypothesis and its cost.
+	 */
+	static final class Hypothesis
+	{
+		final Ellipsoid ellipsoid;
+
+		final double cost;
+
+		final int index;
+
+		Hypothesis( final Ellipsoid ellipsoid, final double cost, final int index )
+		{
+			this.ellipsoid = ellipsoid;
+			this.cost = cost;
+			this.index = index;
+		}
+
+		/**
+		 * Whether a hypothesis with the given cost and sample index is better
+		 * than {@code other}. (Lower cost wins, ties go to the lower index.)
+		 */
+		static boolean isBetter( final double cost, final int index, final Hypothesis other )
+		{
+			return cost < other.cost || ( cost == other.cost && index < other.index );
 		}
-		return refined;
 	}
 
 	public static Ellipsoid fitToInliers(
@@ -110,27 +765,163 @@ public class SampleEllipsoids
 			final double outsideCutoffDistance,
 			final double insideCutoffDistance )
 	{
-		final ArrayList< RealLocalizable > inliers = new ArrayList< RealLocalizable >();
-		for ( final RealLocalizable point : points )
+		return fitToInliers( guess, new PointGrid( new PointCloud( points ) ), outsideCutoffDistance, insideCutoffDistance, SamplingOptions.options() );
+	}
+
+	/**
+	 * Number of grid cells whose inliers are accumulated into one partial
+	 * {@link FitEllipsoid.Moments} by {@link #fitToInliers}.
+	 */
+	static final int CELLS_PER_BLOCK = 256;
+
+	/**
+	 * Fit an ellipsoid to the points within the cutoff distances of
+	 * {@code guess}. Inliers are accumulated into {@link FitEllipsoid.Moments}
+	 * directly from the grid, in parallel over blocks of
+	 * {@link #CELLS_PER_BLOCK} cells. The partial sums are merged in block
+	 * order, so the result does not depend on the number of threads. The fit
+	 * is a general ellipsoid, unless
+	 * {@link SamplingOptions#unconstrainedRefit(boolean)} is {@code false}.
+	 */
+	static Ellipsoid fitToInliers(
+			final Ellipsoid guess,
+			final PointGrid grid,
+			final double outsideCutoffDistance,
+			final double insideCutoffDistance,
+			final SamplingOptions options )
+	{
+		final PointCloud points = grid.getPoints();
+		final double[] xs = points.getXs();
+		final double[] ys = points.getYs();
+		final double[] zs = points.getZs();
+		final double radius = grid.getCellRadius();
+		final DistPointEllipsoid distance = new DistPointEllipsoid( guess );
+
+		final int numCells = grid.numCells();
+		final int numBlocks = ( numCells + CELLS_PER_BLOCK - 1 ) / CELLS_PER_BLOCK;
+		final FitEllipsoid.Moments[] partials = new FitEllipsoid.Moments[ numBlocks ];
+		final AtomicInteger nextBlock = new AtomicInteger();
+		final int numTasks = Math.max( 1, Math.min( options.getNumThreads(), numBlocks ) );
+		final ArrayList< Callable< Void > > tasks = new ArrayList< Callable< Void > >();
+		for ( int t = 0; t < numTasks; ++t )
 		{
-			final Result result = DistPointHyperEllipsoid.distPointHyperEllipsoid( point, guess );
-			final double d = result.distance;
-			final boolean inside = guess.contains( point );
-			if ( ( inside && d <= insideCutoffDistance ) || ( !inside && d <= outsideCutoffDistance ) )
-				inliers.add( point );
+			tasks.add( new Callable< Void >()
+			{
+				@Override
+				public Void call() throws Exception
+				{
+					for ( int block = nextBlock.getAndIncrement(); block < numBlocks; block = nextBlock.getAndIncrement() )
+					{
+						final FitEllipsoid.Moments moments = new FitEllipsoid.Moments();
+						final int end = Math.min( numCells, ( block + 1 ) * CELLS_PER_BLOCK );
+						for ( int c = block * CELLS_PER_BLOCK; c < end; ++c )
+						{
+							if ( distance.beyondCutoff( grid.cellCenterX( c ), grid.cellCenterY( c ), grid.cellCenterZ( c ), radius, outsideCutoffDistance, insideCutoffDistance ) != 0 )
+								continue;
+							for ( int i = grid.cellStart( c ); i < grid.cellEnd( c ); ++i )
+								if ( distance.isInlier( xs[ i ], ys[ i ], zs[ i ], outsideCutoffDistance, insideCutoffDistance ) )
+									moments.add( xs[ i ], ys[ i ], zs[ i ] );
+						}
+						partials[ block ] = moments;
+					}
+					return null;
+				}
+			} );
 		}
+		runTasks( tasks, options );
 
-		final double[][] coordinates = new double[ inliers.size() ][ 3 ];
-		for ( int i = 0; i < inliers.size(); ++i )
-			inliers.get( i ).localize( coordinates[ i ] );
-
-		final Ellipsoid ellipsoid = de.mpicbg.ovaries.ellipsoid.FitEllipsoid.yuryPetrov( coordinates );
-		return ellipsoid;
+		final FitEllipsoid.Moments moments = new FitEllipsoid.Moments();
+		for ( final FitEllipsoid.Moments partial : partials )
+			moments.add( partial );
+		return options.isUnconstrainedRefit()
+				? moments.fit()
+				: moments.fit( options.getModel().constraint( points ) );
 	}
 
 	static interface Cost
 	{
-		double compute( final Ellipsoid ellipsoid, final List< ? extends RealLocalizable > points );
+		double compute( final Ellipsoid ellipsoid, final PointGrid points );
+
+		/**
+		 * Compute the cost, stopping as soon as the partial cost exceeds
+		 * {@code bound}. The cost is a sum of non-negative terms, so a
+		 * hypothesis whose partial cost exceeds {@code bound} cannot beat it.
+		 *
+		 * @return the cost if it is {@code <= bound}, otherwise some value
+		 *         {@code > bound}.
+		 */
+		double compute( final Ellipsoid ellipsoid, final PointGrid points, final double bound );
+
+		/**
+		 * Count the points that are within the cutoff distances of the
+		 * ellipsoid.
+		 */
+		int countInliers( final Ellipsoid ellipsoid, final PointGrid points );
+
+		double getOutsideCutoffDistance();
+
+		double getInsideCutoffDistance();
+	}
+
+	static int countInliers(
+			final Ellipsoid ellipsoid,
+			final PointGrid grid,
+			final double outsideCutoffDistance,
+			final double insideCutoffDistance )
+	{
+		final PointCloud points = grid.getPoints();
+		final double[] xs = points.getXs();
+		final double[] ys = points.getYs();
+		final double[] zs = points.getZs();
+		final double radius = grid.getCellRadius();
+		final DistPointEllipsoid distance = new DistPointEllipsoid( ellipsoid );
+		int numInliers = 0;
+		for ( int c = 0; c < grid.numCells(); ++c )
+		{
+			if ( distance.beyondCutoff( grid.cellCenterX( c ), grid.cellCenterY( c ), grid.cellCenterZ( c ), radius, outsideCutoffDistance, insideCutoffDistance ) != 0 )
+				continue;
+			for ( int i = grid.cellStart( c ); i < grid.cellEnd( c ); ++i )
+				if ( distance.isInlier( xs[ i ], ys[ i ], zs[ i ], outsideCutoffDistance, insideCutoffDistance ) )
+					++numInliers;
+		}
+		return numInliers;
+	}
+
+	/**
+	 * Collect the points that are within the cutoff distances of the
+	 * ellipsoid.
+	 */
+	static PointCloud inliers(
+			final Ellipsoid ellipsoid,
+			final PointGrid grid,
+			final double outsideCutoffDistance,
+			final double insideCutoffDistance )
+	{
+		final PointCloud points = grid.getPoints();
+		final double[] xs = points.getXs();
+		final double[] ys = points.getYs();
+		final double[] zs = points.getZs();
+		final double radius = grid.getCellRadius();
+		final DistPointEllipsoid distance = new DistPointEllipsoid( ellipsoid );
+		final int numInliers = countInliers( ellipsoid, grid, outsideCutoffDistance, insideCutoffDistance );
+		final double[] ixs = new double[ numInliers ];
+		final double[] iys = new double[ numInliers ];
+		final double[] izs = new double[ numInliers ];
+		int j = 0;
+		for ( int c = 0; c < grid.numCells(); ++c )
+		{
+			if ( distance.beyondCutoff( grid.cellCenterX( c ), grid.cellCenterY( c ), grid.cellCenterZ( c ), radius, outsideCutoffDistance, insideCutoffDistance ) != 0 )
+				continue;
+			for ( int i = grid.cellStart( c ); i < grid.cellEnd( c ); ++i )
+				if ( distance.isInlier( xs[ i ], ys[ i ], zs[ i ], outsideCutoffDistance, insideCutoffDistance ) )
+				{
+					ixs[ j ] = xs[ i ];
+					iys[ j ] = ys[ i ];
+					izs[ j ] = zs[ i ];
+					++j;
+				}
+		}
+		return new PointCloud( ixs, iys, izs );
 	}
 
 	static class AbsoluteDistanceCost implements Cost
@@ -145,49 +936,140 @@ public class SampleEllipsoids
 		}
 
 		@Override
-		public double compute( final Ellipsoid ellipsoid, final List< ? extends RealLocalizable > points )
+		public double compute( final Ellipsoid ellipsoid, final PointGrid points )
+		{
+			return compute( ellipsoid, points, Double.POSITIVE_INFINITY );
+		}
+
+		@Override
+		public double compute( final Ellipsoid ellipsoid, final PointGrid grid, final double bound )
 		{
 			double cost = 0;
-			for ( final RealLocalizable point : points )
+			final DistPointEllipsoid distance = new DistPointEllipsoid( ellipsoid );
+			final PointCloud points = grid.getPoints();
+			final double[] xs = points.getXs();
+			final double[] ys = points.getYs();
+			final double[] zs = points.getZs();
+			final double radius = grid.getCellRadius();
+			for ( int k = 0; k < grid.numCells() && cost <= bound; ++k )
 			{
-				final Result result = DistPointHyperEllipsoid.distPointHyperEllipsoid( point, ellipsoid );
-				final double d = result.distance;
-				if ( ellipsoid.contains( point ) )
-					cost += Math.min( d, insideCutoff );
+				final int c = grid.cell( k );
+				final int start = grid.cellStart( c );
+				final int end = grid.cellEnd( c );
+				final int beyond = distance.beyondCutoff( grid.cellCenterX( c ), grid.cellCenterY( c ), grid.cellCenterZ( c ), radius, outsideCutoff, insideCutoff );
+				if ( beyond > 0 )
+					cost += ( end - start ) * outsideCutoff;
+				else if ( beyond < 0 )
+					cost += ( end - start ) * insideCutoff;
 				else
-					cost += Math.min( d, outsideCutoff );
+					for ( int i = start; i < end; ++i )
+					{
+						// points beyond the cutoff get +/-infinity, see signedDistance()
+						final double d = distance.signedDistance( xs[ i ], ys[ i ], zs[ i ], outsideCutoff, insideCutoff );
+						if ( d < 0 )
+							cost += Math.min( -d, insideCutoff );
+						else
+							cost += Math.min( d, outsideCutoff );
+						if ( cost > bound )
+							break;
+					}
 			}
 			return cost;
 		}
 
+		@Override
+		public int countInliers( final Ellipsoid ellipsoid, final PointGrid points )
+		{
+			return SampleEllipsoids.countInliers( ellipsoid, points, outsideCutoff, insideCutoff );
+		}
+
+		@Override
+		public double getOutsideCutoffDistance()
+		{
+			return outsideCutoff;
+		}
+
+		@Override
+		public double getInsideCutoffDistance()
+		{
+			return insideCutoff;
+		}
 	}
 
 	static class SquaredDistanceCost implements Cost
 	{
+		private final double outsideCutoffDistance;
+		private final double insideCutoffDistance;
 		private final double outsideCutoff;
 		private final double insideCutoff;
 
 		public SquaredDistanceCost( final double outsideCutoffDistance, final double insideCutoffDistance )
 		{
+			this.outsideCutoffDistance = outsideCutoffDistance;
+			this.insideCutoffDistance = insideCutoffDistance;
 			outsideCutoff = outsideCutoffDistance * outsideCutoffDistance;
 			insideCutoff = insideCutoffDistance * insideCutoffDistance;
 		}
 
 		@Override
-		public double compute( final Ellipsoid ellipsoid, final List< ? extends RealLocalizable > points )
+		public double compute( final Ellipsoid ellipsoid, final PointGrid points )
+		{
+			return compute( ellipsoid, points, Double.POSITIVE_INFINITY );
+		}
+
+		@Override
+		public double compute( final Ellipsoid ellipsoid, final PointGrid grid, final double bound )
 		{
 			double cost = 0;
-			for ( final RealLocalizable point : points )
+			final DistPointEllipsoid distance = new DistPointEllipsoid( ellipsoid );
+			final PointCloud points = grid.getPoints();
+			final double[] xs = points.getXs();
+			final double[] ys = points.getYs();
+			final double[] zs = points.getZs();
+			final double radius = grid.getCellRadius();
+			for ( int k = 0; k < grid.numCells() && cost <= bound; ++k )
 			{
-				final Result result = DistPointHyperEllipsoid.distPointHyperEllipsoid( point, ellipsoid );
-				final double d = result.distance * result.distance;
-				if ( ellipsoid.contains( point ) )
-					cost += Math.min( d, insideCutoff );
+				final int c = grid.cell( k );
+				final int start = grid.cellStart( c );
+				final int end = grid.cellEnd( c );
+				final int beyond = distance.beyondCutoff( grid.cellCenterX( c ), grid.cellCenterY( c ), grid.cellCenterZ( c ), radius, outsideCutoffDistance, insideCutoffDistance );
+				if ( beyond > 0 )
+					cost += ( end - start ) * outsideCutoff;
+				else if ( beyond < 0 )
+					cost += ( end - start ) * insideCutoff;
 				else
-					cost += Math.min( d, outsideCutoff );
+					for ( int i = start; i < end; ++i )
+					{
+						// points beyond the cutoff get +/-infinity, see signedDistance()
+						final double r = distance.signedDistance( xs[ i ], ys[ i ], zs[ i ], outsideCutoffDistance, insideCutoffDistance );
+						final double d = r * r;
+						if ( r < 0 )
+							cost += Math.min( d, insideCutoff );
+						else
+							cost += Math.min( d, outsideCutoff );
+						if ( cost > bound )
+							break;
+					}
 			}
 			return cost;
 		}
 
+		@Override
+		public int countInliers( final Ellipsoid ellipsoid, final PointGrid points )
+		{
+			return SampleEllipsoids.countInliers( ellipsoid, points, outsideCutoffDistance, insideCutoffDistance );
+		}
+
+		@Override
+		public double getOutsideCutoffDistance()
+		{
+			return outsideCutoffDistance;
+		}
+
+		@Override
+		public double getInsideCutoffDistance()
+		{
+			return insideCutoffDistance;
+		}
 	}
 }
@@ -0,0 +1,286 @@
+/*-
+ * #%L
+ * Ellipsoid Surface Projection
+ * %%
+ * Copyright (C) 2016 - 2018 Tobias Pietzsch
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.mpicbg.ovaries.ellipsoid;
+
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Optional parameters for {@link SampleEllipsoids}.
+ */
+public class SamplingOptions
+{
+	private int numThreads = Runtime.getRuntime().availableProcessors();
+
+	private ExecutorService executorService = null;
+
+	private long seed = System.currentTimeMillis();
+
+	private boolean adaptive = false;
+
+	private double confidence = 0.99;
+
+	private EllipsoidModel model = EllipsoidModel.GENERAL;
+
+	private boolean unconstrainedRefit = true;
+
+	private boolean localOptimization = false;
+
+	private boolean geometricRefinement = false;
+
+	private boolean guidedSampling = false;
+
+	private boolean verbose = false;
+
+	/**
+	 * Create default {@link SamplingOptions}.
+	 *
+	 * @return default {@link SamplingOptions}.
+	 */
+	public static SamplingOptions options()
+	{
+		return new SamplingOptions();
+	}
+
+	/**
+	 * Set the number of threads that evaluate RANSAC hypotheses in parallel.
+	 *
+	 * @param n
+	 *            number of threads. Defaults to the number of available
+	 *            processors.
+	 */
+	public SamplingOptions numThreads( final int n )
+	{
+		numThreads = Math.max( 1, n );
+		return this;
+	}
+
+	/**
+	 * Set the {@link ExecutorService} that evaluates hypotheses. The service
+	 * is not shut down after sampling.
+	 *
+	 * @param service
+	 *            the executor service, or {@code null} to run
+	 *            {@link #numThreads(int)} tasks on a shared pool of daemon
+	 *            threads. Defaults to {@code null}.
+	 */
+	public SamplingOptions executorService( final ExecutorService service )
+	{
+		executorService = service;
+		return this;
+	}
+
+	/**
+	 * Set the seed of the random samples. The hypotheses drawn for a given
+	 * seed, and hence the result, do not depend on the number of threads.
+	 *
+	 * @param seed
+	 *            the seed. Defaults to the current time.
+	 */
+	public SamplingOptions seed( final long seed )
+	{
+		this.seed = seed;
+		return this;
+	}
+
+	/**
+	 * Set whether to stop sampling as soon as an all-inlier sample has been
+	 * drawn with probability {@link #confidence(double)}. The required number
+	 * of samples is estimated from the largest fraction of inliers (points
+	 * within the cutoff distances) of any hypothesis so far. The number of
+	 * samples requested from {@link SampleEllipsoids} remains the upper
+	 * limit.
+	 *
+	 * @param b
+	 *            whether to terminate adaptively. Defaults to {@code false}.
+	 */
+	public SamplingOptions adaptive( final boolean b )
+	{
+		adaptive = b;
+		return this;
+	}
+
+	/**
+	 * Set the confidence for {@link #adaptive(boolean) adaptive termination}.
+	 *
+	 * @param p
+	 *            probability in {@code (0, 1)}. Defaults to {@code 0.99}.
+	 */
+	public SamplingOptions confidence( final double p )
+	{
+		if ( !( p > 0 && p < 1 ) )
+			throw new IllegalArgumentException( "confidence must be in (0, 1): " + p );
+		confidence = p;
+		return this;
+	}
+
+	/**
+	 * Set the model of the RANSAC hypotheses. Constrained models need smaller
+	 * samples, so an all-inlier sample is much more likely. (With inlier
+	 * fraction {@code w}, a sample of {@code k} points is all-inlier with
+	 * probability {@code w^k}.)
+	 *
+	 * @param model
+	 *            the model. Defaults to {@link EllipsoidModel#GENERAL}.
+	 */
+	public SamplingOptions model( final EllipsoidModel model )
+	{
+		this.model = model;
+		return this;
+	}
+
+	/**
+	 * Set whether the final fit to the inliers of the best hypothesis is a
+	 * general ellipsoid, or uses the {@link #model(EllipsoidModel) model} of
+	 * the hypotheses.
+	 *
+	 * @param b
+	 *            whether to refit without constraints. Defaults to
+	 *            {@code true}.
+	 */
+	public SamplingOptions unconstrainedRefit( final boolean b )
+	{
+		unconstrainedRefit = b;
+		return this;
+	}
+
+	/**
+	 * Set whether every new best hypothesis is refined by refitting it to its
+	 * inliers (LO-RANSAC). The best hypothesis then converges with fewer
+	 * samples. Refits use the same model as the final fit, see
+	 * {@link #unconstrainedRefit(boolean)}.
+	 *
+	 * @param b
+	 *            whether to optimise locally. Defaults to {@code false}.
+	 */
+	public SamplingOptions localOptimization( final boolean b )
+	{
+		localOptimization = b;
+		return this;
+	}
+
+	/**
+	 * Set whether the final fit is refined by minimizing the squared
+	 * distances to its inliers, see {@link RefineEllipsoid}. This removes the
+	 * bias of the algebraic fit for points that cover only part of the
+	 * ellipsoid.
+	 *
+	 * @param b
+	 *            whether to refine geometrically. Defaults to {@code false}.
+	 */
+	public SamplingOptions geometricRefinement( final boolean b )
+	{
+		geometricRefinement = b;
+		return this;
+	}
+
+	/**
+	 * Set whether samples are drawn preferably from points of high quality
+	 * (PROSAC), if qualities are given. Early samples are drawn from the
+	 * strongest points only, and the set of points is widened gradually to
+	 * all points. If strong points are more likely inliers, a good hypothesis
+	 * is found with far fewer samples.
+	 *
+	 * @param b
+	 *            whether to guide sampling by quality. Defaults to
+	 *            {@code false}.
+	 */
+	public SamplingOptions guidedSampling( final boolean b )
+	{
+		guidedSampling = b;
+		return this;
+	}
+
+	/**
+	 * Set whether to print statistics of the sampled hypotheses to
+	 * {@code System.out}.
+	 *
+	 * @param b
+	 *            whether to print statistics. Defaults to {@code false}.
+	 */
+	public SamplingOptions verbose( final boolean b )
+	{
+		verbose = b;
+		return this;
+	}
+
+	public int getNumThreads()
+	{
+		return numThreads;
+	}
+
+	public ExecutorService getExecutorService()
+	{
+		return executorService;
+	}
+
+	public long getSeed()
+	{
+		return seed;
+	}
+
+	public boolean isAdaptive()
+	{
+		return adaptive;
+	}
+
+	public double getConfidence()
+	{
+		return confidence;
+	}
+
+	public EllipsoidModel getModel()
+	{
+		return model;
+	}
+
+	public boolean isUnconstrainedRefit()
+	{
+		return unconstrainedRefit;
+	}
+
+	public boolean isLocalOptimization()
+	{
+		return localOptimization;
+	}
+
+	public boolean isGeometricRefinement()
+	{
+		return geometricRefinement;
+	}
+
+	public boolean isGuidedSampling()
+	{
+		return guidedSampling;
+	}
+
+	public boolean isVerbose()
+	{
+		return verbose;
+	}
+}
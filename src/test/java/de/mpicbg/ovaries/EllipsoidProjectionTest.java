@@ -0,0 +1,277 @@
+/*-
+ * #%L
+ * Ellipsoid Surface Projection
+ * %%
+ * Copyright (C) 2016 - 2018 Tobias Pietzsch
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.mpicbg.ovaries;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import bdv.util.RandomAccessibleIntervalSource;
+import bdv.viewer.Interpolation;
+import bdv.viewer.Source;
+import de.mpicbg.ovaries.ellipsoid.Ellipsoid;
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.RealRandomAccess;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.realtransform.RealViews;
+import net.imglib2.realtransform.SphericalToCartesianTransform3D;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.LinAlgHelpers;
+import net.imglib2.view.Views;
+
+/**
+ * Compares the traversals of {@link EllipsoidProjection} (plane-major row
+ * tiles, pixel-major, and compiled {@link ProjectionPlan}s) with the
+ * original sequential projection of one plane at a time (see
+ * {@link #projectBaseline(Source, Ellipsoid, double[][])}), and checks the
+ * {@link ProjectionReduction}s.
+ *
+ * <p>
+ * The ellipsoid lies well inside the source image, so no samples are out of
+ * bounds.
+ */
+public class EllipsoidProjectionTest
+{
+	private static final long[] DIMENSIONS = { 64, 64, 32 };
+
+	private static final int WIDTH = 48;
+
+	private static final int HEIGHT = 24;
+
+	private static final double MIN_DISTANCE = -4;
+
+	private static final double MAX_DISTANCE = 4;
+
+	private static final double SLICE_DISTANCE = 1;
+
+	/**
+	 * The NLinear interpolator accumulates in {@link UnsignedShortType},
+	 * rounding each of the eight weighted neighbours to an integer. Compiled
+	 * plans store the fractional voxel offsets as {@code float}, which adds a
+	 * tiny error.
+	 */
+	private static final double TOLERANCE = 8 * 0.5 + 0.01;
+
+	private static final ProjectionReduction[] REDUCTIONS = ProjectionReduction.values();
+
+	@Test
+	public void testPlaneMajor()
+	{
+		// same arithmetic as the baseline, only split into row tiles
+		compare( ProjectionOptions.options().numThreads( 4 ), 0 );
+	}
+
+	@Test
+	public void testPixelMajor()
+	{
+		compare( ProjectionOptions.options().numThreads( 4 ).pixelMajor( true ), TOLERANCE );
+	}
+
+	@Test
+	public void testPixelMajorDirectSampling()
+	{
+		compare( ProjectionOptions.options().numThreads( 4 ).pixelMajor( true ).directSampling( true ), TOLERANCE );
+	}
+
+	@Test
+	public void testCompiledPlan()
+	{
+		compare( ProjectionOptions.options().numThreads( 4 ).planCache( new ProjectionPlanCache() ), TOLERANCE );
+	}
+
+	/**
+	 * Reductions of the full-depth stack, written to plane 0, must equal the
+	 * reduction of the unreduced stack of the same traversal.
+	 */
+	@Test
+	public void testReducedProjection()
+	{
+		final Source< UnsignedShortType > source = createSource( new Random( 2 ) );
+		final Ellipsoid ellipsoid = createEllipsoid();
+		final int depth = depth();
+		final float[] stack = project( source, ellipsoid, ProjectionOptions.options().pixelMajor( true ), depth );
+		final float[] values = new float[ depth ];
+		for ( final ProjectionReduction reduction : REDUCTIONS )
+		{
+			final float[] reduced = project( source, ellipsoid, ProjectionOptions.options().pixelMajor( true ).reduction( reduction ), 1 );
+			for ( int i = 0; i < WIDTH * HEIGHT; ++i )
+			{
+				for ( int z = 0; z < depth; ++z )
+					values[ z ] = stack[ i + z * WIDTH * HEIGHT ];
+				assertEquals( reduction + " of pixel " + i, reduction.reduce( values, depth, MIN_DISTANCE, SLICE_DISTANCE ), reduced[ i ], 0 );
+			}
+		}
+	}
+
+	/**
+	 * Reductions of a hand-built ray. Values beyond {@code depth} are
+	 * ignored.
+	 */
+	@Test
+	public void testReductions()
+	{
+		final float[] values = { 3, 7, 2, 7, 1, 100 };
+		final int depth = 5;
+		final double minDistance = -2;
+		final double sliceDistance = 0.5;
+		assertEquals( 7, ProjectionReduction.MAX.reduce( values, depth, minDistance, sliceDistance ), 0 );
+		assertEquals( 20, ProjectionReduction.SUM.reduce( values, depth, minDistance, sliceDistance ), 0 );
+		assertEquals( 4, ProjectionReduction.MEAN.reduce( values, depth, minDistance, sliceDistance ), 0 );
+		// the first of two maxima, at z = 1
+		assertEquals( -1.5, ProjectionReduction.ARGMAX.reduce( values, depth, minDistance, sliceDistance ), 0 );
+
+		final float[] single = { 5 };
+		for ( final ProjectionReduction reduction : REDUCTIONS )
+			assertEquals( reduction.toString(), reduction == ProjectionReduction.ARGMAX ? minDistance : 5, reduction.reduce( single, 1, minDistance, sliceDistance ), 0 );
+	}
+
+	private static void compare( final ProjectionOptions options, final double tolerance )
+	{
+		final Source< UnsignedShortType > source = createSource( new Random( 1 ) );
+		final Ellipsoid ellipsoid = createEllipsoid();
+		final int depth = depth();
+		final float[] expected = projectBaseline( source, ellipsoid, SphericalProjection.getCylinderAxes( ellipsoid, false, false ) );
+		final float[] actual = project( source, ellipsoid, options, depth );
+		for ( int i = 0; i < expected.length; ++i )
+			assertEquals( "sample " + i, expected[ i ], actual[ i ], tolerance );
+	}
+
+	private static int depth()
+	{
+		return ( int ) Math.ceil( ( MAX_DISTANCE - MIN_DISTANCE ) / SLICE_DISTANCE ) + 1;
+	}
+
+	/**
+	 * Project with {@link SphericalProjection}, and return the output
+	 * indexed by {@code x + WIDTH * (y + HEIGHT * z)}.
+	 */
+	private static float[] project( final Source< UnsignedShortType > source, final Ellipsoid ellipsoid, final ProjectionOptions options, final int depth )
+	{
+		final SphericalProjection projection = new SphericalProjection( ellipsoid, WIDTH, HEIGHT, MIN_DISTANCE, MAX_DISTANCE, SLICE_DISTANCE, 0, 0, false, false, source, options );
+		final RandomAccessibleInterval< FloatType > hyperstack = ArrayImgs.floats( WIDTH, HEIGHT, 1, depth );
+		projection.projectTimepoint( 0, hyperstack );
+		final float[] data = new float[ WIDTH * HEIGHT * depth ];
+		final Cursor< FloatType > cursor = Views.flatIterable( hyperstack ).cursor();
+		for ( int i = 0; i < data.length; ++i )
+			data[ i ] = cursor.next().get();
+		return data;
+	}
+
+	/**
+	 * The original projection: one plane at a time, on one thread, sampling
+	 * the NLinear interpolated source at global coordinates.
+	 */
+	private static float[] projectBaseline( final Source< UnsignedShortType > source, final Ellipsoid ellipsoid, final double[][] cylAxes )
+	{
+		final int depth = depth();
+		final float[] data = new float[ WIDTH * HEIGHT * depth ];
+		final AffineTransform3D transform = new AffineTransform3D();
+		source.getSourceTransform( 0, 0, transform );
+		final RealRandomAccess< UnsignedShortType > in = RealViews.affineReal( source.getInterpolatedSource( 0, 0, Interpolation.NLINEAR ), transform ).realRandomAccess();
+
+		final double[] spherical = new double[ 3 ];
+		final double[] unit = new double[ 3 ];
+		final double[] cyl = new double[ 3 ];
+		// point on ellipsoid
+		final double[] pe = new double[ 3 ];
+		// unit normal at pe
+		final double[] ne = new double[ 3 ];
+
+		for ( int z = 0; z < depth; ++z )
+		{
+			final double distance = MIN_DISTANCE + z * SLICE_DISTANCE;
+			spherical[ 0 ] = 1.0; // radius
+			for ( int ypi = 0; ypi < HEIGHT; ++ypi )
+			{
+				spherical[ 1 ] = ypi * Math.PI / HEIGHT; // inclination
+				for ( int xpi = 0; xpi < WIDTH; ++xpi )
+				{
+					spherical[ 2 ] = xpi * 2 * Math.PI / WIDTH; // azimuth
+					SphericalToCartesianTransform3D.getInstance().apply( spherical, cyl );
+					LinAlgHelpers.multT( cylAxes, cyl, unit );
+					LinAlgHelpers.normalize( unit );
+
+					LinAlgHelpers.mult( ellipsoid.getPrecision(), unit, ne );
+					LinAlgHelpers.scale( unit, Math.sqrt( 1.0 / LinAlgHelpers.dot( unit, ne ) ), pe );
+					LinAlgHelpers.mult( ellipsoid.getPrecision(), pe, ne );
+					LinAlgHelpers.normalize( ne );
+					LinAlgHelpers.add( pe, ellipsoid.getCenter(), pe );
+
+					LinAlgHelpers.scale( ne, distance, ne );
+					LinAlgHelpers.add( pe, ne, pe );
+					in.setPosition( pe );
+					data[ xpi + WIDTH * ( ypi + HEIGHT * z ) ] = in.get().getRealFloat();
+				}
+			}
+		}
+		return data;
+	}
+
+	/**
+	 * A source with 12-bit random values (such that rounding in the NLinear
+	 * interpolator cannot overflow) and anisotropic, translated voxels.
+	 */
+	private static Source< UnsignedShortType > createSource( final Random random )
+	{
+		final short[] data = new short[ ( int ) ( DIMENSIONS[ 0 ] * DIMENSIONS[ 1 ] * DIMENSIONS[ 2 ] ) ];
+		for ( int i = 0; i < data.length; ++i )
+			data[ i ] = ( short ) random.nextInt( 4096 );
+		final AffineTransform3D sourceToGlobal = new AffineTransform3D();
+		sourceToGlobal.set(
+				1.0, 0, 0, 3,
+				0, 1.0, 0, -2,
+				0, 0, 2.0, 1 );
+		return new RandomAccessibleIntervalSource< UnsignedShortType >( ArrayImgs.unsignedShorts( data, DIMENSIONS ), new UnsignedShortType(), sourceToGlobal, "random" );
+	}
+
+	/**
+	 * A rotated ellipsoid near the center of the source, such that all
+	 * samples between {@link #MIN_DISTANCE} and {@link #MAX_DISTANCE} lie
+	 * inside the source image.
+	 */
+	private static Ellipsoid createEllipsoid()
+	{
+		final double a = 0.3;
+		final double b = 0.2;
+		final double[][] axes = {
+				{ Math.cos( a ), Math.sin( a ), 0 },
+				{ -Math.sin( a ) * Math.cos( b ), Math.cos( a ) * Math.cos( b ), Math.sin( b ) },
+				{ Math.sin( a ) * Math.sin( b ), -Math.cos( a ) * Math.sin( b ), Math.cos( b ) } };
+		final double[] center = { 35, 30, 33 };
+		final double[] radii = { 20, 16, 12 };
+		return new Ellipsoid( center, null, null, axes, radii );
+	}
+}
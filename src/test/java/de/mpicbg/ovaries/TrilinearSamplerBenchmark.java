@@ -0,0 +1,115 @@
+/*-
+ * #%L
+ * Ellipsoid Surface Projection
+ * %%
+ * Copyright (C) 2016 - 2018 Tobias Pietzsch
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.mpicbg.ovaries;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import de.mpicbg.ovaries.TrilinearSamplerTest.Rays;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.RealRandomAccess;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+
+/**
+ * Time per sample of {@link TrilinearSampler} versus
+ * {@code RealViews.affineReal} of the NLinear interpolated source, along
+ * random rays through an {@code ArrayImg} or a {@code CellImg} (see
+ * {@link TrilinearSamplerTest}, which checks that both give the same values).
+ *
+ * <p>
+ * Run with
+ * {@code mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=de.mpicbg.ovaries.TrilinearSamplerBenchmark}.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.NANOSECONDS )
+@Warmup( iterations = 3, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+@OperationsPerInvocation( TrilinearSamplerTest.NUM_RAYS * TrilinearSamplerTest.SAMPLES_PER_RAY )
+public class TrilinearSamplerBenchmark
+{
+	@Param( { "ArrayImg", "CellImg" } )
+	public String img;
+
+	private Rays rays;
+
+	private RealRandomAccess< UnsignedShortType > generic;
+
+	private TrilinearSampler direct;
+
+	private double[] values;
+
+	@Setup
+	public void setup()
+	{
+		RandomAccessibleInterval< UnsignedShortType > source = TrilinearSamplerTest.randomImage( new Random( 1 ) );
+		if ( img.equals( "CellImg" ) )
+			source = TrilinearSamplerTest.toCellImg( source );
+		rays = new Rays( new Random( 3 ) );
+		generic = TrilinearSamplerTest.genericSampler( source, rays );
+		direct = new TrilinearSampler( source );
+		values = new double[ TrilinearSamplerTest.NUM_RAYS * TrilinearSamplerTest.SAMPLES_PER_RAY ];
+	}
+
+	@Benchmark
+	public double[] generic()
+	{
+		rays.sampleGeneric( generic, values );
+		return values;
+	}
+
+	@Benchmark
+	public double[] direct()
+	{
+		rays.sampleDirect( direct, values );
+		return values;
+	}
+
+	public static void main( final String... args ) throws RunnerException
+	{
+		new Runner( new OptionsBuilder().include( TrilinearSamplerBenchmark.class.getSimpleName() ).build() ).run();
+	}
+}
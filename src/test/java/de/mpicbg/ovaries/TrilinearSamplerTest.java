@@ -0,0 +1,222 @@
+/*-
+ * #%L
+ * Ellipsoid Surface Projection
+ * %%
+ * Copyright (C) 2016 - 2018 Tobias Pietzsch
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.mpicbg.ovaries;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.RealRandomAccess;
+import net.imglib2.RealRandomAccessible;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.ShortArray;
+import net.imglib2.img.cell.CellImg;
+import net.imglib2.img.cell.CellImgFactory;
+import net.imglib2.interpolation.randomaccess.NLinearInterpolatorFactory;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.realtransform.RealViews;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.view.Views;
+
+/**
+ * Compares {@link TrilinearSampler} with the generic sampling path of
+ * {@link EllipsoidProjection}, i.e.,
+ * {@code RealViews.affineReal} of the {@link NLinearInterpolatorFactory
+ * NLinear} interpolated source. See {@link TrilinearSamplerBenchmark} for
+ * timings.
+ *
+ * <p>
+ * Samples are taken along random rays, as in a projection. For the generic
+ * path, positions are stepped in global coordinates. For
+ * {@link TrilinearSampler}, the ray start and step are transformed to voxel
+ * coordinates once per ray. Some rays leave the image, so the out-of-bounds
+ * fallback is included.
+ */
+public class TrilinearSamplerTest
+{
+	static final long[] DIMENSIONS = { 256, 192, 64 };
+
+	static final int CELL_SIZE = 32;
+
+	static final int NUM_RAYS = 10000;
+
+	static final int SAMPLES_PER_RAY = 64;
+
+	/**
+	 * The NLinear interpolator accumulates in {@link UnsignedShortType},
+	 * rounding each of the eight weighted neighbours to an integer.
+	 */
+	private static final double TOLERANCE = 8 * 0.5;
+
+	@Test
+	public void testArrayImg()
+	{
+		compare( randomImage( new Random( 1 ) ) );
+	}
+
+	@Test
+	public void testCellImg()
+	{
+		compare( toCellImg( randomImage( new Random( 2 ) ) ) );
+	}
+
+	private static void compare( final RandomAccessibleInterval< UnsignedShortType > img )
+	{
+		final Rays rays = new Rays( new Random( 3 ) );
+		final double[] genericValues = new double[ NUM_RAYS * SAMPLES_PER_RAY ];
+		final double[] directValues = new double[ NUM_RAYS * SAMPLES_PER_RAY ];
+		rays.sampleGeneric( genericSampler( img, rays ), genericValues );
+		rays.sampleDirect( new TrilinearSampler( img ), directValues );
+		for ( int i = 0; i < genericValues.length; ++i )
+			assertEquals( "sample " + i, genericValues[ i ], directValues[ i ], TOLERANCE );
+	}
+
+	/**
+	 * Random rays through a rotated, anisotropically scaled source, with
+	 * starts and steps in global and voxel coordinates.
+	 */
+	static class Rays
+	{
+		final AffineTransform3D sourceToGlobal;
+
+		final double[][] origins = new double[ NUM_RAYS ][ 3 ];
+
+		final double[][] steps = new double[ NUM_RAYS ][ 3 ];
+
+		final double[][] voxelOrigins = new double[ NUM_RAYS ][ 3 ];
+
+		final double[][] voxelSteps = new double[ NUM_RAYS ][ 3 ];
+
+		Rays( final Random random )
+		{
+			// anisotropic voxels, rotated and translated
+			sourceToGlobal = new AffineTransform3D();
+			sourceToGlobal.set(
+					0.5, 0, 0, 10,
+					0, 0.5, 0, -20,
+					0, 0, 2.0, 5 );
+			sourceToGlobal.rotate( 2, 0.3 );
+			sourceToGlobal.rotate( 0, 0.2 );
+			final AffineTransform3D globalToSource = sourceToGlobal.inverse();
+
+			final double[] voxel = new double[ 3 ];
+			final double[] end = new double[ 3 ];
+			for ( int r = 0; r < NUM_RAYS; ++r )
+			{
+				for ( int d = 0; d < 3; ++d )
+					voxel[ d ] = ( 1.2 * random.nextDouble() - 0.1 ) * DIMENSIONS[ d ];
+				sourceToGlobal.apply( voxel, origins[ r ] );
+				double length = 0;
+				for ( int d = 0; d < 3; ++d )
+				{
+					steps[ r ][ d ] = random.nextGaussian();
+					length += steps[ r ][ d ] * steps[ r ][ d ];
+				}
+				length = Math.sqrt( length );
+				for ( int d = 0; d < 3; ++d )
+				{
+					steps[ r ][ d ] *= 0.5 / length;
+					end[ d ] = origins[ r ][ d ] + steps[ r ][ d ];
+				}
+				globalToSource.apply( origins[ r ], voxelOrigins[ r ] );
+				globalToSource.apply( end, voxelSteps[ r ] );
+				for ( int d = 0; d < 3; ++d )
+					voxelSteps[ r ][ d ] -= voxelOrigins[ r ][ d ];
+			}
+		}
+
+		/**
+		 * Sample all rays in global coordinates, stepping {@code generic}.
+		 */
+		void sampleGeneric( final RealRandomAccess< UnsignedShortType > generic, final double[] values )
+		{
+			final double[] position = new double[ 3 ];
+			for ( int r = 0, i = 0; r < NUM_RAYS; ++r )
+				for ( int k = 0; k < SAMPLES_PER_RAY; ++k, ++i )
+				{
+					for ( int d = 0; d < 3; ++d )
+						position[ d ] = origins[ r ][ d ] + k * steps[ r ][ d ];
+					generic.setPosition( position );
+					values[ i ] = generic.get().getRealDouble();
+				}
+		}
+
+		/**
+		 * Sample all rays in voxel coordinates with {@code direct}.
+		 */
+		void sampleDirect( final TrilinearSampler direct, final double[] values )
+		{
+			final double[] position = new double[ 3 ];
+			for ( int r = 0, i = 0; r < NUM_RAYS; ++r )
+				for ( int k = 0; k < SAMPLES_PER_RAY; ++k, ++i )
+				{
+					for ( int d = 0; d < 3; ++d )
+						position[ d ] = voxelOrigins[ r ][ d ] + k * voxelSteps[ r ][ d ];
+					values[ i ] = direct.sample( position );
+				}
+		}
+	}
+
+	/**
+	 * The generic sampling path: NLinear interpolation of the zero-extended
+	 * image, transformed to global coordinates.
+	 */
+	static RealRandomAccess< UnsignedShortType > genericSampler( final RandomAccessibleInterval< UnsignedShortType > img, final Rays rays )
+	{
+		final RealRandomAccessible< UnsignedShortType > interpolated = Views.interpolate( Views.extendZero( img ), new NLinearInterpolatorFactory< UnsignedShortType >() );
+		return RealViews.affineReal( interpolated, rays.sourceToGlobal ).realRandomAccess();
+	}
+
+	/**
+	 * 12-bit random values, such that rounding in the NLinear interpolator
+	 * cannot overflow.
+	 */
+	static ArrayImg< UnsignedShortType, ShortArray > randomImage( final Random random )
+	{
+		final short[] data = new short[ ( int ) ( DIMENSIONS[ 0 ] * DIMENSIONS[ 1 ] * DIMENSIONS[ 2 ] ) ];
+		for ( int i = 0; i < data.length; ++i )
+			data[ i ] = ( short ) random.nextInt( 4096 );
+		return ArrayImgs.unsignedShorts( data, DIMENSIONS );
+	}
+
+	static CellImg< UnsignedShortType, ? > toCellImg( final RandomAccessibleInterval< UnsignedShortType > img )
+	{
+		final CellImg< UnsignedShortType, ? > cellImg = new CellImgFactory< UnsignedShortType >( new UnsignedShortType(), CELL_SIZE ).create( DIMENSIONS );
+		final Cursor< UnsignedShortType > in = Views.flatIterable( img ).cursor();
+		final Cursor< UnsignedShortType > out = Views.flatIterable( cellImg ).cursor();
+		while ( in.hasNext() )
+			out.next().set( in.next() );
+		return cellImg;
+	}
+}
@@ -0,0 +1,116 @@
+/*-
+ * #%L
+ * Ellipsoid Surface Projection
+ * %%
+ * Copyright (C) 2016 - 2018 Tobias Pietzsch
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.mpicbg.ovaries.ellipsoid;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Time per point of the safeguarded Newton iteration of
+ * {@link DistPointEllipsoid} versus the bisection of
+ * {@link DistPointHyperEllipsoid}, for points inside and outside of
+ * ellipsoids of different eccentricity (see {@link DistPointEllipsoidTest},
+ * which checks that both give the same distances).
+ *
+ * <p>
+ * Run with
+ * {@code mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=de.mpicbg.ovaries.ellipsoid.DistPointEllipsoidBenchmark}.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.NANOSECONDS )
+@Warmup( iterations = 5, time = 1 )
+@Measurement( iterations = 10, time = 1 )
+@Fork( 1 )
+@OperationsPerInvocation( DistPointEllipsoidBenchmark.NUM_POINTS )
+public class DistPointEllipsoidBenchmark
+{
+	static final int NUM_POINTS = 10000;
+
+	/**
+	 * Radii of the ellipsoid, comma-separated.
+	 */
+	@Param( { "10,5,2", "1000,10,0.1", "50,50,5", "30,30,30" } )
+	public String radii;
+
+	private Ellipsoid ellipsoid;
+
+	private DistPointEllipsoid dist;
+
+	private double[][] points;
+
+	@Setup
+	public void setup()
+	{
+		final String[] r = radii.split( "," );
+		final double[] values = new double[ r.length ];
+		for ( int d = 0; d < r.length; ++d )
+			values[ d ] = Double.parseDouble( r[ d ] );
+		final Random random = new Random( 1 );
+		ellipsoid = DistPointEllipsoidTest.randomEllipsoid( values, random );
+		dist = new DistPointEllipsoid( ellipsoid );
+		points = DistPointEllipsoidTest.randomPoints( ellipsoid, NUM_POINTS, random );
+	}
+
+	@Benchmark
+	public void newton( final Blackhole bh )
+	{
+		for ( final double[] p : points )
+			bh.consume( dist.distance( p[ 0 ], p[ 1 ], p[ 2 ] ) );
+	}
+
+	@Benchmark
+	public void bisection( final Blackhole bh )
+	{
+		for ( final double[] p : points )
+			bh.consume( DistPointHyperEllipsoid.distPointHyperEllipsoid( p, ellipsoid ).distance );
+	}
+
+	public static void main( final String... args ) throws RunnerException
+	{
+		new Runner( new OptionsBuilder().include( DistPointEllipsoidBenchmark.class.getSimpleName() ).build() ).run();
+	}
+}
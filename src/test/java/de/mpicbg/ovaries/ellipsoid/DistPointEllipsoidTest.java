@@ -0,0 +1,208 @@
+/*-
+ * #%L
+ * Ellipsoid Surface Projection
+ * %%
+ * Copyright (C) 2016 - 2018 Tobias Pietzsch
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.mpicbg.ovaries.ellipsoid;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import net.imglib2.util.LinAlgHelpers;
+
+/**
+ * Compares the safeguarded Newton iteration of {@link DistPointEllipsoid}
+ * with the bisection of {@link DistPointHyperEllipsoid}, for points inside
+ * and outside of very eccentric and nearly degenerate ellipsoids. See
+ * {@link DistPointEllipsoidBenchmark} for timings.
+ */
+public class DistPointEllipsoidTest
+{
+	private static final double[][] RADII = {
+			{ 10, 5, 2 },
+			{ 1000, 10, 0.1 },
+			{ 1e4, 1, 1e-2 },
+			{ 50, 50, 5 },
+			{ 50, 50 * ( 1 + 1e-12 ), 5 },
+			{ 20, 1, 1 },
+			{ 30, 30, 30 }
+	};
+
+	private static final int NUM_POINTS = 10000;
+
+	/**
+	 * Random points in a box around the ellipsoid, inside and outside.
+	 */
+	@Test
+	public void testRandomPoints()
+	{
+		final Random random = new Random( 1 );
+		for ( final double[] radii : RADII )
+		{
+			final Ellipsoid ellipsoid = randomEllipsoid( radii, random );
+			compare( ellipsoid, randomPoints( ellipsoid, NUM_POINTS, random ) );
+		}
+	}
+
+	/**
+	 * Points with some ellipsoid coordinates zero or very small, where the
+	 * solver treats components below the resolution as zero. The ellipsoid is
+	 * axis-aligned, such that the small coordinates are exact.
+	 * {@link DistPointHyperEllipsoid} cannot resolve the root for such points,
+	 * so it is evaluated with the small coordinates set to 0. Setting them to
+	 * 0 changes the distance by at most their magnitude.
+	 */
+	@Test
+	public void testPointsNearAxes()
+	{
+		final Random random = new Random( 2 );
+		final double[] tiny = { 0, 1e-300, 1e-15, 1e-9, 1e-7, 1e-5 };
+		final double[][] identity = { { 1, 0, 0 }, { 0, 1, 0 }, { 0, 0, 1 } };
+		for ( final double[] radii : RADII )
+		{
+			final Ellipsoid ellipsoid = new Ellipsoid( new double[ 3 ], null, null, identity, radii.clone() );
+			final double[][] points = new double[ NUM_POINTS ][];
+			final double[][] references = new double[ NUM_POINTS ][];
+			for ( int i = 0; i < NUM_POINTS; ++i )
+			{
+				final double[] y = new double[ 3 ];
+				final double scale = 2 * random.nextDouble();
+				for ( int d = 0; d < 3; ++d )
+					y[ d ] = scale * radii[ d ] * ( 2 * random.nextDouble() - 1 );
+				final double[] reference = y.clone();
+				final int numSmall = 1 + random.nextInt( 3 );
+				for ( int k = 0; k < numSmall; ++k )
+				{
+					final int d = random.nextInt( 3 );
+					final double s = random.nextBoolean() ? 1 : -1;
+					y[ d ] = s * radii[ d ] * tiny[ random.nextInt( tiny.length ) ];
+					reference[ d ] = 0;
+				}
+				points[ i ] = y;
+				references[ i ] = reference;
+			}
+			compare( ellipsoid, points, references );
+		}
+	}
+
+	private static void compare( final Ellipsoid ellipsoid, final double[][] points )
+	{
+		compare( ellipsoid, points, points );
+	}
+
+	/**
+	 * Compare distances to {@code points} with
+	 * {@link DistPointHyperEllipsoid} distances to {@code references}.
+	 */
+	private static void compare( final Ellipsoid ellipsoid, final double[][] points, final double[][] references )
+	{
+		final DistPointEllipsoid dist = new DistPointEllipsoid( ellipsoid );
+		final double[] radii = ellipsoid.getRadii();
+		final double maxRadius = Math.max( radii[ 0 ], Math.max( radii[ 1 ], radii[ 2 ] ) );
+
+		final double[] closestPoint = new double[ 3 ];
+
+		for ( int i = 0; i < points.length; ++i )
+		{
+			final double[] p = points[ i ];
+			final double newton = dist.distance( p[ 0 ], p[ 1 ], p[ 2 ], closestPoint );
+			final double bisection = DistPointHyperEllipsoid.distPointHyperEllipsoid( references[ i ], ellipsoid ).distance;
+
+			final double tolerance = 1e-9 * ( maxRadius + bisection );
+			final double offset = LinAlgHelpers.distance( p, references[ i ] );
+			assertEquals( "distance to " + LinAlgHelpers.toString( p ), bisection, newton, tolerance + offset );
+			assertEquals( "distance to closest point of " + LinAlgHelpers.toString( p ), newton, LinAlgHelpers.distance( p, closestPoint ), tolerance + offset );
+			final double side = Math.abs( dist.signedDistance( p[ 0 ], p[ 1 ], p[ 2 ] ) );
+			assertEquals( "signed distance to " + LinAlgHelpers.toString( p ), newton, side, tolerance );
+		}
+	}
+
+	/**
+	 * Ellipsoid with the given radii, a random center, and random
+	 * orientation.
+	 */
+	static Ellipsoid randomEllipsoid( final double[] radii, final Random random )
+	{
+		final double[][] axes = new double[ 3 ][ 3 ];
+		for ( int k = 0; k < 3; ++k )
+		{
+			while ( true )
+			{
+				for ( int d = 0; d < 3; ++d )
+					axes[ k ][ d ] = random.nextGaussian();
+				for ( int j = 0; j < k; ++j )
+				{
+					final double dot = LinAlgHelpers.dot( axes[ k ], axes[ j ] );
+					for ( int d = 0; d < 3; ++d )
+						axes[ k ][ d ] -= dot * axes[ j ][ d ];
+				}
+				final double len = LinAlgHelpers.length( axes[ k ] );
+				if ( len > 0.1 )
+				{
+					LinAlgHelpers.scale( axes[ k ], 1 / len, axes[ k ] );
+					break;
+				}
+			}
+		}
+		final double[] center = new double[ 3 ];
+		for ( int d = 0; d < 3; ++d )
+			center[ d ] = 100 * ( 2 * random.nextDouble() - 1 );
+		return new Ellipsoid( center, null, null, axes, radii.clone() );
+	}
+
+	/**
+	 * Random points in a box of twice the size of the ellipsoid (in
+	 * ellipsoid coordinates), inside and outside.
+	 */
+	static double[][] randomPoints( final Ellipsoid ellipsoid, final int n, final Random random )
+	{
+		final double[] radii = ellipsoid.getRadii();
+		final double[][] points = new double[ n ][];
+		for ( int i = 0; i < n; ++i )
+		{
+			final double[] y = new double[ 3 ];
+			final double scale = 2 * random.nextDouble();
+			for ( int d = 0; d < 3; ++d )
+				y[ d ] = scale * radii[ d ] * ( 2 * random.nextDouble() - 1 );
+			points[ i ] = toGlobal( ellipsoid, y );
+		}
+		return points;
+	}
+
+	/**
+	 * Transform ellipsoid coordinates {@code y} to global coordinates.
+	 */
+	static double[] toGlobal( final Ellipsoid ellipsoid, final double[] y )
+	{
+		final double[] x = new double[ 3 ];
+		LinAlgHelpers.multT( ellipsoid.getAxes(), y, x );
+		LinAlgHelpers.add( x, ellipsoid.getCenter(), x );
+		return x;
+	}
+}
@@ -0,0 +1,177 @@
+/*-
+ * #%L
+ * Ellipsoid Surface Projection
+ * %%
+ * Copyright (C) 2016 - 2018 Tobias Pietzsch
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.mpicbg.ovaries.ellipsoid;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import Jama.CholeskyDecomposition;
+import Jama.Matrix;
+import net.imglib2.util.LinAlgHelpers;
+
+/**
+ * Checks that {@link FitEllipsoid.Moments#fit()} gives the same ellipsoid as
+ * the original {@link FitEllipsoid#yuryPetrov(double[][])}, which built the
+ * full {@code n x 9} design matrix {@code D} and multiplied {@code D^T D}
+ * (see {@link #designMatrixYuryPetrov(double[][])}).
+ */
+public class FitEllipsoidTest
+{
+	private static final int[] NUM_POINTS = { 20, 100, 1000, 50000 };
+
+	private static final int NUM_ELLIPSOIDS = 10;
+
+	/**
+	 * Relative tolerance for center and precision matrix. Sums are
+	 * accumulated in a different order, so the fits differ by rounding only.
+	 */
+	private static final double TOLERANCE = 1e-8;
+
+	@Test
+	public void testMomentsFit()
+	{
+		final Random random = new Random( 7 );
+		for ( int e = 0; e < NUM_ELLIPSOIDS; ++e )
+		{
+			final double[] radii = new double[ 3 ];
+			for ( int d = 0; d < 3; ++d )
+				radii[ d ] = 10 + 100 * random.nextDouble();
+			final Ellipsoid ellipsoid = DistPointEllipsoidTest.randomEllipsoid( radii, random );
+			for ( final int n : NUM_POINTS )
+			{
+				final double[][] points = noisySurfacePoints( ellipsoid, n, random );
+				final Ellipsoid expected = designMatrixYuryPetrov( points );
+
+				final FitEllipsoid.Moments moments = new FitEllipsoid.Moments();
+				for ( final double[] p : points )
+					moments.add( p[ 0 ], p[ 1 ], p[ 2 ] );
+				InlierCacheTest.assertSameEllipsoid( "Moments.fit(), " + n + " points", expected, moments.fit(), TOLERANCE );
+
+				// partial sums, merged
+				final FitEllipsoid.Moments first = new FitEllipsoid.Moments();
+				final FitEllipsoid.Moments second = new FitEllipsoid.Moments();
+				for ( int i = 0; i < n; ++i )
+					( i < n / 2 ? first : second ).add( points[ i ][ 0 ], points[ i ][ 1 ], points[ i ][ 2 ] );
+				first.add( second );
+				InlierCacheTest.assertSameEllipsoid( "merged Moments.fit(), " + n + " points", expected, first.fit(), TOLERANCE );
+
+				InlierCacheTest.assertSameEllipsoid( "yuryPetrov, " + n + " points", expected, FitEllipsoid.yuryPetrov( points ), TOLERANCE );
+			}
+		}
+	}
+
+	/**
+	 * Points on the surface of {@code ellipsoid}, with Gaussian noise of 1%
+	 * of the smallest radius.
+	 */
+	private static double[][] noisySurfacePoints( final Ellipsoid ellipsoid, final int n, final Random random )
+	{
+		final double[] radii = ellipsoid.getRadii();
+		final double sigma = 0.01 * Math.min( radii[ 0 ], Math.min( radii[ 1 ], radii[ 2 ] ) );
+		final double[][] points = new double[ n ][];
+		final double[] y = new double[ 3 ];
+		for ( int i = 0; i < n; ++i )
+		{
+			for ( int d = 0; d < 3; ++d )
+				y[ d ] = random.nextGaussian();
+			final double len = LinAlgHelpers.length( y );
+			for ( int d = 0; d < 3; ++d )
+				y[ d ] = y[ d ] / len * radii[ d ] + sigma * random.nextGaussian();
+			points[ i ] = DistPointEllipsoidTest.toGlobal( ellipsoid, y );
+		}
+		return points;
+	}
+
+	/**
+	 * The original implementation of
+	 * {@link FitEllipsoid#yuryPetrov(double[][])}, which multiplies the full
+	 * design matrix.
+	 */
+	static Ellipsoid designMatrixYuryPetrov( final double[][] points )
+	{
+		final int nPoints = points.length;
+		final double[][] d = new double[ nPoints ][ 9 ];
+		final double[][] b = new double[ 9 ][ 1 ];
+		for ( int i = 0; i < nPoints; i++ )
+		{
+			final double x = points[ i ][ 0 ];
+			final double y = points[ i ][ 1 ];
+			final double z = points[ i ][ 2 ];
+			d[ i ][ 0 ] = x * x;
+			d[ i ][ 1 ] = y * y;
+			d[ i ][ 2 ] = z * z;
+			d[ i ][ 3 ] = 2 * x * y;
+			d[ i ][ 4 ] = 2 * x * z;
+			d[ i ][ 5 ] = 2 * y * z;
+			d[ i ][ 6 ] = 2 * x;
+			d[ i ][ 7 ] = 2 * y;
+			d[ i ][ 8 ] = 2 * z;
+			for ( int j = 0; j < 9; ++j )
+				b[ j ][ 0 ] += d[ i ][ j ];
+		}
+
+		final double[][] DTD = new double[ 9 ][ 9 ];
+		LinAlgHelpers.multATB( d, d, DTD );
+		final Matrix V = new CholeskyDecomposition( new Matrix( DTD ) ).solve( new Matrix( b ) );
+		return ellipsoidFromEquation( V );
+	}
+
+	/**
+	 * The original conversion of the equation variables
+	 * {@code (a, b, c, d, e, f, g, h, i)} to an ellipsoid.
+	 */
+	private static Ellipsoid ellipsoidFromEquation( final Matrix V )
+	{
+		final double a = V.get( 0, 0 );
+		final double b = V.get( 1, 0 );
+		final double c = V.get( 2, 0 );
+		final double d = V.get( 3, 0 );
+		final double e = V.get( 4, 0 );
+		final double f = V.get( 5, 0 );
+		final double g = V.get( 6, 0 );
+		final double h = V.get( 7, 0 );
+		final double i = V.get( 8, 0 );
+
+		final double[][] aa = new double[][] {
+				{ a, d, e },
+				{ d, b, f },
+				{ e, f, c } };
+		final double[] bb = new double[] { g, h, i };
+		final double[] cc = new Matrix( aa ).solve( new Matrix( bb, 3 ) ).getRowPackedCopy();
+		LinAlgHelpers.scale( cc, -1, cc );
+
+		final double[] At = new double[ 3 ];
+		LinAlgHelpers.mult( aa, cc, At );
+		final double r33 = LinAlgHelpers.dot( cc, At ) + 2 * LinAlgHelpers.dot( bb, cc ) - 1;
+		LinAlgHelpers.scale( aa, -1 / r33, aa );
+
+		return new Ellipsoid( cc, null, aa, null, null );
+	}
+}
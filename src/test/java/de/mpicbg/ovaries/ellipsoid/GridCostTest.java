@@ -0,0 +1,168 @@
+/*-
+ * #%L
+ * Ellipsoid Surface Projection
+ * %%
+ * Copyright (C) 2016 - 2018 Tobias Pietzsch
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.mpicbg.ovaries.ellipsoid;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import net.imglib2.util.LinAlgHelpers;
+
+/**
+ * Checks that the cost of a hypothesis scored on a {@link PointGrid} (with
+ * distance bounds per cell and point) equals the cost computed from exact
+ * {@link DistPointHyperEllipsoid} distances of all points. See
+ * {@link ScoringBenchmark} for timings.
+ *
+ * <p>
+ * Points are detections on a noisy ellipsoid surface plus uniform outliers,
+ * similar to the input of {@link SampleEllipsoids}.
+ */
+public class GridCostTest
+{
+	static final double[] RADII = { 120, 70, 40 };
+
+	static final int NUM_SURFACE_POINTS = 20000;
+
+	static final int NUM_OUTLIERS = 5000;
+
+	static final double CUTOFF = 5;
+
+	@Test
+	public void testAbsoluteDistanceCost()
+	{
+		final Random random = new Random( 2 );
+		final Ellipsoid ellipsoid = DistPointEllipsoidTest.randomEllipsoid( RADII, random );
+		final PointCloud points = detections( ellipsoid, random );
+		final PointGrid grid = new PointGrid( points );
+		final SampleEllipsoids.Cost cost = new SampleEllipsoids.AbsoluteDistanceCost( CUTOFF, CUTOFF );
+		for ( final Ellipsoid hypothesis : hypotheses( ellipsoid ) )
+		{
+			final double expected = exactCost( hypothesis, points, false );
+			assertEquals( expected, cost.compute( hypothesis, grid ), 1e-9 * expected );
+		}
+	}
+
+	@Test
+	public void testSquaredDistanceCost()
+	{
+		final Random random = new Random( 3 );
+		final Ellipsoid ellipsoid = DistPointEllipsoidTest.randomEllipsoid( RADII, random );
+		final PointCloud points = detections( ellipsoid, random );
+		final PointGrid grid = new PointGrid( points );
+		final SampleEllipsoids.Cost cost = new SampleEllipsoids.SquaredDistanceCost( CUTOFF, CUTOFF );
+		for ( final Ellipsoid hypothesis : hypotheses( ellipsoid ) )
+		{
+			final double expected = exactCost( hypothesis, points, true );
+			assertEquals( expected, cost.compute( hypothesis, grid ), 1e-9 * expected );
+		}
+	}
+
+	/**
+	 * The cost of {@link SampleEllipsoids.AbsoluteDistanceCost} (or
+	 * {@link SampleEllipsoids.SquaredDistanceCost}), computed with
+	 * {@link DistPointHyperEllipsoid} for every point.
+	 */
+	static double exactCost( final Ellipsoid ellipsoid, final PointCloud points, final boolean squared )
+	{
+		final double[] p = new double[ 3 ];
+		double cost = 0;
+		for ( int i = 0; i < points.size(); ++i )
+		{
+			p[ 0 ] = points.getXs()[ i ];
+			p[ 1 ] = points.getYs()[ i ];
+			p[ 2 ] = points.getZs()[ i ];
+			final double d = Math.min( DistPointHyperEllipsoid.distPointHyperEllipsoid( p, ellipsoid ).distance, CUTOFF );
+			cost += squared ? d * d : d;
+		}
+		return cost;
+	}
+
+	/**
+	 * The given ellipsoid, and hypotheses with wrong center or radii.
+	 */
+	static Ellipsoid[] hypotheses( final Ellipsoid ellipsoid )
+	{
+		return new Ellipsoid[] {
+				ellipsoid,
+				new Ellipsoid( shifted( ellipsoid.getCenter(), 10 ), null, null, ellipsoid.getAxes(), ellipsoid.getRadii().clone() ),
+				new Ellipsoid( ellipsoid.getCenter().clone(), null, null, ellipsoid.getAxes(), scaled( ellipsoid.getRadii(), 1.1 ) ),
+				new Ellipsoid( ellipsoid.getCenter().clone(), null, null, ellipsoid.getAxes(), scaled( ellipsoid.getRadii(), 0.5 ) )
+		};
+	}
+
+	/**
+	 * Points on the surface of {@code ellipsoid} with Gaussian noise, and
+	 * outliers uniformly distributed in a box around it.
+	 */
+	static PointCloud detections( final Ellipsoid ellipsoid, final Random random )
+	{
+		final int n = NUM_SURFACE_POINTS + NUM_OUTLIERS;
+		final double[] xs = new double[ n ];
+		final double[] ys = new double[ n ];
+		final double[] zs = new double[ n ];
+		final double[] radii = ellipsoid.getRadii();
+		final double[] y = new double[ 3 ];
+		for ( int i = 0; i < n; ++i )
+		{
+			if ( i < NUM_SURFACE_POINTS )
+			{
+				for ( int d = 0; d < 3; ++d )
+					y[ d ] = random.nextGaussian();
+				final double len = LinAlgHelpers.length( y );
+				for ( int d = 0; d < 3; ++d )
+					y[ d ] = y[ d ] / len * radii[ d ] + random.nextGaussian();
+			}
+			else
+				for ( int d = 0; d < 3; ++d )
+					y[ d ] = 1.5 * radii[ 0 ] * ( 2 * random.nextDouble() - 1 );
+			final double[] x = DistPointEllipsoidTest.toGlobal( ellipsoid, y );
+			xs[ i ] = x[ 0 ];
+			ys[ i ] = x[ 1 ];
+			zs[ i ] = x[ 2 ];
+		}
+		return new PointCloud( xs, ys, zs );
+	}
+
+	private static double[] shifted( final double[] center, final double offset )
+	{
+		final double[] shifted = center.clone();
+		shifted[ 0 ] += offset;
+		return shifted;
+	}
+
+	private static double[] scaled( final double[] radii, final double factor )
+	{
+		final double[] scaled = new double[ radii.length ];
+		LinAlgHelpers.scale( radii, factor, scaled );
+		return scaled;
+	}
+}
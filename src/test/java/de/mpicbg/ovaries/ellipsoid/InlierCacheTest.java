@@ -0,0 +1,182 @@
+/*-
+ * #%L
+ * Ellipsoid Surface Projection
+ * %%
+ * Copyright (C) 2016 - 2018 Tobias Pietzsch
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.mpicbg.ovaries.ellipsoid;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import net.imglib2.util.LinAlgHelpers;
+
+/**
+ * Checks that refitting from the block moments of an {@link InlierCache}
+ * ({@link SampleEllipsoids#refit(InlierCache, double, double, SamplingOptions)})
+ * gives the same ellipsoid as {@link SampleEllipsoids#fitToInliers} on the
+ * grid, for the same cutoff distances.
+ *
+ * <p>
+ * Cutoffs are chosen halfway between the distances of consecutive sorted
+ * points, such that both select exactly the same inliers. They include the
+ * ends of the sorted points, block boundaries, and ranges that start and end
+ * inside a block of {@link InlierCache#POINTS_PER_BLOCK} points.
+ */
+public class InlierCacheTest
+{
+	private static final int NUM_RANDOM_RANGES = 20;
+
+	/**
+	 * Relative tolerance for center and precision matrix. The moments are
+	 * summed in a different order, so the fits differ by rounding only.
+	 */
+	private static final double TOLERANCE = 1e-9;
+
+	@Test
+	public void testRefitGeneral()
+	{
+		testRefit( SamplingOptions.options() );
+	}
+
+	@Test
+	public void testRefitConstrained()
+	{
+		testRefit( SamplingOptions.options().unconstrainedRefit( false ).model( EllipsoidModel.AXIS_ALIGNED ) );
+	}
+
+	private static void testRefit( final SamplingOptions options )
+	{
+		final Random random = new Random( 6 );
+		final Ellipsoid truth = DistPointEllipsoidTest.randomEllipsoid( GridCostTest.RADII, random );
+		final double[] center = truth.getCenter().clone();
+		center[ 0 ] += 2;
+		final Ellipsoid hypothesis = new Ellipsoid( center, null, null, truth.getAxes(), truth.getRadii().clone() );
+		final InlierCache cache = new InlierCache( hypothesis, GridCostTest.detections( truth, random ) );
+		final PointGrid grid = cache.getGrid();
+
+		final int n = cache.getPoints().size();
+		final double[] distances = new double[ n ];
+		new DistPointEllipsoid( hypothesis ).signedDistances( cache.getPoints(), distances );
+		int zero = 0;
+		while ( distances[ zero ] < 0 )
+			++zero;
+
+		for ( final int[] range : ranges( distances, zero, random ) )
+		{
+			final int start = range[ 0 ];
+			final int end = range[ 1 ];
+			final double insideCutoff = start == 0 ? Double.POSITIVE_INFINITY : -0.5 * ( distances[ start - 1 ] + distances[ start ] );
+			final double outsideCutoff = end == n ? Double.POSITIVE_INFINITY : 0.5 * ( distances[ end - 1 ] + distances[ end ] );
+			final String message = "inliers [" + start + ", " + end + ")";
+
+			assertEquals( message, end - start, cache.countInliers( outsideCutoff, insideCutoff ) );
+			assertEquals( message, end - start, cache.moments( outsideCutoff, insideCutoff ).size() );
+			assertEquals( message, end - start, SampleEllipsoids.countInliers( hypothesis, grid, outsideCutoff, insideCutoff ) );
+
+			final Ellipsoid expected = SampleEllipsoids.fitToInliers( hypothesis, grid, outsideCutoff, insideCutoff, options );
+			final Ellipsoid actual = SampleEllipsoids.refit( cache, outsideCutoff, insideCutoff, options );
+			assertSameEllipsoid( message, expected, actual, TOLERANCE );
+		}
+	}
+
+	/**
+	 * Index ranges {@code [start, end)} of sorted points that contain the
+	 * surface, i.e., {@code start <= zero < end}, where {@code zero} is the
+	 * first point outside. Each range starts and ends between points of
+	 * different distance.
+	 */
+	private static List< int[] > ranges( final double[] distances, final int zero, final Random random )
+	{
+		final int n = distances.length;
+		final int block = InlierCache.POINTS_PER_BLOCK;
+		final int zeroBlock = zero / block * block;
+		final List< int[] > candidates = new ArrayList< int[] >();
+
+		// ends of the sorted points
+		candidates.add( new int[] { 0, n } );
+		candidates.add( new int[] { 0, zero + 1 } );
+		candidates.add( new int[] { zero - 1, n } );
+		candidates.add( new int[] { 0, n - 1 } );
+		candidates.add( new int[] { 1, n } );
+
+		// block boundaries
+		candidates.add( new int[] { zeroBlock - block, zeroBlock + 2 * block } );
+		candidates.add( new int[] { zeroBlock - block + 1, zeroBlock + 2 * block - 1 } );
+		candidates.add( new int[] { zeroBlock - block - 1, zeroBlock + 2 * block + 1 } );
+
+		// inside a single block, and inside blocks at both ends
+		candidates.add( new int[] { Math.max( zeroBlock, zero - 50 ), Math.min( zeroBlock + block, zero + 50 ) } );
+		candidates.add( new int[] { zeroBlock - 3 * block + 17, zeroBlock + 3 * block + 201 } );
+
+		for ( int i = 0; i < NUM_RANDOM_RANGES; ++i )
+			candidates.add( new int[] { random.nextInt( zero ), zero + 1 + random.nextInt( n - zero ) } );
+
+		final List< int[] > ranges = new ArrayList< int[] >();
+		for ( final int[] range : candidates )
+		{
+			final int start = range[ 0 ];
+			final int end = range[ 1 ];
+			if ( start < 0 || end > n || start > zero || end <= zero || end - start < 20 )
+				continue;
+			if ( start > 0 && distances[ start - 1 ] == distances[ start ] )
+				continue;
+			if ( end < n && distances[ end - 1 ] == distances[ end ] )
+				continue;
+			ranges.add( range );
+		}
+		return ranges;
+	}
+
+	/**
+	 * Assert that center and precision matrix of {@code actual} equal those
+	 * of {@code expected}, up to {@code tolerance} relative to their
+	 * magnitude. (The fits need not be ellipsoids, so radii and axes are not
+	 * compared.)
+	 */
+	static void assertSameEllipsoid( final String message, final Ellipsoid expected, final Ellipsoid actual, final double tolerance )
+	{
+		final double[][] p0 = expected.getPrecision();
+		final double[][] p1 = actual.getPrecision();
+		double maxPrecision = 0;
+		for ( int r = 0; r < 3; ++r )
+			for ( int c = 0; c < 3; ++c )
+				maxPrecision = Math.max( maxPrecision, Math.abs( p0[ r ][ c ] ) );
+		for ( int r = 0; r < 3; ++r )
+			for ( int c = 0; c < 3; ++c )
+				assertEquals( message + ", precision[" + r + "][" + c + "]", p0[ r ][ c ], p1[ r ][ c ], tolerance * maxPrecision );
+
+		final double[] c0 = expected.getCenter();
+		final double[] c1 = actual.getCenter();
+		final double length = LinAlgHelpers.length( c0 ) + 1 / Math.sqrt( maxPrecision );
+		for ( int d = 0; d < 3; ++d )
+			assertEquals( message + ", center[" + d + "]", c0[ d ], c1[ d ], tolerance * length );
+	}
+}
@@ -0,0 +1,114 @@
+/*-
+ * #%L
+ * Ellipsoid Surface Projection
+ * %%
+ * Copyright (C) 2016 - 2018 Tobias Pietzsch
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.mpicbg.ovaries.ellipsoid;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import de.mpicbg.ovaries.ellipsoid.SampleEllipsoids.Hypothesis;
+import net.imglib2.RealLocalizable;
+import net.imglib2.RealPoint;
+
+/**
+ * Checks that {@link SampleEllipsoids#sampleBest} gives the same hypothesis
+ * for a fixed seed, independent of the number of threads.
+ */
+public class SampleEllipsoidsTest
+{
+	private static final int NUM_SAMPLES = 2000;
+
+	private static final int[] NUM_THREADS = { 1, 2, 8 };
+
+	@Test
+	public void testReproducible()
+	{
+		testReproducible( false );
+	}
+
+	@Test
+	public void testReproducibleGuided()
+	{
+		testReproducible( true );
+	}
+
+	private static void testReproducible( final boolean guided )
+	{
+		final Random random = new Random( 4 );
+		final Ellipsoid ellipsoid = DistPointEllipsoidTest.randomEllipsoid( GridCostTest.RADII, random );
+		final List< RealLocalizable > points = toList( GridCostTest.detections( ellipsoid, random ) );
+		final SampleEllipsoids.Cost cost = new SampleEllipsoids.AbsoluteDistanceCost( GridCostTest.CUTOFF, GridCostTest.CUTOFF );
+
+		Hypothesis expected = null;
+		for ( final int numThreads : NUM_THREADS )
+		{
+			final SamplingOptions options = SamplingOptions.options()
+					.numThreads( numThreads )
+					.seed( 5 )
+					.adaptive( false )
+					.localOptimization( false );
+			final PointGrid grid = SampleEllipsoids.scoringGrid( points, options.getSeed() );
+			final Hypothesis best = SampleEllipsoids.sampleBest( points, grid, NUM_SAMPLES, cost, guided, options );
+			assertNotNull( best );
+			if ( expected == null )
+				expected = best;
+			else
+				assertSameHypothesis( "numThreads = " + numThreads, expected, best );
+		}
+	}
+
+	private static void assertSameHypothesis( final String message, final Hypothesis expected, final Hypothesis actual )
+	{
+		assertEquals( message + ", index", expected.index, actual.index );
+		assertEquals( message + ", cost", expected.cost, actual.cost, 0 );
+		assertSameValues( message + ", center", expected.ellipsoid.getCenter(), actual.ellipsoid.getCenter() );
+		assertSameValues( message + ", radii", expected.ellipsoid.getRadii(), actual.ellipsoid.getRadii() );
+		for ( int i = 0; i < 3; ++i )
+			assertSameValues( message + ", axis " + i, expected.ellipsoid.getAxes()[ i ], actual.ellipsoid.getAxes()[ i ] );
+	}
+
+	private static void assertSameValues( final String message, final double[] expected, final double[] actual )
+	{
+		for ( int d = 0; d < expected.length; ++d )
+			assertEquals( message + "[" + d + "]", expected[ d ], actual[ d ], 0 );
+	}
+
+	private static List< RealLocalizable > toList( final PointCloud cloud )
+	{
+		final List< RealLocalizable > points = new ArrayList< RealLocalizable >( cloud.size() );
+		for ( int i = 0; i < cloud.size(); ++i )
+			points.add( new RealPoint( cloud.getXs()[ i ], cloud.getYs()[ i ], cloud.getZs()[ i ] ) );
+		return points;
+	}
+}
@@ -0,0 +1,110 @@
+/*-
+ * #%L
+ * Ellipsoid Surface Projection
+ * %%
+ * Copyright (C) 2016 - 2018 Tobias Pietzsch
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.mpicbg.ovaries.ellipsoid;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Time to score a hypothesis: the grid-scored
+ * {@link SampleEllipsoids.AbsoluteDistanceCost} versus exact
+ * {@link DistPointHyperEllipsoid} distances of all points, for the true
+ * ellipsoid and for wrong hypotheses (see {@link GridCostTest}, which checks
+ * that both give the same cost).
+ *
+ * <p>
+ * Run with
+ * {@code mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=de.mpicbg.ovaries.ellipsoid.ScoringBenchmark}.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Warmup( iterations = 5, time = 1 )
+@Measurement( iterations = 10, time = 1 )
+@Fork( 1 )
+public class ScoringBenchmark
+{
+	/**
+	 * Index into {@link GridCostTest#hypotheses(Ellipsoid)}: the true
+	 * ellipsoid, shifted, too large, and much too small.
+	 */
+	@Param( { "0", "1", "2", "3" } )
+	public int hypothesis;
+
+	private PointCloud points;
+
+	private PointGrid grid;
+
+	private SampleEllipsoids.Cost cost;
+
+	private Ellipsoid ellipsoid;
+
+	@Setup
+	public void setup()
+	{
+		final Random random = new Random( 2 );
+		final Ellipsoid truth = DistPointEllipsoidTest.randomEllipsoid( GridCostTest.RADII, random );
+		points = GridCostTest.detections( truth, random );
+		grid = new PointGrid( points );
+		cost = new SampleEllipsoids.AbsoluteDistanceCost( GridCostTest.CUTOFF, GridCostTest.CUTOFF );
+		ellipsoid = GridCostTest.hypotheses( truth )[ hypothesis ];
+	}
+
+	@Benchmark
+	public double grid()
+	{
+		return cost.compute( ellipsoid, grid );
+	}
+
+	@Benchmark
+	public double exact()
+	{
+		return GridCostTest.exactCost( ellipsoid, points, false );
+	}
+
+	public static void main( final String... args ) throws RunnerException
+	{
+		new Runner( new OptionsBuilder().include( ScoringBenchmark.class.getSimpleName() ).build() ).run();
+	}
+}